@@ -27,10 +27,12 @@ import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.rest.action.mongodb.RestMongoDBRiverAction;
 import org.elasticsearch.river.RiversModule;
+import org.elasticsearch.river.mongodb.BulkDispatcherService;
 import org.elasticsearch.river.mongodb.MongoClientService;
 import org.elasticsearch.river.mongodb.NodeLevelModule;
 import org.elasticsearch.river.mongodb.MongoDBRiver;
 import org.elasticsearch.river.mongodb.MongoDBRiverModule;
+import org.elasticsearch.river.mongodb.OplogTailerService;
 
 import com.google.common.collect.ImmutableList;
 
@@ -54,7 +56,8 @@ public class MongoDBRiverPlugin extends AbstractPlugin {
     
     @Override
     public Collection<Class<? extends LifecycleComponent>> services() {
-        return ImmutableList.<Class<? extends LifecycleComponent>>builder().addAll(super.services()).add(MongoClientService.class).build();
+        return ImmutableList.<Class<? extends LifecycleComponent>>builder().addAll(super.services()).add(MongoClientService.class)
+                .add(BulkDispatcherService.class).add(OplogTailerService.class).build();
     }
 
     /**
@@ -10,7 +10,9 @@ import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
@@ -40,6 +42,8 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         String baseUrl = "/" + riverIndexName + "/" + MongoDBRiver.TYPE;
         logger.trace("RestMongoDBRiverAction - baseUrl: {}", baseUrl);
         controller.registerHandler(RestRequest.Method.GET, baseUrl + "/{action}", this);
+        // Only the read actions are reachable with GET
+        controller.registerHandler(RestRequest.Method.GET, baseUrl + "/{river}/_stats", this);
         controller.registerHandler(RestRequest.Method.POST, baseUrl + "/{river}/{action}", this);
     }
 
@@ -51,6 +55,13 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         if (request.path().endsWith("list")) {
             list(request, channel, esClient);
             return;
+        } else if (request.path().endsWith("_stats")) {
+            stats(request, channel, esClient);
+            return;
+        } else if (request.method() != RestRequest.Method.POST) {
+            respondError(request, channel, "Method " + request.method() + " not allowed for: " + request.uri(),
+                    RestStatus.METHOD_NOT_ALLOWED);
+            return;
         } else if (request.path().endsWith("start")) {
             start(request, channel, esClient);
             return;
@@ -60,6 +71,9 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         } else if (request.path().endsWith("delete")) {
             delete(request, channel, esClient);
             return;
+        } else if (request.path().endsWith("throttle")) {
+            throttle(request, channel, esClient);
+            return;
         }
 
         respondError(request, channel, "action not found: " + request.uri(), RestStatus.OK);
@@ -98,6 +112,57 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         respondSuccess(request, channel, RestStatus.OK);
     }
 
+    private void stats(RestRequest request, RestChannel channel, Client esClient) {
+        String river = request.param("river");
+        if (river == null || river.isEmpty()) {
+            respondError(request, channel, "Parameter 'river' is required", RestStatus.BAD_REQUEST);
+            return;
+        }
+        try {
+            Map<String, Object> stats = MongoDBRiverHelper.getRiverStats(esClient, river);
+            if (stats == null) {
+                respondError(request, channel, "No statistics for river: " + river, RestStatus.NOT_FOUND);
+                return;
+            }
+            XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+            builder.startObject();
+            builder.field("name", river);
+            builder.field("status", MongoDBRiverHelper.getRiverStatus(esClient, river));
+            builder.field("stats", stats);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        } catch (Throwable e) {
+            errorResponse(request, channel, e);
+        }
+    }
+
+    /**
+     * Limit the initial import of a running river. Without any parameter the
+     * limits from the river definition apply again.
+     */
+    private void throttle(RestRequest request, RestChannel channel, Client esClient) {
+        String river = request.param("river");
+        if (river == null || river.isEmpty()) {
+            respondError(request, channel, "Parameter 'river' is required", RestStatus.BAD_REQUEST);
+            return;
+        }
+        String maxDocsPerSecond = request.param(MongoDBRiverDefinition.MAX_DOCS_PER_SECOND_FIELD);
+        String maxBytesPerSecond = request.param(MongoDBRiverDefinition.MAX_BYTES_PER_SECOND_FIELD);
+        try {
+            if (maxDocsPerSecond == null && maxBytesPerSecond == null) {
+                MongoDBRiverHelper.clearRiverThrottle(esClient, river);
+            } else {
+                MongoDBRiverHelper.setRiverThrottle(esClient, river,
+                        maxDocsPerSecond != null ? Integer.parseInt(maxDocsPerSecond) : 0,
+                        maxBytesPerSecond != null ? ByteSizeValue.parseBytesSizeValue(maxBytesPerSecond).bytes() : 0);
+            }
+        } catch (Exception e) {
+            respondError(request, channel, "Invalid throttle: " + e.getMessage(), RestStatus.BAD_REQUEST);
+            return;
+        }
+        respondSuccess(request, channel, RestStatus.OK);
+    }
+
     private void list(RestRequest request, RestChannel channel, Client esClient) {
         try {
             Map<String, Object> rivers = getRivers(request.paramAsInt("page", 1), request.paramAsInt("count", 10), esClient);
@@ -161,7 +226,19 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
             RiverSettings riverSettings = new RiverSettings(null, hit.getSource());
             MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName, riverIndexName, riverSettings, null);
 
-            Timestamp<?> ts = MongoDBRiver.getLastTimestamp(esClient, definition);
+            // Sharded rivers resume each shard from its own checkpoint: report the oldest one
+            Map<String, Timestamp<?>> shardTimestamps = MongoDBRiver.getShardTimestamps(esClient, definition);
+            Timestamp<?> ts = null;
+            Map<String, Object> lastTimestamps = new HashMap<String, Object>();
+            for (Map.Entry<String, Timestamp<?>> shardTimestamp : shardTimestamps.entrySet()) {
+                lastTimestamps.put(shardTimestamp.getKey(), shardTimestamp.getValue().getTime());
+                if (ts == null || shardTimestamp.getValue().getTime() < ts.getTime()) {
+                    ts = shardTimestamp.getValue();
+                }
+            }
+            if (ts == null) {
+                ts = MongoDBRiver.getLastTimestamp(esClient, definition);
+            }
             Long lastTimestamp = null;
             if (ts != null) {
                 lastTimestamp = ts.getTime();
@@ -170,7 +247,14 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
             source.put("status", MongoDBRiverHelper.getRiverStatus(esClient, riverName));
             source.put("settings", hit.getSource());
             source.put("lastTimestamp", lastTimestamp);
+            if (!lastTimestamps.isEmpty()) {
+                source.put("shardLastTimestamps", lastTimestamps);
+            }
             source.put("indexCount", MongoDBRiver.getIndexCount(esClient, definition));
+            Map<String, Object> stats = MongoDBRiverHelper.getRiverStats(esClient, riverName);
+            if (stats != null) {
+                source.put("lag", XContentMapValues.extractValue("oplog.lag", stats));
+            }
             if (logger.isTraceEnabled()) {
                 logger.trace("source: {}", hit.getSourceAsString());
             }
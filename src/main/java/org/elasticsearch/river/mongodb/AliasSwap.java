@@ -0,0 +1,203 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.List;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.MapperService;
+
+/**
+ * Drop a collection without readers seeing an empty type.
+ *
+ * The index name of the river is an alias on a physical index. On a drop the
+ * documents go to a fresh physical index created with the settings and
+ * mappings of the current one; the alias moves to it in a single request once
+ * the river has caught up, then the old index is deleted in the background.
+ * The index written meanwhile is kept in the river index, so that a river
+ * restarted from a later checkpoint goes on writing to it.
+ */
+class AliasSwap {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(AliasSwap.class.getName());
+
+    private static final String PENDING_ID = "_riveralias";
+    private static final String PENDING_INDEX_FIELD = "pending_index";
+
+    private final Client client;
+    private final String riverIndexName;
+    private final String riverName;
+    private final String alias;
+    private final String type;
+    // Physical index written while the alias still points to the previous one
+    private volatile String pendingIndex;
+
+    AliasSwap(Client client, MongoDBRiverDefinition definition, String alias, String type) {
+        this.client = client;
+        this.riverIndexName = definition.getRiverIndexName();
+        this.riverName = definition.getRiverName();
+        this.alias = alias;
+        this.type = type;
+        resume();
+    }
+
+    /**
+     * Create a physical index behind the alias, if neither exists yet.
+     */
+    static void createIndex(Client client, String alias) {
+        String index = newIndexName(alias);
+        logger.info("Create index [{}] with alias [{}]", index, alias);
+        client.admin().indices().prepareCreate(index).addAlias(new Alias(alias)).get();
+    }
+
+    private static String newIndexName(String alias) {
+        return alias + "_" + System.currentTimeMillis();
+    }
+
+    /**
+     * @return the index the river must write to
+     */
+    String getWriteIndex() {
+        String index = pendingIndex;
+        return index != null ? index : alias;
+    }
+
+    boolean isPending() {
+        return pendingIndex != null;
+    }
+
+    /**
+     * Start writing to a fresh copy of the physical index behind the alias.
+     *
+     * @return false if the index cannot be swapped: it is not an alias or it
+     *         holds other types than the dropped one
+     */
+    boolean drop() {
+        String current = getAliasedIndex();
+        if (current == null) {
+            logger.warn("[{}] is not an alias on a single index. Cannot swap it on drop of type [{}].", alias, type);
+            return false;
+        }
+        ImmutableOpenMap<String, MappingMetaData> mappings = client.admin().indices().prepareGetMappings(current).get().getMappings()
+                .get(current);
+        if (mappings != null) {
+            for (ObjectObjectCursor<String, MappingMetaData> mapping : mappings) {
+                if (!mapping.key.equals(type) && !mapping.key.equals(MapperService.DEFAULT_MAPPING)) {
+                    logger.warn("Index [{}] also holds type [{}]. Cannot swap it on drop of type [{}].", current, mapping.key, type);
+                    return false;
+                }
+            }
+        }
+
+        if (pendingIndex != null) {
+            // Dropped again before the previous swap: start over
+            logger.info("Delete index [{}] of a previous drop of [{}]", pendingIndex, type);
+            client.admin().indices().prepareDelete(pendingIndex).get();
+            pendingIndex = null;
+        }
+
+        String index = newIndexName(alias);
+        Settings settings = client.admin().indices().prepareGetSettings(current).get().getIndexToSettings().get(current);
+        ImmutableSettings.Builder copy = ImmutableSettings.settingsBuilder().put(settings);
+        copy.remove(IndexMetaData.SETTING_UUID);
+        copy.remove(IndexMetaData.SETTING_VERSION_CREATED);
+        copy.remove(IndexMetaData.SETTING_CREATION_DATE);
+        CreateIndexRequestBuilder request = client.admin().indices().prepareCreate(index).setSettings(copy);
+        if (mappings != null) {
+            for (ObjectObjectCursor<String, MappingMetaData> mapping : mappings) {
+                try {
+                    request.addMapping(mapping.key, mapping.value.getSourceAsMap());
+                } catch (Exception e) {
+                    logger.warn("Cannot read mapping [{}] of index [{}]", e, mapping.key, current);
+                }
+            }
+        }
+        request.get();
+        pendingIndex = index;
+        client.prepareIndex(riverIndexName, riverName, getPendingId()).setSource(PENDING_INDEX_FIELD, index).get();
+        logger.info("Drop of type [{}]: write to index [{}] until alias [{}] moves from [{}]", type, index, alias, current);
+        return true;
+    }
+
+    /**
+     * Move the alias to the index written since the drop and delete the
+     * previous index. Documents sent so far must have been acknowledged.
+     */
+    void swap() {
+        final String index = pendingIndex;
+        if (index == null) {
+            return;
+        }
+        final String current = getAliasedIndex();
+        client.admin().indices().prepareRefresh(index).get();
+        if (current == null) {
+            client.admin().indices().prepareAliases().addAlias(index, alias).get();
+        } else {
+            client.admin().indices().prepareAliases().removeAlias(current, alias).addAlias(index, alias).get();
+        }
+        pendingIndex = null;
+        client.prepareDelete(riverIndexName, riverName, getPendingId()).get();
+        logger.info("Alias [{}] moved from [{}] to [{}]", alias, current, index);
+
+        if (current != null) {
+            client.admin().indices().prepareDelete(current).execute(new ActionListener<DeleteIndexResponse>() {
+                @Override
+                public void onResponse(DeleteIndexResponse response) {
+                    logger.info("Deleted index [{}] replaced by [{}]", current, index);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.warn("Failed to delete index [{}] replaced by [{}]", e, current, index);
+                }
+            });
+        }
+    }
+
+    /**
+     * Go on writing to the index of a drop the river stopped before swapping.
+     */
+    private void resume() {
+        GetResponse response = client.prepareGet(riverIndexName, riverName, getPendingId()).get();
+        if (!response.isExists()) {
+            return;
+        }
+        Object index = response.getSourceAsMap().get(PENDING_INDEX_FIELD);
+        if (index == null || !client.admin().indices().prepareExists(index.toString()).get().isExists()
+                || index.equals(getAliasedIndex())) {
+            // Swapped, or deleted by hand, before the river stopped
+            client.prepareDelete(riverIndexName, riverName, getPendingId()).get();
+            return;
+        }
+        pendingIndex = index.toString();
+        logger.info("Drop of type [{}]: resume writing to index [{}] until alias [{}] moves", type, pendingIndex, alias);
+    }
+
+    private String getPendingId() {
+        return PENDING_ID + "/" + alias + "/" + type;
+    }
+
+    /**
+     * @return the only index the alias points to, or null
+     */
+    private String getAliasedIndex() {
+        ImmutableOpenMap<String, List<AliasMetaData>> aliases = client.admin().indices().prepareGetAliases(alias).get().getAliases();
+        if (aliases.size() != 1) {
+            return null;
+        }
+        return aliases.keysIt().next();
+    }
+
+}
@@ -0,0 +1,338 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Singleton;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Node level bulk dispatcher shared by the rivers that set
+ * {@code index.bulk.shared}.
+ *
+ * Each river index / type gets a {@link Channel} with its own queue. Bulk
+ * requests are filled round robin from the channels with pending requests,
+ * so a busy river cannot starve the others, and the number of bulk requests
+ * in flight is bounded for the whole node. The response of a bulk request is
+ * split back per channel: a channel listener only sees its own items and
+ * failures.
+ *
+ * Nothing of a river runs while a bulk request is filled and sent: channel
+ * listeners are not called before a bulk, a channel counts its bulks in
+ * flight itself, and rivers throttle on the threads adding requests.
+ */
+@Singleton
+public class BulkDispatcherService extends AbstractLifecycleComponent<BulkDispatcherService> {
+
+    public static final String CONCURRENT_REQUESTS_SETTING = "mongodb.bulk_dispatcher.concurrent_requests";
+    public static final String ACTIONS_SETTING = "mongodb.bulk_dispatcher.actions";
+    public static final String SIZE_SETTING = "mongodb.bulk_dispatcher.size";
+    public static final String FLUSH_INTERVAL_SETTING = "mongodb.bulk_dispatcher.flush_interval";
+
+    // Same estimate as BulkRequest for the action line of an item
+    private static final int REQUEST_OVERHEAD = 50;
+
+    private final Client client;
+    private final int bulkActions;
+    private final long bulkSize;
+    private final TimeValue flushInterval;
+    private final Semaphore concurrentRequests;
+    private final AtomicLong executionIdGen = new AtomicLong();
+    private final List<Channel> channels = new ArrayList<>();
+    private int nextChannel;
+    private volatile int pendingActions;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Queue of the requests of one river index / type.
+     */
+    public class Channel {
+
+        private final String name;
+        private final BulkProcessor.Listener listener;
+        private final int maxPendingActions;
+        private final LinkedList<ActionRequest<?>> pending = new LinkedList<>();
+        // Bulks holding requests of this channel not handled by the listener yet
+        private int inFlight;
+
+        private Channel(String name, BulkProcessor.Listener listener, int maxPendingActions) {
+            this.name = name;
+            this.listener = listener;
+            this.maxPendingActions = maxPendingActions;
+        }
+
+        /**
+         * Queue a request, blocking while the channel already holds
+         * {@code maxPendingActions} requests.
+         */
+        public void add(ActionRequest<?> request) {
+            synchronized (BulkDispatcherService.this) {
+                while (pending.size() >= maxPendingActions && channels.contains(this)) {
+                    try {
+                        BulkDispatcherService.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                pending.add(request);
+                pendingActions++;
+            }
+            if (pendingActions >= bulkActions) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Send the pending requests of this channel, along with requests of
+         * other channels.
+         */
+        public void flush() {
+            while (hasPending() && dispatch()) {
+            }
+        }
+
+        /**
+         * Flush and unregister the channel.
+         */
+        public void close() {
+            flush();
+            synchronized (BulkDispatcherService.this) {
+                channels.remove(this);
+                BulkDispatcherService.this.notifyAll();
+            }
+            logger.debug("Closed bulk channel {}", name);
+        }
+
+        /**
+         * Wait for the listener to handle the bulks in flight holding
+         * requests of this channel.
+         *
+         * @param timeoutMillis
+         *            0 to wait as long as it takes
+         * @return false if bulks are still in flight
+         */
+        public boolean awaitInFlight(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (BulkDispatcherService.this) {
+                while (inFlight > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (timeoutMillis > 0 && remaining <= 0) {
+                        return false;
+                    }
+                    BulkDispatcherService.this.wait(timeoutMillis > 0 ? remaining : 0);
+                }
+                return true;
+            }
+        }
+
+        private void completed() {
+            synchronized (BulkDispatcherService.this) {
+                inFlight--;
+                BulkDispatcherService.this.notifyAll();
+            }
+        }
+
+        private boolean hasPending() {
+            synchronized (BulkDispatcherService.this) {
+                return !pending.isEmpty();
+            }
+        }
+    }
+
+    @Inject
+    public BulkDispatcherService(Settings settings, Client client) {
+        super(settings);
+        this.client = client;
+        this.bulkActions = settings.getAsInt(ACTIONS_SETTING, MongoDBRiverDefinition.DEFAULT_BULK_ACTIONS);
+        this.bulkSize = settings.getAsBytesSize(SIZE_SETTING, MongoDBRiverDefinition.DEFAULT_BULK_SIZE).bytes();
+        this.flushInterval = settings.getAsTime(FLUSH_INTERVAL_SETTING, MongoDBRiverDefinition.DEFAULT_FLUSH_INTERVAL);
+        this.concurrentRequests = new Semaphore(Math.max(1, settings.getAsInt(CONCURRENT_REQUESTS_SETTING,
+                EsExecutors.boundedNumberOfProcessors(settings))));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        scheduler = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory(settings, "mongodb_river_bulk_dispatcher"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                while (pendingActions > 0 && dispatch()) {
+                }
+            }
+        }, flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+        logger.info("Started bulk dispatcher - actions [{}] - size [{}] - concurrent requests [{}] - flush interval [{}]", bulkActions,
+                new ByteSizeValue(bulkSize), concurrentRequests.availablePermits(), flushInterval);
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    /**
+     * @param maxPendingActions requests the channel can queue before {@link Channel#add(ActionRequest)} blocks
+     */
+    public synchronized Channel register(String name, BulkProcessor.Listener listener, int maxPendingActions) {
+        Channel channel = new Channel(name, listener, Math.max(1, maxPendingActions));
+        channels.add(channel);
+        logger.debug("Registered bulk channel {} - {} channels", name, channels.size());
+        return channel;
+    }
+
+    /**
+     * Send one bulk request filled round robin from the channels.
+     *
+     * @return false if there was nothing to send
+     */
+    private boolean dispatch() {
+        try {
+            concurrentRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        final BulkRequest bulkRequest = new BulkRequest();
+        final List<Channel> owners = new ArrayList<>();
+        synchronized (this) {
+            long size = 0;
+            boolean added = true;
+            while (added && bulkRequest.numberOfActions() < bulkActions && size < bulkSize) {
+                added = false;
+                for (int i = 0; i < channels.size() && bulkRequest.numberOfActions() < bulkActions && size < bulkSize; i++) {
+                    Channel channel = channels.get(nextChannel++ % channels.size());
+                    ActionRequest<?> request = channel.pending.poll();
+                    if (request != null) {
+                        bulkRequest.add(request);
+                        owners.add(channel);
+                        size += estimatedSize(request);
+                        added = true;
+                    }
+                }
+            }
+            nextChannel = channels.isEmpty() ? 0 : nextChannel % channels.size();
+            pendingActions -= owners.size();
+            for (Channel channel : distinct(owners)) {
+                // Before a flush of the channel can see its queue empty
+                channel.inFlight++;
+            }
+            notifyAll();
+        }
+        if (owners.isEmpty()) {
+            concurrentRequests.release();
+            return false;
+        }
+
+        final long executionId = executionIdGen.incrementAndGet();
+        final List<Channel> distinctOwners = distinct(owners);
+        ActionListener<BulkResponse> listener = new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                // Release first: a channel may flush from its listener
+                concurrentRequests.release();
+                BulkItemResponse[] items = response.getItems();
+                for (Channel channel : distinctOwners) {
+                    List<BulkItemResponse> channelItems = new ArrayList<>();
+                    for (int i = 0; i < items.length; i++) {
+                        if (owners.get(i) == channel) {
+                            channelItems.add(items[i]);
+                        }
+                    }
+                    try {
+                        channel.listener.afterBulk(executionId, subRequest(bulkRequest, owners, channel), new BulkResponse(
+                                channelItems.toArray(new BulkItemResponse[channelItems.size()]), response.getTookInMillis()));
+                    } catch (Throwable t) {
+                        logger.warn("Bulk channel {} failed to handle response", t, channel.name);
+                    } finally {
+                        channel.completed();
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                concurrentRequests.release();
+                for (Channel channel : distinctOwners) {
+                    try {
+                        channel.listener.afterBulk(executionId, subRequest(bulkRequest, owners, channel), e);
+                    } catch (Throwable t) {
+                        logger.warn("Bulk channel {} failed to handle failure", t, channel.name);
+                    } finally {
+                        channel.completed();
+                    }
+                }
+            }
+        };
+        // The permit is released, and every channel notified, whatever fails
+        try {
+            execute(bulkRequest, listener);
+        } catch (Throwable t) {
+            listener.onFailure(t);
+        }
+        return true;
+    }
+
+    void execute(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+        client.bulk(bulkRequest, listener);
+    }
+
+    private static long estimatedSize(ActionRequest<?> request) {
+        if (request instanceof IndexRequest) {
+            return ((IndexRequest) request).source().length() + REQUEST_OVERHEAD;
+        }
+        if (request instanceof UpdateRequest && ((UpdateRequest) request).doc() != null) {
+            return ((UpdateRequest) request).doc().source().length() + REQUEST_OVERHEAD;
+        }
+        return REQUEST_OVERHEAD;
+    }
+
+    private static List<Channel> distinct(List<Channel> owners) {
+        List<Channel> distinct = new ArrayList<>();
+        for (Channel channel : owners) {
+            if (!distinct.contains(channel)) {
+                distinct.add(channel);
+            }
+        }
+        return distinct;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static BulkRequest subRequest(BulkRequest bulkRequest, List<Channel> owners, Channel channel) {
+        BulkRequest request = new BulkRequest();
+        List<ActionRequest> requests = bulkRequest.requests();
+        for (int i = 0; i < requests.size(); i++) {
+            if (owners.get(i) == channel) {
+                request.add(requests.get(i));
+            }
+        }
+        return request;
+    }
+
+}
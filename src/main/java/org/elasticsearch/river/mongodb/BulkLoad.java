@@ -0,0 +1,181 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Index settings for the duration of the initial import.
+ *
+ * Refresh is disabled (and replicas dropped to 0 in bulk load mode) once
+ * before the import starts. The original values are kept in the river index
+ * so they survive a restart, and restored when the indexer has checkpointed
+ * every shard past the oplog entries written during the import.
+ */
+class BulkLoad {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(BulkLoad.class.getName());
+
+    static final String BULK_LOAD_ID = "_riverbulkload";
+    static final String REFRESH_INTERVAL_SETTING = "index.refresh_interval";
+    static final String NUMBER_OF_REPLICAS_SETTING = "index.number_of_replicas";
+    // Index default when the setting was never set explicitly
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+
+    private final MongoDBRiverDefinition definition;
+    private final Client esClient;
+    private final AtomicInteger pendingShards = new AtomicInteger();
+    // Position each shard must be checkpointed at, once its slurper caught up
+    private final ConcurrentMap<String, Timestamp<?>> catchUpTimestamps = Maps.newConcurrentMap();
+    private volatile Map<String, Object> originalSettings;
+
+    BulkLoad(MongoDBRiverDefinition definition, Client esClient) {
+        this.definition = definition;
+        this.esClient = esClient;
+    }
+
+    /**
+     * @return true if the definition asks for different settings during the initial import
+     */
+    boolean isEnabled() {
+        return definition.isBulkLoad() || definition.isDisableIndexRefresh();
+    }
+
+    /**
+     * Capture the current settings of the index and apply the bulk load
+     * settings, unless a previous run already did.
+     */
+    synchronized void begin() {
+        if (!isEnabled() || isActive()) {
+            return;
+        }
+        String index = definition.getIndexName();
+        Settings current = esClient.admin().indices().prepareGetSettings(index).get().getIndexToSettings().get(index);
+        String refreshInterval = current != null ? current.get(REFRESH_INTERVAL_SETTING, DEFAULT_REFRESH_INTERVAL) : DEFAULT_REFRESH_INTERVAL;
+        String replicas = current != null ? current.get(NUMBER_OF_REPLICAS_SETTING) : null;
+        try {
+            esClient.prepareIndex(definition.getRiverIndexName(), definition.getRiverName(), BULK_LOAD_ID)
+                    .setSource(jsonBuilder().startObject().startObject(MongoDBRiver.TYPE)
+                            .field(REFRESH_INTERVAL_SETTING, refreshInterval)
+                            .field(NUMBER_OF_REPLICAS_SETTING, definition.isBulkLoad() ? replicas : null)
+                            .endObject().endObject()).setRefresh(true).get();
+        } catch (IOException e) {
+            logger.error("Cannot save index settings of {}. Bulk load disabled.", e, index);
+            return;
+        }
+        ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder().put(REFRESH_INTERVAL_SETTING, -1);
+        if (definition.isBulkLoad()) {
+            settings.put(NUMBER_OF_REPLICAS_SETTING, 0);
+        }
+        logger.info("Bulk load of {} - refresh interval was {} - replicas was {}", index, refreshInterval, replicas);
+        esClient.admin().indices().prepareUpdateSettings(index).setSettings(settings).get();
+    }
+
+    /**
+     * @return true if the index currently runs with the bulk load settings
+     */
+    @SuppressWarnings("unchecked")
+    synchronized boolean isActive() {
+        if (originalSettings == null) {
+            GetResponse response = esClient.prepareGet(definition.getRiverIndexName(), definition.getRiverName(), BULK_LOAD_ID).get();
+            if (response.isExists()) {
+                originalSettings = (Map<String, Object>) response.getSourceAsMap().get(MongoDBRiver.TYPE);
+            }
+        }
+        return originalSettings != null;
+    }
+
+    /**
+     * Restore the settings once {@code shards} shards have been checkpointed
+     * at the position given to {@link #caughtUp(String, Timestamp)}.
+     */
+    void expect(int shards) {
+        pendingShards.set(shards);
+    }
+
+    /**
+     * The slurper of {@code shard} has read the entries written during the
+     * import, up to {@code position}.
+     */
+    void caughtUp(String shard, Timestamp<?> position) {
+        logger.info("Oplog of {} on {} caught up at {}", definition.getMongoOplogNamespace(), shard, position);
+        catchUpTimestamps.put(shard, position);
+    }
+
+    /**
+     * The indexer has checkpointed {@code shard} at {@code timestamp}.
+     */
+    void checkpointed(String shard, Timestamp<?> timestamp) {
+        Timestamp<?> position = catchUpTimestamps.get(shard);
+        if (position == null || Timestamp.compare(timestamp, position) < 0 || !catchUpTimestamps.remove(shard, position)) {
+            return;
+        }
+        int pending = pendingShards.decrementAndGet();
+        logger.info("Oplog of {} on {} indexed - waiting for {} more shards", definition.getMongoOplogNamespace(), shard,
+                Math.max(0, pending));
+        if (pending == 0) {
+            end();
+        }
+    }
+
+    /**
+     * Restore the settings captured by {@link #begin()}, then force merge
+     * the index if requested.
+     */
+    synchronized void end() {
+        if (restore() && definition.isBulkLoadForceMerge()) {
+            final int maxNumSegments = definition.getBulkLoadMaxNumSegments();
+            logger.info("Force merge {} down to {} segments", definition.getIndexName(), maxNumSegments);
+            esClient.admin().indices().prepareOptimize(definition.getIndexName()).setMaxNumSegments(maxNumSegments)
+                    .execute(new ActionListener<OptimizeResponse>() {
+                        @Override
+                        public void onResponse(OptimizeResponse response) {
+                            logger.info("Force merge of {} done", definition.getIndexName());
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.warn("Force merge of {} failed", e, definition.getIndexName());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Restore the settings captured by {@link #begin()}.
+     *
+     * @return false if there was nothing to restore
+     */
+    synchronized boolean restore() {
+        if (!isActive()) {
+            return false;
+        }
+        String index = definition.getIndexName();
+        ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+        Object refreshInterval = originalSettings.get(REFRESH_INTERVAL_SETTING);
+        settings.put(REFRESH_INTERVAL_SETTING, refreshInterval != null ? refreshInterval.toString() : DEFAULT_REFRESH_INTERVAL);
+        Object replicas = originalSettings.get(NUMBER_OF_REPLICAS_SETTING);
+        if (replicas != null) {
+            settings.put(NUMBER_OF_REPLICAS_SETTING, replicas.toString());
+        }
+        logger.info("Bulk load of {} done - restore {}", index, settings.internalMap());
+        esClient.admin().indices().prepareUpdateSettings(index).setSettings(settings).get();
+        esClient.prepareDelete(definition.getRiverIndexName(), definition.getRiverName(), BULK_LOAD_ID).get();
+        originalSettings = null;
+        return true;
+    }
+
+}
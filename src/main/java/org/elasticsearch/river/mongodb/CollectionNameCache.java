@@ -0,0 +1,87 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Set;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+/**
+ * Collection names by database, for the operations that really need to
+ * enumerate the collections. Commands seen in the oplog that create, drop or
+ * rename a collection invalidate the database.
+ */
+class CollectionNameCache {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(CollectionNameCache.class.getName());
+
+    private static final String CREATE_COMMAND = "create";
+
+    private final Cache<String, Set<String>> names = CacheBuilder.newBuilder().build();
+
+    Set<String> get(DB db) {
+        Set<String> collections = names.getIfPresent(db.getName());
+        if (collections == null) {
+            collections = ImmutableSet.copyOf(db.getCollectionNames());
+            logger.debug("Collections of {}: {}", db.getName(), collections);
+            names.put(db.getName(), collections);
+        }
+        return collections;
+    }
+
+    /**
+     * Forget the databases whose collections are changed by an oplog entry.
+     * A dropDatabase command is left to the caller, which needs the names
+     * as they were before the drop.
+     */
+    void invalidate(DBObject entry) {
+        Object namespaceValue = entry.get(MongoDBRiver.OPLOG_NAMESPACE);
+        Object object = entry.get(MongoDBRiver.OPLOG_OBJECT);
+        if (namespaceValue == null || !(object instanceof DBObject)) {
+            return;
+        }
+        String namespace = namespaceValue.toString();
+        DBObject command = (DBObject) object;
+        int dot = namespace.indexOf('.');
+        if (dot < 0) {
+            return;
+        }
+        String db = namespace.substring(0, dot);
+        String collection = namespace.substring(dot + 1);
+
+        if (collection.equals(PrimaryKeyCache.SYSTEM_INDEXES)) {
+            // First index of a collection created by an insert (MongoDB 2.x, TokuMX)
+            invalidate(db);
+        } else if (collection.equals(MongoDBRiver.OPLOG_NAMESPACE_COMMAND)) {
+            if (command.containsField(CREATE_COMMAND) || command.containsField(MongoDBRiver.OPLOG_DROP_COMMAND_OPERATION)) {
+                invalidate(db);
+            }
+            if (command.containsField(MongoDBRiver.OPLOG_RENAME_COLLECTION_COMMAND_OPERATION)) {
+                invalidate(databaseOf(command.get(MongoDBRiver.OPLOG_RENAME_COLLECTION_COMMAND_OPERATION)));
+                invalidate(databaseOf(command.get(MongoDBRiver.OPLOG_TO)));
+            }
+        }
+    }
+
+    void invalidate(String db) {
+        if (db != null && names.getIfPresent(db) != null) {
+            logger.debug("Invalidate collections of {}", db);
+            names.invalidate(db);
+        }
+    }
+
+    private static String databaseOf(Object namespace) {
+        if (namespace == null) {
+            return null;
+        }
+        String value = namespace.toString();
+        int dot = value.indexOf('.');
+        return dot < 0 ? value : value.substring(0, dot);
+    }
+
+}
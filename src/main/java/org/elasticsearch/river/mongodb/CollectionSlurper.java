@@ -1,30 +1,45 @@
 package org.elasticsearch.river.mongodb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.bson.BasicBSONEncoder;
 import org.bson.BasicBSONObject;
-import org.bson.types.ObjectId;
+import org.bson.types.BSONTimestamp;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableList;
-import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
-import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
 import com.google.common.base.Preconditions;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
 import com.mongodb.MongoInterruptedException;
 import com.mongodb.MongoSocketException;
 import com.mongodb.MongoTimeoutException;
 import com.mongodb.QueryOperators;
+import com.mongodb.ReadPreference;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
@@ -32,6 +47,10 @@ import com.mongodb.gridfs.GridFSFile;
 class CollectionSlurper {
 
     private static final ESLogger logger = ESLoggerFactory.getLogger(CollectionSlurper.class.getName());
+    private static final long PROGRESS_LOG_INTERVAL = 100000;
+    private static final long SECONDARY_POLL_MILLIS = 1000;
+    private static final String REPL_SET_GET_STATUS_COMMAND = "replSetGetStatus";
+    private static final int SECONDARY_STATE = 2;
 
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
@@ -39,6 +58,8 @@ class CollectionSlurper {
     private final MongoClient mongoClient;
     private final DB slurpedDb;
     private final AtomicLong totalDocuments = new AtomicLong();
+    // Read preference of the import cursors: the initial import one once the secondaries are recent enough
+    private volatile ReadPreference readPreference;
 
     public CollectionSlurper(MongoClient mongoClient, MongoDBRiverDefinition definition, SharedContext context, Client esClient) {
         this.definition = definition;
@@ -64,13 +85,9 @@ class CollectionSlurper {
                         esClient, definition.getRiverName(), Status.INITIAL_IMPORT_FAILED);
                 return;
             }
+            readPreference = awaitSecondaries(timestamp);
             if (definition.isImportAllCollections()) {
-                for (String name : slurpedDb.getCollectionNames()) {
-                    if (name.length() < 7 || !name.substring(0, 7).equals("system.")) {
-                        DBCollection collection = slurpedDb.getCollection(name);
-                        importCollection(collection, timestamp);
-                    }
-                }
+                importAllCollections(timestamp);
             } else {
                 DBCollection collection = slurpedDb.getCollection(definition.getMongoCollection());
                 importCollection(collection, timestamp);
@@ -98,6 +115,81 @@ class CollectionSlurper {
         }
     }
 
+    /**
+     * Import all the collections of the database, several at a time, largest
+     * first so a big collection does not end up running alone at the end.
+     *
+     * @param timestamp the timestamp to record once every collection has been imported
+     */
+    private void importAllCollections(Timestamp<?> timestamp) throws Exception {
+        final List<DBCollection> collections = getCollectionsBySize();
+        int concurrency = Math.max(1, Math.min(definition.getImportAllCollectionsConcurrency(), collections.size()));
+        logger.info("Initial import of {} collections from {} using {} threads", collections.size(), slurpedDb.getName(), concurrency);
+        ExecutorService executor = EsExecutors.newFixed(concurrency, -1,
+                EsExecutors.daemonThreadFactory("mongodb_river_initial_import:" + definition.getIndexName()));
+        final AtomicInteger completed = new AtomicInteger();
+        try {
+            List<Future<Void>> futures = new ArrayList<>(collections.size());
+            for (final DBCollection collection : collections) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // Collections complete in any order so the timestamp is only recorded at the end
+                        importCollection(collection, null);
+                        logger.info("Initial import of {} done - {} of {} collections imported", collection.getFullName(),
+                                completed.incrementAndGet(), collections.size());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (timestamp != null && context.getStatus() == Status.RUNNING) {
+            logger.debug("Initial import of {} completed - add timestamp: {}", slurpedDb.getName(), timestamp);
+            addToStream(Operation.UPDATE_TIMESTAMP, timestamp, new BasicDBObject(), null);
+        }
+    }
+
+    /**
+     * @return the collections to import sorted by decreasing data size as reported by collStats
+     */
+    private List<DBCollection> getCollectionsBySize() {
+        List<DBCollection> collections = new ArrayList<>();
+        final Map<String, Long> sizes = new HashMap<>();
+        for (String name : slurpedDb.getCollectionNames()) {
+            if (name.length() < 7 || !name.substring(0, 7).equals("system.")) {
+                DBCollection collection = slurpedDb.getCollection(name);
+                CommandResult stats = collection.getStats();
+                long size = 0;
+                if (stats.ok() && stats.get("size") instanceof Number) {
+                    size = ((Number) stats.get("size")).longValue();
+                } else {
+                    logger.debug("Cannot get collStats for {}: {}", collection.getFullName(), stats.getErrorMessage());
+                }
+                sizes.put(name, size);
+                collections.add(collection);
+            }
+        }
+        Collections.sort(collections, new Comparator<DBCollection>() {
+            @Override
+            public int compare(DBCollection c1, DBCollection c2) {
+                return Long.compare(sizes.get(c2.getName()), sizes.get(c1.getName()));
+            }
+        });
+        return collections;
+    }
+
     protected boolean isIndexEmpty() {
         return MongoDBRiver.getIndexCount(esClient, definition) == 0;
     }
@@ -116,26 +208,27 @@ class CollectionSlurper {
         // slurpedDb.getCollection(definition.getMongoCollection());
 
         logger.info("MongoDBRiver is beginning initial import of " + collection.getFullName());
+        // The indexer gives the oplog entries of the collection precedence over the imported documents
+        context.getImportingCollections().add(collection.getName());
         boolean inProgress = true;
-        String lastId = null;
+        // Keep the native _id value so a resumed cursor compares within the right BSON type bracket
+        Object lastId = null;
         while (inProgress) {
             DBCursor cursor = null;
             try {
-                if (definition.isDisableIndexRefresh()) {
-                    updateIndexRefresh(definition.getIndexName(), -1L);
-                }
                 if (!definition.isMongoGridFS()) {
                     if (logger.isTraceEnabled()) {
                         // Note: collection.count() is expensive on TokuMX
                         logger.trace("Collection {} - count: {}", collection.getName(), collection.count());
                     }
                     long count = 0;
-                    cursor = collection
-                            .find(getFilterForInitialImport(definition.getMongoCollectionFilter(), lastId))
-                            .sort(new BasicDBObject("_id", 1));
+                    cursor = openCursor(collection, getFilterForInitialImport(definition.getMongoCollectionFilter(), lastId));
                     while (cursor.hasNext() && context.getStatus() == Status.RUNNING) {
                         DBObject object = cursor.next();
                         count++;
+                        if (count % PROGRESS_LOG_INTERVAL == 0) {
+                            logger.info("Initial import of {} in progress - {} documents so far", collection.getFullName(), count);
+                        }
                         if (cursor.hasNext()) {
                           lastId = addInsertToStream(null, applyFieldFilter(object), collection.getName());
                         } else {
@@ -151,11 +244,12 @@ class CollectionSlurper {
                     // possible option: Get the object id list from .fs collection then call GriDFS.findOne
                     GridFS grid = new GridFS(mongoClient.getDB(definition.getMongoDb()), definition.getMongoCollection());
 
-                    cursor = grid.getFileList();
+                    cursor = grid.getFileList(getFilterForInitialImport(new BasicDBObject(), lastId),
+                            new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1));
                     while (cursor.hasNext()) {
                         DBObject object = cursor.next();
                         if (object instanceof GridFSDBFile) {
-                            GridFSDBFile file = grid.findOne(new ObjectId(object.get(MongoDBRiver.MONGODB_ID_FIELD).toString()));
+                            GridFSDBFile file = grid.findOne(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, object.get(MongoDBRiver.MONGODB_ID_FIELD)));
                             if (cursor.hasNext()) {
                               lastId = addInsertToStream(null, file);
                             } else {
@@ -175,14 +269,97 @@ class CollectionSlurper {
                     logger.trace("Closing initial import cursor");
                     cursor.close();
                 }
-                if (definition.isDisableIndexRefresh()) {
-                    updateIndexRefresh(definition.getIndexName(), TimeValue.timeValueSeconds(1));
+            }
+        }
+        if (context.getStatus() == Status.RUNNING) {
+            // Tells the indexer that every document of the collection has been queued
+            context.getImportStream().put(new MongoDBRiver.QueueEntry(null, Operation.UPDATE_TIMESTAMP, new BasicDBObject(),
+                    collection.getName()));
+        }
+    }
+
+    /**
+     * Open the cursor of the initial import. Documents must come back in _id
+     * order so an interrupted import can resume after the last _id queued:
+     * $snapshot walks the _id index, which gives the same guarantee.
+     */
+    private DBCursor openCursor(DBCollection collection, DBObject filter) {
+        DBCursor cursor = collection.find(filter);
+        BasicDBObject idIndex = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1);
+        switch (definition.getInitialImportScan()) {
+        case SNAPSHOT:
+            cursor.snapshot();
+            break;
+        case HINT:
+            cursor.sort(idIndex).hint(idIndex);
+            break;
+        default:
+            cursor.sort(idIndex);
+            break;
+        }
+        if (readPreference != null) {
+            cursor.setReadPreference(readPreference);
+        }
+        return cursor;
+    }
+
+    /**
+     * The oplog is tailed from {@code timestamp}: a secondary must have
+     * applied the writes up to it before the import reads from it. Wait until
+     * every secondary has, or read from the primary when their optimes cannot
+     * be read, on a mongos.
+     *
+     * @return the read preference of the import cursors
+     */
+    private ReadPreference awaitSecondaries(Timestamp<?> timestamp) throws InterruptedException {
+        ReadPreference preference = definition.getInitialImportReadPreference();
+        if (preference == null || !preference.isSlaveOk() || timestamp == null) {
+            return preference;
+        }
+        while (context.getStatus() == Status.RUNNING) {
+            CommandResult status = mongoClient.getDB(MongoDBRiver.MONGODB_ADMIN_DATABASE).command(
+                    new BasicDBObject(REPL_SET_GET_STATUS_COMMAND, 1), ReadPreference.primary());
+            if (!status.ok()) {
+                logger.warn("Cannot read the optime of the secondaries: {}. Initial import reads from the primary.",
+                        status.getErrorMessage());
+                return ReadPreference.primary();
+            }
+            if (isApplied(status, timestamp)) {
+                return preference;
+            }
+            logger.info("Waiting for the secondaries to apply the oplog up to {}", timestamp);
+            Thread.sleep(SECONDARY_POLL_MILLIS);
+        }
+        return preference;
+    }
+
+    private static boolean isApplied(CommandResult status, Timestamp<?> timestamp) {
+        for (Object item : (List<?>) status.get("members")) {
+            DBObject member = (DBObject) item;
+            Object state = member.get("state");
+            if (!(state instanceof Number) || ((Number) state).intValue() != SECONDARY_STATE) {
+                continue;
+            }
+            Object optime = member.get("optime");
+            if (optime instanceof DBObject) {
+                // Replication protocol version 1
+                optime = ((DBObject) optime).get(MongoDBRiver.OPLOG_TIMESTAMP);
+            }
+            if (timestamp instanceof Timestamp.BSON && optime instanceof BSONTimestamp) {
+                if (Timestamp.compare(new Timestamp.BSON((BSONTimestamp) optime), timestamp) < 0) {
+                    return false;
+                }
+            } else {
+                Date optimeDate = (Date) member.get("optimeDate");
+                if (optimeDate == null || optimeDate.getTime() < timestamp.getTime()) {
+                    return false;
                 }
             }
         }
+        return true;
     }
 
-    private BasicDBObject getFilterForInitialImport(BasicDBObject filter, String id) {
+    private BasicDBObject getFilterForInitialImport(BasicDBObject filter, Object id) {
         Preconditions.checkNotNull(filter);
         if (id == null) {
             return filter;
@@ -194,10 +371,6 @@ class CollectionSlurper {
         return new BasicDBObject(QueryOperators.AND, ImmutableList.of(filter, idFilter));
     }
 
-    private void updateIndexRefresh(String name, Object value) {
-        esClient.admin().indices().prepareUpdateSettings(name).setSettings(ImmutableMap.of("index.refresh_interval", value)).get();
-    }
-
     private DBObject applyFieldFilter(DBObject object) {
         if (object instanceof GridFSFile) {
             GridFSFile file = (GridFSFile) object;
@@ -212,19 +385,60 @@ class CollectionSlurper {
         return object;
     }
 
-    private String addInsertToStream(final Timestamp<?> currentTimestamp, final DBObject data) throws InterruptedException {
+    private Object addInsertToStream(final Timestamp<?> currentTimestamp, final DBObject data) throws InterruptedException {
         return addInsertToStream(currentTimestamp, data, definition.getMongoCollection());
     }
 
-    private String addInsertToStream(final Timestamp<?> currentTimestamp, final DBObject data, final String collection)
+    private Object addInsertToStream(final Timestamp<?> currentTimestamp, final DBObject data, final String collection)
             throws InterruptedException {
+        throttle(data);
         totalDocuments.incrementAndGet();
+        context.getMetrics().importedDocuments.inc();
         addToStream(Operation.INSERT, currentTimestamp, data, collection);
         if (data == null) {
             return null;
         } else {
-            return data.containsField(MongoDBRiver.MONGODB_ID_FIELD) ? data.get(MongoDBRiver.MONGODB_ID_FIELD).toString() : null;
+            return data.get(MongoDBRiver.MONGODB_ID_FIELD);
+        }
+    }
+
+    /**
+     * Wait until the import throttle lets one more document through, and
+     * re-evaluate the adaptive rate once per interval.
+     */
+    private void throttle(DBObject data) throws InterruptedException {
+        ImportThrottle throttle = context.getImportThrottle();
+        if (throttle.isAdjustmentDue()) {
+            throttle.adjust(getQueuedOperations());
+        }
+        int size = 0;
+        if (throttle.isBytesLimited() && data != null) {
+            if (data instanceof GridFSFile) {
+                size = (int) Math.min(Integer.MAX_VALUE, ((GridFSFile) data).getLength());
+            } else {
+                size = new BasicBSONEncoder().encode(data).length;
+            }
+        }
+        throttle.acquire(size);
+    }
+
+    /**
+     * @return the number of operations waiting for the MongoDB global lock, 0 if unknown
+     */
+    private int getQueuedOperations() {
+        try {
+            CommandResult serverStatus = mongoClient.getDB(MongoDBRiver.MONGODB_ADMIN_DATABASE).command("serverStatus");
+            Object globalLock = serverStatus.get("globalLock");
+            if (globalLock instanceof DBObject) {
+                Object currentQueue = ((DBObject) globalLock).get("currentQueue");
+                if (currentQueue instanceof DBObject && ((DBObject) currentQueue).get("total") instanceof Number) {
+                    return ((Number) ((DBObject) currentQueue).get("total")).intValue();
+                }
+            }
+        } catch (MongoException e) {
+            logger.debug("Cannot get serverStatus: {}", e.getMessage());
         }
+        return 0;
     }
 
     private void addToStream(final Operation operation, final Timestamp<?> currentTimestamp, final DBObject data, final String collection)
@@ -244,16 +458,16 @@ class CollectionSlurper {
             logger.info("addToStream - Operation.DROP_DATABASE, currentTimestamp [{}], data [{}], collection [{}]",
                     currentTimestamp, data, collection);
             if (definition.isImportAllCollections()) {
-                for (String name : slurpedDb.getCollectionNames()) {
+                for (String name : context.getCollectionNameCache().get(slurpedDb)) {
                     logger.info("addToStream - isImportAllCollections - Operation.DROP_DATABASE, currentTimestamp [{}], data [{}], collection [{}]",
                             currentTimestamp, data, name);
-                    context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, name));
+                    context.getImportStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, name));
                 }
             } else {
-                context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, collection));
+                context.getImportStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, collection));
             }
         } else {
-            context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, operation, data, collection));
+            context.getImportStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, operation, data, collection));
         }
     }
 
@@ -0,0 +1,233 @@
+package org.elasticsearch.river.mongodb;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.MongoException;
+
+/**
+ * Inlines the documents referenced by the DBRefs of an indexed document.
+ *
+ * A DBRef is replaced by {@code {id, ref}} and the fields of the referenced
+ * document. References are resolved level by level, up to {@code depth}
+ * levels: each level reads the documents it misses with one {@code $in}
+ * query per referenced collection, for all the documents resolved together.
+ * Referenced documents, and the ids found missing, are kept in a bounded LRU
+ * cache for {@code ttl}: a change of a referenced document shows up in the
+ * documents indexed after it expired, the documents already indexed are not
+ * updated.
+ *
+ * The references are read from the database of the river: the database of a
+ * DBRef is not kept by the oplog entries.
+ */
+class DBRefResolver {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(DBRefResolver.class.getName());
+
+    static final String ID = "id";
+    static final String REF = "ref";
+    // Keep the $in queries well below the maximum BSON document size
+    static final int MAX_IDS_PER_QUERY = 1000;
+    // Cached for the ids without document
+    private static final DBObject MISSING = new BasicDBObject();
+
+    private final DB db;
+    private final int depth;
+    private final DBObject projection;
+    private final RiverMetrics metrics;
+    private final Cache<SimpleEntry<String, Object>, DBObject> cache;
+
+    /**
+     * A DBRef and the document or list holding it.
+     */
+    private static class Slot {
+
+        private final DBObject container;
+        private final String key;
+        private final DBRef ref;
+
+        Slot(DBObject container, String key, DBRef ref) {
+            this.container = container;
+            this.key = key;
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * @param fields
+     *            fields of the referenced documents to inline, null or empty
+     *            for all of them
+     */
+    DBRefResolver(DB db, int depth, Set<String> fields, int cacheSize, TimeValue ttl, RiverMetrics metrics) {
+        this.db = db;
+        this.depth = depth;
+        this.metrics = metrics;
+        if (fields != null && !fields.isEmpty()) {
+            projection = new BasicDBObject();
+            for (String field : fields) {
+                projection.put(field, 1);
+            }
+        } else {
+            projection = null;
+        }
+        this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize).expireAfterWrite(ttl.millis(), MILLISECONDS).build();
+    }
+
+    /**
+     * Replace the DBRefs of the document, and of its sub documents and
+     * arrays, by the documents they reference. DBRefs to missing documents
+     * are left as they are.
+     */
+    void resolve(DBObject document) {
+        resolve(Collections.singletonList(document));
+    }
+
+    /**
+     * Same as {@link #resolve(DBObject)} for several documents, with one
+     * query per referenced collection and level for all of them.
+     */
+    void resolve(List<DBObject> documents) {
+        List<DBObject> level = new ArrayList<DBObject>(documents);
+        for (int i = 0; i < depth && !level.isEmpty(); i++) {
+            List<Slot> slots = new ArrayList<Slot>();
+            for (DBObject object : level) {
+                collect(object, slots);
+            }
+            if (slots.isEmpty()) {
+                return;
+            }
+            Map<SimpleEntry<String, Object>, DBObject> referenced;
+            try {
+                referenced = lookup(slots);
+            } catch (MongoException e) {
+                logger.warn("Cannot resolve DBRefs of {} documents. Indexed unresolved.", e, documents.size());
+                return;
+            }
+            level = new ArrayList<DBObject>();
+            for (Slot slot : slots) {
+                DBObject document = referenced.get(key(slot.ref));
+                if (document == null || document == MISSING) {
+                    continue;
+                }
+                DBObject inlined = inline(slot.ref, document);
+                slot.container.put(slot.key, inlined);
+                level.add(inlined);
+            }
+        }
+    }
+
+    /**
+     * @return the documents with the given ids in the collection, by id
+     */
+    Map<Object, DBObject> find(String collection, Collection<Object> ids) {
+        Map<Object, DBObject> documents = new LinkedHashMap<Object, DBObject>();
+        DBObject query = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(OplogFilter.IN, ids));
+        try (DBCursor cursor = db.getCollection(collection).find(query, projection)) {
+            for (DBObject document : cursor) {
+                documents.put(document.get(MongoDBRiver.MONGODB_ID_FIELD), document);
+            }
+        }
+        return documents;
+    }
+
+    private Map<SimpleEntry<String, Object>, DBObject> lookup(List<Slot> slots) {
+        Map<SimpleEntry<String, Object>, DBObject> documents = new LinkedHashMap<SimpleEntry<String, Object>, DBObject>();
+        Map<String, Set<Object>> misses = new LinkedHashMap<String, Set<Object>>();
+        for (Slot slot : slots) {
+            SimpleEntry<String, Object> key = key(slot.ref);
+            if (documents.containsKey(key)) {
+                continue;
+            }
+            DBObject document = cache.getIfPresent(key);
+            if (document != null) {
+                metrics.dbRefCacheHits.inc();
+                documents.put(key, document);
+                continue;
+            }
+            Set<Object> ids = misses.get(slot.ref.getRef());
+            if (ids == null) {
+                ids = new LinkedHashSet<Object>();
+                misses.put(slot.ref.getRef(), ids);
+            }
+            if (ids.add(slot.ref.getId())) {
+                metrics.dbRefCacheMisses.inc();
+            }
+        }
+        for (Map.Entry<String, Set<Object>> entry : misses.entrySet()) {
+            List<Object> ids = new ArrayList<Object>(entry.getValue());
+            for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+                List<Object> batch = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+                long start = System.currentTimeMillis();
+                Map<Object, DBObject> found = find(entry.getKey(), batch);
+                metrics.dbRefLookupMillis.record(System.currentTimeMillis() - start);
+                for (Object id : batch) {
+                    DBObject document = found.get(id);
+                    SimpleEntry<String, Object> key = new SimpleEntry<String, Object>(entry.getKey(), id);
+                    cache.put(key, document != null ? document : MISSING);
+                    documents.put(key, document != null ? document : MISSING);
+                }
+            }
+        }
+        return documents;
+    }
+
+    private static void collect(DBObject object, List<Slot> slots) {
+        for (String key : object.keySet()) {
+            Object value = object.get(key);
+            if (value instanceof DBRef) {
+                slots.add(new Slot(object, key, (DBRef) value));
+            } else if (value instanceof DBObject) {
+                collect((DBObject) value, slots);
+            }
+        }
+    }
+
+    private static DBObject inline(DBRef ref, DBObject referenced) {
+        // The cached document is shared: the next level changes the copy
+        BasicDBObject inlined = new BasicDBObject();
+        for (String field : referenced.keySet()) {
+            if (!field.equals(MongoDBRiver.MONGODB_ID_FIELD)) {
+                inlined.put(field, copy(referenced.get(field)));
+            }
+        }
+        inlined.put(ID, ref.getId());
+        inlined.put(REF, ref.getRef());
+        return inlined;
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof BasicDBObject) {
+            return ((BasicDBObject) value).copy();
+        }
+        if (value instanceof BasicDBList) {
+            return ((BasicDBList) value).copy();
+        }
+        return value;
+    }
+
+    private static SimpleEntry<String, Object> key(DBRef ref) {
+        return new SimpleEntry<String, Object>(ref.getRef(), ref.getId());
+    }
+
+}
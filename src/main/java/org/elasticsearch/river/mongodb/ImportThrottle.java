@@ -0,0 +1,186 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Rate limiter for the initial import.
+ *
+ * Limits are either static (documents or bytes per second, from the river
+ * definition or the REST API) or adaptive: the document rate is halved while
+ * Elasticsearch bulk latency or the MongoDB global lock queue are above their
+ * thresholds, and grows back by 25% per adjustment once they recover.
+ */
+class ImportThrottle {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(ImportThrottle.class.getName());
+
+    static final long ADJUSTMENT_INTERVAL_MS = 1000;
+    private static final double MIN_ADAPTIVE_RATE = 10;
+    private static final long WAIT_MS = 100;
+
+    private final RateLimiter documentsLimiter = RateLimiter.create(Double.MAX_VALUE);
+    private final RateLimiter bytesLimiter = RateLimiter.create(Double.MAX_VALUE);
+
+    private volatile double maxDocumentsPerSecond;
+    private volatile long maxBytesPerSecond;
+    private volatile TimeValue maxBulkLatency;
+    private volatile int maxQueuedOperations;
+
+    // Adaptive state
+    private volatile double adaptiveRate;
+    private volatile double bulkLatency;
+    private final AtomicLong lastAdjustment = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong documents = new AtomicLong();
+    private long lastRateSample = System.currentTimeMillis();
+
+    /**
+     * @param maxDocumentsPerSecond
+     *            maximum number of documents per second, 0 for no limit
+     * @param maxBytesPerSecond
+     *            maximum number of bytes per second, 0 for no limit
+     */
+    synchronized void setLimits(double maxDocumentsPerSecond, long maxBytesPerSecond) {
+        if (this.maxDocumentsPerSecond != maxDocumentsPerSecond || this.maxBytesPerSecond != maxBytesPerSecond) {
+            logger.info("Initial import throttle set to {} documents/s - {} bytes/s", maxDocumentsPerSecond, maxBytesPerSecond);
+            this.maxDocumentsPerSecond = maxDocumentsPerSecond;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            bytesLimiter.setRate(maxBytesPerSecond > 0 ? maxBytesPerSecond : Double.MAX_VALUE);
+            updateDocumentsRate();
+        }
+    }
+
+    /**
+     * @param maxBulkLatency
+     *            bulk latency above which the import slows down, null to
+     *            disable adaptive throttling
+     * @param maxQueuedOperations
+     *            MongoDB queued operations above which the import slows down
+     */
+    synchronized void setAdaptive(TimeValue maxBulkLatency, int maxQueuedOperations) {
+        this.maxBulkLatency = maxBulkLatency;
+        this.maxQueuedOperations = maxQueuedOperations;
+        if (maxBulkLatency == null) {
+            adaptiveRate = 0;
+            updateDocumentsRate();
+        }
+    }
+
+    double getMaxDocumentsPerSecond() {
+        return maxDocumentsPerSecond;
+    }
+
+    long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    boolean isAdaptive() {
+        return maxBulkLatency != null;
+    }
+
+    boolean isBytesLimited() {
+        return maxBytesPerSecond > 0;
+    }
+
+    /**
+     * @return the documents per second currently allowed, static and adaptive
+     *         limits combined
+     */
+    double getDocumentsRate() {
+        return documentsLimiter.getRate();
+    }
+
+    /**
+     * Block until one more document of {@code size} bytes can be imported.
+     */
+    void acquire(int size) throws InterruptedException {
+        documents.incrementAndGet();
+        acquire(documentsLimiter, 1);
+        if (maxBytesPerSecond > 0 && size > 0) {
+            acquire(bytesLimiter, size);
+        }
+    }
+
+    private static void acquire(RateLimiter limiter, int permits) throws InterruptedException {
+        // RateLimiter#acquire sleeps uninterruptibly, so poll to let the river stop
+        while (!limiter.tryAcquire(permits, WAIT_MS, TimeUnit.MILLISECONDS)) {
+            Thread.sleep(WAIT_MS);
+        }
+    }
+
+    /**
+     * Record the latency of a bulk request sent to Elasticsearch.
+     */
+    void onBulkCompleted(long tookInMillis) {
+        // Exponentially weighted moving average
+        bulkLatency = bulkLatency == 0 ? tookInMillis : 0.7 * bulkLatency + 0.3 * tookInMillis;
+    }
+
+    /**
+     * @return true for a single caller once per adjustment interval, if adaptive throttling is enabled
+     */
+    boolean isAdjustmentDue() {
+        if (!isAdaptive()) {
+            return false;
+        }
+        long last = lastAdjustment.get();
+        long now = System.currentTimeMillis();
+        return now - last >= ADJUSTMENT_INTERVAL_MS && lastAdjustment.compareAndSet(last, now);
+    }
+
+    /**
+     * Adjust the adaptive document rate.
+     *
+     * @param queuedOperations
+     *            operations currently queued on the MongoDB global lock
+     */
+    void adjust(int queuedOperations) {
+        adjust(queuedOperations, System.currentTimeMillis());
+    }
+
+    synchronized void adjust(int queuedOperations, long now) {
+        TimeValue maxLatency = maxBulkLatency;
+        if (maxLatency == null) {
+            return;
+        }
+        double observedRate = documents.getAndSet(0) * 1000.0 / Math.max(1, now - lastRateSample);
+        lastRateSample = now;
+        boolean overloaded = bulkLatency > maxLatency.millis() || (maxQueuedOperations > 0 && queuedOperations > maxQueuedOperations);
+        double rate = adaptiveRate;
+        if (overloaded) {
+            double current = rate > 0 ? Math.min(rate, observedRate) : observedRate;
+            rate = Math.max(MIN_ADAPTIVE_RATE, current / 2);
+            logger.debug("Import overloaded - bulk latency {} ms - MongoDB queue {}. Slow down to {} documents/s", bulkLatency,
+                    queuedOperations, rate);
+        } else if (rate > 0) {
+            rate = rate * 1.25;
+            // Lift the adaptive limit once it no longer holds the import back
+            if ((maxDocumentsPerSecond > 0 && rate >= maxDocumentsPerSecond) || rate > 2 * observedRate) {
+                rate = 0;
+                logger.debug("Import load back to normal. Adaptive throttling lifted");
+            }
+        }
+        if (rate != adaptiveRate) {
+            adaptiveRate = rate;
+            updateDocumentsRate();
+        }
+    }
+
+    private void updateDocumentsRate() {
+        double rate = Double.MAX_VALUE;
+        if (maxDocumentsPerSecond > 0) {
+            rate = maxDocumentsPerSecond;
+        }
+        if (adaptiveRate > 0) {
+            rate = Math.min(rate, adaptiveRate);
+        }
+        documentsLimiter.setRate(rate);
+    }
+
+}
@@ -6,21 +6,31 @@ import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.types.BasicBSONList;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.ParentFieldMapper;
+import org.elasticsearch.index.query.FilterBuilders;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
@@ -28,30 +38,84 @@ import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.DBRef;
+import com.mongodb.MongoException;
+import com.mongodb.QueryOperators;
 import com.mongodb.gridfs.GridFSDBFile;
 
 class Indexer implements Runnable {
 
+    private static final TimeValue CHILDREN_SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final TimeValue DRAIN_TIMEOUT = TimeValue.timeValueSeconds(30);
+    private static final long IDLE_POLL_MILLIS = 10;
+    private static final long IMPORT_VERSION = 1;
+    private static final int MISSING_DOCUMENTS_BATCH = 1000;
+    private static final long MISSING_DOCUMENTS_RETRY_MILLIS = 1000;
+
     private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     private final MongoDBRiver river;
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
     private final Client esClient;
     private final ScriptService scriptService;
-
-    private final Map<SimpleEntry<String, String>, MongoDBRiverBulkProcessor> processors = Maps.newHashMap();
-
-    public Indexer(MongoDBRiver river, MongoDBRiverDefinition definition, SharedContext context, Client esClient, ScriptService scriptService) {
+    private final StatisticsWriter statisticsWriter;
+    private final DBRefResolver dbRefResolver;
+    // Database the documents missing from the index are read again from
+    private final DB slurpedDb;
+    // Failures in a row to read the documents missing from the index, and when to read them again
+    private int missingDocumentsFailures;
+    private long missingDocumentsRetry;
+
+    // Processor of the river index / type, never evicted
+    private MongoDBRiverBulkProcessor defaultProcessor;
+    // Processors of the index / type pairs routed by scripts
+    private final Cache<SimpleEntry<String, String>, MongoDBRiverBulkProcessor> processors;
+    // Parents deleted since their children were last deleted: index / parent type -> id -> routing
+    private final Map<SimpleEntry<String, String>, Map<String, String>> deletedParents = Maps.newHashMap();
+    private int deletedParentCount;
+    // Timestamps processed since the last checkpoint, by shard (null for the initial import)
+    private final Map<String, Timestamp<?>> pendingTimestamps = Maps.newLinkedHashMap();
+    private final StreamLanes lanes;
+    // Shards whose oplog has a drop the slurper has not read past to the head yet
+    private final Set<String> droppedShards = Sets.newHashSet();
+    // Index / type pairs of processors evicted before their alias was swapped
+    private final Set<SimpleEntry<String, String>> evictedSwaps = Sets.newHashSet();
+
+    public Indexer(MongoDBRiver river, MongoDBRiverDefinition definition, SharedContext context, Client esClient, ScriptService scriptService,
+            DBRefResolver dbRefResolver, DB slurpedDb) {
         this.river = river;
         this.definition = definition;
         this.context = context;
         this.esClient = esClient;
         this.scriptService = scriptService;
+        this.dbRefResolver = dbRefResolver;
+        this.slurpedDb = slurpedDb;
+        this.lanes = new StreamLanes(context, definition.getLiveLaneWeight());
+        this.statisticsWriter = definition.isStoreStatistics() ? new StatisticsWriter(definition, esClient) : null;
+        this.processors = CacheBuilder.newBuilder().maximumSize(definition.getBulk().getMaxProcessors())
+                .expireAfterAccess(definition.getBulk().getProcessorIdleTimeout().millis(), MILLISECONDS)
+                .removalListener(new RemovalListener<SimpleEntry<String, String>, MongoDBRiverBulkProcessor>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<SimpleEntry<String, String>, MongoDBRiverBulkProcessor> notification) {
+                        logger.debug("Close bulk processor of index / type {} - {}", notification.getKey(), notification.getCause());
+                        if (notification.getValue().isSwapPending()) {
+                            // The index to swap is kept in the river index: a new processor resumes it
+                            evictedSwaps.add(notification.getKey());
+                        }
+                        notification.getValue().close();
+                    }
+                }).build();
         logger.debug(
                 "Create bulk processor with parameters - bulk actions: {} - concurrent request: {} - flush interval: {} - bulk size: {}",
                 definition.getBulk().getBulkActions(), definition.getBulk().getConcurrentRequests(), definition.getBulk()
@@ -64,23 +128,24 @@ class Indexer implements Runnable {
         while (context.getStatus() == Status.RUNNING) {
 
             try {
-                Timestamp<?> lastTimestamp;
-
                 // 1. Attempt to fill as much of the bulk request as possible
-                QueueEntry entry = context.getStream().take();
-                lastTimestamp = processBlockingQueue(entry);
-                long count = 1;
-                while ((entry = context.getStream().poll(definition.getBulk().getFlushInterval().millis(), MILLISECONDS)) != null) {
-                    lastTimestamp = processEntry(entry);
-                    if(count % 5000 == 0) {
-                        updateTimestamp(lastTimestamp, "processed 5k records");
-                    }
-                    count++;
-                    if(count == 1e20) {
-                        count = 0;
+                QueueEntry entry = nextEntry(true);
+                if (entry == null) {
+                    break;
+                }
+                long count = processEntries(entry);
+                while ((entry = nextEntry(false)) != null) {
+                    long processed = count;
+                    count += processEntries(entry);
+                    if (count / 5000 != processed / 5000) {
+                        updateTimestamps("processed 5k records");
                     }
                 }
-                updateTimestamp(lastTimestamp, "reached end of stream");
+                updateTimestamps("reached end of stream");
+                if (droppedShards.isEmpty() && context.getImportingCollections().isEmpty()) {
+                    swapAliases();
+                }
+                processors.cleanUp();
             } catch (InterruptedException e) {
                 logger.info("river-mongodb indexer interrupted");
                 releaseProcessors();
@@ -88,47 +153,267 @@ class Indexer implements Runnable {
                 break;
             }
         }
+        releaseProcessors();
+        if (statisticsWriter != null) {
+            statisticsWriter.close();
+        }
+    }
+
+    /*
+     * Without wait, give up once both lanes stayed empty for the flush interval
+     */
+    private QueueEntry nextEntry(boolean wait) throws InterruptedException {
+        long timeout = wait ? Math.max(IDLE_POLL_MILLIS, definition.getBulk().getFlushInterval().millis()) : definition.getBulk()
+                .getFlushInterval().millis();
+        do {
+            indexMissingDocuments();
+            QueueEntry entry = lanes.poll(timeout);
+            if (entry != null) {
+                return entry;
+            }
+        } while (wait && context.getStatus() == Status.RUNNING);
+        return null;
+    }
+
+    /*
+     * Process the entry and, with DBRefs to resolve, the entries already queued after it up to a bulk:
+     * their references are read together before any request is built
+     *
+     * @return the number of entries processed
+     */
+    private int processEntries(QueueEntry first) throws InterruptedException {
+        if (dbRefResolver == null) {
+            processEntry(first);
+            return 1;
+        }
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        entries.add(first);
+        QueueEntry entry;
+        while (entries.size() < definition.getBulk().getBulkActions() && (entry = lanes.poll(0)) != null) {
+            entries.add(entry);
+        }
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for (QueueEntry queued : entries) {
+            Operation operation = queued.getOperation();
+            // The slurper reads the post-image of the partial updates setting DBRefs
+            if (!queued.isAttachment()
+                    && (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.UPDATE_ROW)) {
+                documents.add(queued.getData());
+            }
+        }
+        // Before the scripts, which may read the referenced fields
+        dbRefResolver.resolve(documents);
+        for (QueueEntry queued : entries) {
+            processEntry(queued);
+        }
+        return entries.size();
+    }
+
+    /*
+     * A partial update fails on a document not indexed yet: index the current version of the document instead.
+     * The documents are read with one query per collection, again after a delay if MongoDB fails.
+     */
+    private void indexMissingDocuments() {
+        if (context.getMissingDocuments().isEmpty() || System.currentTimeMillis() < missingDocumentsRetry) {
+            return;
+        }
+        Map<String, Set<Object>> ids = Maps.newLinkedHashMap();
+        SimpleEntry<String, Object> missing;
+        while ((missing = context.getMissingDocuments().poll()) != null) {
+            Set<Object> collectionIds = ids.get(missing.getKey());
+            if (collectionIds == null) {
+                collectionIds = Sets.newLinkedHashSet();
+                ids.put(missing.getKey(), collectionIds);
+            }
+            collectionIds.add(missing.getValue());
+        }
+        for (Map.Entry<String, Set<Object>> collectionIds : ids.entrySet()) {
+            String collection = collectionIds.getKey();
+            Set<Object> pending = collectionIds.getValue();
+            try {
+                for (List<Object> batch : Lists.partition(new ArrayList<Object>(pending), MISSING_DOCUMENTS_BATCH)) {
+                    List<DBObject> documents = new ArrayList<DBObject>();
+                    try (DBCursor cursor = slurpedDb.getCollection(collection).find(
+                            new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.IN, batch)))) {
+                        while (cursor.hasNext()) {
+                            DBObject document = cursor.next();
+                            document = MongoDBHelper.applyExcludeFields(document, definition.getExcludeFields());
+                            documents.add(MongoDBHelper.applyIncludeFields(document, definition.getIncludeFields()));
+                        }
+                    }
+                    if (dbRefResolver != null) {
+                        dbRefResolver.resolve(documents);
+                    }
+                    for (DBObject document : documents) {
+                        logger.trace("Index document {} of {} updated before it was indexed", document.get(MongoDBRiver.MONGODB_ID_FIELD),
+                                collection);
+                        processBlockingQueue(new QueueEntry(null, Operation.INSERT, document, collection));
+                    }
+                    // Indexed, or deleted since
+                    pending.removeAll(batch);
+                }
+            } catch (MongoException e) {
+                long delay = Math.min(MongoDBRiver.MONGODB_RETRY_ERROR_DELAY_MS, MISSING_DOCUMENTS_RETRY_MILLIS << missingDocumentsFailures);
+                logger.warn("Cannot read {} documents of {} updated before they were indexed. Will retry in {} ms.", e, pending.size(),
+                        collection, delay);
+                missingDocumentsFailures = Math.min(missingDocumentsFailures + 1, 10);
+                missingDocumentsRetry = System.currentTimeMillis() + delay;
+                requeueMissingDocuments(ids);
+                return;
+            }
+        }
+        missingDocumentsFailures = 0;
     }
 
-    private Timestamp<?> processEntry(QueueEntry entry) {
+    private void requeueMissingDocuments(Map<String, Set<Object>> ids) {
+        for (Map.Entry<String, Set<Object>> collectionIds : ids.entrySet()) {
+            for (Object id : collectionIds.getValue()) {
+                context.getMissingDocuments().add(new SimpleEntry<String, Object>(collectionIds.getKey(), id));
+            }
+        }
+    }
+
+    private void processEntry(QueueEntry entry) {
+        if (lanes.isSuperseded(entry)) {
+            logger.trace("Skip imported document {} of {}: changed by the oplog", entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD),
+                    entry.getCollection());
+            return;
+        }
         Timestamp<?> timestamp = processBlockingQueue(entry);
+        if (timestamp != null) {
+            pendingTimestamps.put(entry.getShard(), timestamp);
+        }
+        if (entry.getOperation() == Operation.DROP_COLLECTION && entry.getShard() != null) {
+            // The indices filled since the drop replace the live ones once the oplog is read up to its head
+            droppedShards.add(entry.getShard());
+        }
         if(entry.getOperation() == Operation.UPDATE_TIMESTAMP) {
-            updateTimestamp(timestamp, "got UPDATE_TIMESTAMP");
-            return null;
-        } else {
-            return timestamp;
+            if (entry.getShard() != null) {
+                // The slurper read the oplog of the shard up to its head
+                droppedShards.remove(entry.getShard());
+            } else if (entry.getCollection() != null) {
+                // Every document of the imported collection is indexed
+                lanes.imported(entry.getCollection());
+            }
+            updateTimestamps("got UPDATE_TIMESTAMP");
         }
     }
 
-    private void updateTimestamp(Timestamp<?> timestamp, String reason) {
-        if(timestamp != null) {
-            logger.debug("Updating timestamp: {} - {}", timestamp, reason);
-            MongoDBRiver.setLastTimestamp(definition, timestamp,
-                    getBulkProcessor(definition.getIndexName(), definition.getTypeName()).getBulkProcessor());
+    /*
+     * Checkpoint each shard at the last entry processed from its oplog
+     */
+    private void updateTimestamps(String reason) {
+        if (pendingTimestamps.isEmpty()) {
+            return;
+        }
+        if (!context.getImportingCollections().isEmpty()) {
+            // The oplog must be read again from here if the river stops before the imports are indexed
+            logger.trace("Keep timestamps {} until the import of {} is indexed - {}", pendingTimestamps, context.getImportingCollections(),
+                    reason);
+            return;
+        }
+        if (!context.getMissingDocuments().isEmpty()) {
+            // The oplog must be read again from here if the river stops before they are indexed
+            logger.debug("Keep timestamps {} until the documents updated before they were indexed are read - {}", pendingTimestamps,
+                    reason);
+            return;
+        }
+        // The checkpoint must cover the children of the deleted parents
+        if (!deleteChildren()) {
+            logger.warn("Keep timestamps {} until the children of the deleted parents are deleted - {}", pendingTimestamps, reason);
+            return;
         }
+        MongoDBRiverBulkProcessor processor = getBulkProcessor(definition.getIndexName(), definition.getTypeName());
+        for (Map.Entry<String, Timestamp<?>> timestamp : pendingTimestamps.entrySet()) {
+            logger.debug("Updating timestamp of shard {}: {} - {}", timestamp.getKey(), timestamp.getValue(), reason);
+            MongoDBRiver.setLastTimestamp(definition, timestamp.getKey(), timestamp.getValue(), processor);
+            context.getMetrics().checkpoint(timestamp.getValue());
+            BulkLoad bulkLoad = river.bulkLoad;
+            if (bulkLoad != null && timestamp.getKey() != null) {
+                bulkLoad.checkpointed(timestamp.getKey(), timestamp.getValue());
+            }
+        }
+        pendingTimestamps.clear();
     }
 
     private MongoDBRiverBulkProcessor getBulkProcessor(String index, String type) {
+        if (index.equals(definition.getIndexName()) && type.equals(definition.getTypeName())) {
+            if (defaultProcessor == null) {
+                defaultProcessor = newBulkProcessor(index, type);
+            }
+            return defaultProcessor;
+        }
         SimpleEntry<String, String> entry = new SimpleEntry<String, String>(index, type);
-        if (!processors.containsKey(entry)) {
-            processors.put(new SimpleEntry<String, String>(index, type), new MongoDBRiverBulkProcessor.Builder(river, definition, esClient,
-                    index, type).build());
+        MongoDBRiverBulkProcessor processor = processors.getIfPresent(entry);
+        if (processor == null) {
+            processor = newBulkProcessor(index, type);
+            processors.put(entry, processor);
+        }
+        return processor;
+    }
+
+    private MongoDBRiverBulkProcessor newBulkProcessor(String index, String type) {
+        return new MongoDBRiverBulkProcessor.Builder(river, definition, esClient, index, type).statisticsWriter(statisticsWriter)
+                .bulkDispatcher(definition.getBulk().isShared() ? river.bulkDispatcherService : null).build();
+    }
+
+    /*
+     * The stream is drained up to the head of the oplogs and no collection is imported:
+     * indices filled since a drop can replace the live ones
+     */
+    private void swapAliases() {
+        // Getting a processor can evict another one
+        List<SimpleEntry<String, String>> evicted = new ArrayList<SimpleEntry<String, String>>(evictedSwaps);
+        evictedSwaps.clear();
+        for (SimpleEntry<String, String> pair : evicted) {
+            getBulkProcessor(pair.getKey(), pair.getValue()).swapAlias();
+        }
+        if (defaultProcessor != null) {
+            defaultProcessor.swapAlias();
+        }
+        for (MongoDBRiverBulkProcessor processor : processors.asMap().values()) {
+            processor.swapAlias();
         }
-        return processors.get(entry);
     }
 
     private void releaseProcessors() {
-        for (MongoDBRiverBulkProcessor processor : processors.values()) {
-            processor.getBulkProcessor().close();
+        deleteChildren();
+        // Indices filled since a drop are swapped by the next river once it catches up
+        // The statistics of the last bulks are recorded before the writer is closed
+        drainProcessors();
+        // The removal listener closes them
+        processors.invalidateAll();
+        if (defaultProcessor != null) {
+            defaultProcessor.close();
+            defaultProcessor = null;
+        }
+    }
+
+    private void drainProcessors() {
+        List<MongoDBRiverBulkProcessor> draining = new ArrayList<MongoDBRiverBulkProcessor>(processors.asMap().values());
+        if (defaultProcessor != null) {
+            draining.add(defaultProcessor);
+        }
+        try {
+            for (MongoDBRiverBulkProcessor processor : draining) {
+                if (!processor.drain(DRAIN_TIMEOUT)) {
+                    logger.warn("Bulks still in flight after {}", DRAIN_TIMEOUT);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        processors.clear();
     }
 
     @SuppressWarnings({ "unchecked" })
     private Timestamp<?> processBlockingQueue(QueueEntry entry) {
         Operation operation = entry.getOperation();
+        if (operation == Operation.UPDATE_TIMESTAMP) {
+            return entry.getOplogTimestamp();
+        }
         if (entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) == null
-                && (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.UPDATE_ROW || operation == Operation.DELETE)) {
+                && (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.UPDATE_ROW || operation == Operation.DELETE
+                        || operation == Operation.PARTIAL_UPDATE)) {
             logger.warn("Cannot get object id. Skip the current item: [{}]", entry.getData());
             return null;
         }
@@ -142,7 +427,7 @@ class Indexer implements Runnable {
         }
         if (operation == Operation.COMMAND) {
             try {
-                updateBulkRequest(entry.getData(), null, operation, definition.getIndexName(), type, null, null);
+                updateBulkRequest(entry.getData(), null, operation, definition.getIndexName(), type, null, null, version(entry));
             } catch (IOException ioEx) {
                 logger.error("Update bulk failed.", ioEx);
             }
@@ -158,13 +443,22 @@ class Indexer implements Runnable {
         // advanced_transformation, include_collection for GridFS?
         if (entry.isAttachment()) {
             try {
-                updateBulkRequest(entry.getData(), objectId, operation, definition.getIndexName(), type, null, null);
+                updateBulkRequest(entry.getData(), objectId, operation, definition.getIndexName(), type, null, null, version(entry));
             } catch (IOException ioEx) {
                 logger.error("Update bulk failed.", ioEx);
             }
             return lastTimestamp;
         }
 
+        if (operation == Operation.PARTIAL_UPDATE) {
+            try {
+                partialUpdateBulkRequest(entry.getData(), objectId, definition.getIndexName(), type, entry.getCollection());
+            } catch (IOException e) {
+                logger.warn("failed to parse {}", e, entry.getData());
+            }
+            return lastTimestamp;
+        }
+
         if (hasScript() && definition.isAdvancedTransformation()) {
             return applyAdvancedTransformation(entry, type);
         }
@@ -195,10 +489,12 @@ class Indexer implements Runnable {
                 try {
                     ExecutableScript executableScript = scriptService.executable(definition.getScriptType(), definition.getScript(),
                             ScriptService.ScriptType.INLINE, ImmutableMap.of("logger", logger));
+                    long start = System.nanoTime();
                     executableScript.setNextVar("ctx", ctx);
                     executableScript.run();
                     // we need to unwrap the context object...
                     ctx = (Map<String, Object>) executableScript.unwrap(ctx);
+                    context.getMetrics().transformMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
                 } catch (Exception e) {
                     logger.warn("failed to script process {}, ignoring", e, ctx);
                     MongoDBRiverHelper.setRiverStatus(esClient, definition.getRiverName(), Status.SCRIPT_IMPORT_FAILED);
@@ -229,7 +525,7 @@ class Indexer implements Runnable {
             String parent = extractParent(ctx);
             String routing = extractRouting(ctx);
             objectId = extractObjectId(ctx, objectId);
-            updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent);
+            updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent, version(entry));
         } catch (IOException e) {
             logger.warn("failed to parse {}", e, entry.getData());
         }
@@ -237,7 +533,7 @@ class Indexer implements Runnable {
     }
 
     private void updateBulkRequest(DBObject data, String objectId, Operation operation, String index, String type, String routing,
-            String parent) throws IOException {
+            String parent, long version) throws IOException {
         if (logger.isTraceEnabled()) {
             logger.trace("Operation: {} - index: {} - type: {} - routing: {} - parent: {}", operation, index, type, routing, parent);
         }
@@ -248,23 +544,29 @@ class Indexer implements Runnable {
             return;
         }
 
+        if (parent != null || operation == Operation.DROP_COLLECTION) {
+            // A child written after its parent was deleted must not be deleted by the cascade
+            deleteChildren();
+        }
+
         if (operation == Operation.INSERT) {
             if (logger.isTraceEnabled()) {
                 logger.trace("Insert operation - id: {} - contains attachment: {}", objectId, (data instanceof GridFSDBFile));
             }
-            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent, version);
         }
         // UPDATE = DELETE + INSERT operation
         if (operation == Operation.UPDATE || operation == Operation.UPDATE_ROW) {
             if (logger.isTraceEnabled()) {
                 logger.trace("Update operation - id: {} - contains attachment: {}", objectId, (data instanceof GridFSDBFile));
             }
-            deleteBulkRequest(objectId, index, type, routing, parent);
-            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+            // The delete must not be newer than the insert
+            deleteBulkRequest(objectId, index, type, routing, parent, version == Versions.MATCH_ANY ? version : version - 1);
+            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent, version);
         }
         if (operation == Operation.DELETE) {
             logger.trace("Delete request [{}], [{}], [{}]", index, type, objectId);
-            deleteBulkRequest(objectId, index, type, routing, parent);
+            deleteBulkRequest(objectId, index, type, routing, parent, version);
         }
         if (operation == Operation.DROP_COLLECTION) {
             if (definition.isDropCollection()) {
@@ -276,24 +578,125 @@ class Indexer implements Runnable {
         }
     }
 
+    /*
+     * Apply the modifiers of an oplog update to the indexed document
+     */
+    private void partialUpdateBulkRequest(DBObject data, String objectId, String index, String type, String collection)
+            throws IOException {
+        PartialUpdate update = PartialUpdate.of(data, definition.isPartialUpdateScripts());
+        if (update == null) {
+            logger.warn("Cannot translate update of id [{}]: {}", objectId, data);
+            return;
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Partial update operation - id: {} - script: {}", objectId, update.isScript());
+        }
+        if (update.isScript()) {
+            // Plain values only: the parameters are serialized with the request
+            XContentBuilder params = XContentFactory.jsonBuilder().map(createObjectMap(new BasicDBObject(update.getParams())));
+            getBulkProcessor(index, type).updateBulkRequest(objectId, PartialUpdate.SCRIPT,
+                    XContentHelper.convertToMap(params.bytes(), false).v2(), collection, data.get(MongoDBRiver.MONGODB_ID_FIELD));
+        } else {
+            getBulkProcessor(index, type).updateBulkRequest(objectId, createObjectMap(update.getDoc()), collection,
+                    data.get(MongoDBRiver.MONGODB_ID_FIELD));
+        }
+    }
+
     /*
      * Delete children when parent / child is used
      */
-    private void deleteBulkRequest(String objectId, String index, String type, String routing, String parent) {
+    private void deleteBulkRequest(String objectId, String index, String type, String routing, String parent, long version) {
         if (logger.isTraceEnabled()) {
             logger.trace("bulkDeleteRequest - objectId: {} - index: {} - type: {} - routing: {} - parent: {}", objectId, index, type,
                     routing, parent);
         }
 
         if (definition.getParentTypes() != null && definition.getParentTypes().contains(type)) {
-            QueryBuilder builder = QueryBuilders.hasParentQuery(type, QueryBuilders.termQuery(MongoDBRiver.MONGODB_ID_FIELD, objectId));
-            SearchResponse response = esClient.prepareSearch(index).setQuery(builder).setRouting(routing)
-                    .addField(MongoDBRiver.MONGODB_ID_FIELD).execute().actionGet();
-            for (SearchHit hit : response.getHits().getHits()) {
-                getBulkProcessor(index, hit.getType()).deleteBulkRequest(hit.getId(), routing, objectId);
+            SimpleEntry<String, String> key = new SimpleEntry<String, String>(index, type);
+            Map<String, String> parents = deletedParents.get(key);
+            if (parents == null) {
+                parents = Maps.newHashMap();
+                deletedParents.put(key, parents);
+            }
+            parents.put(objectId, routing);
+            if (++deletedParentCount >= definition.getBulk().getBulkActions()) {
+                deleteChildren();
+            }
+        }
+        getBulkProcessor(index, type).deleteBulkRequest(objectId, routing, parent, version);
+    }
+
+    /*
+     * External version of the writes of an entry: the position of its oplog entry. Imported documents get the lowest
+     * version, older than any oplog entry: a document changed since is never overwritten by the import.
+     */
+    private long version(QueueEntry entry) {
+        if (!definition.isExternalVersion()) {
+            return Versions.MATCH_ANY;
+        }
+        if (entry.getShard() == null || entry.getOplogTimestamp() == null) {
+            return IMPORT_VERSION;
+        }
+        return entry.getOplogTimestamp().getVersion();
+    }
+
+    /*
+     * Delete the children of the parents deleted since the last call: one
+     * scroll per index / parent type, matching the _parent field so it does
+     * not depend on the parents still being searchable. The parents whose
+     * children could not be deleted are kept for the next call.
+     *
+     * @return false if some children could not be deleted
+     */
+    private boolean deleteChildren() {
+        if (deletedParents.isEmpty()) {
+            return true;
+        }
+        boolean deleted = true;
+        Iterator<Map.Entry<SimpleEntry<String, String>, Map<String, String>>> iterator = deletedParents.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SimpleEntry<String, String>, Map<String, String>> entry = iterator.next();
+            String index = entry.getKey().getKey();
+            String parentType = entry.getKey().getValue();
+            Map<String, String> parents = entry.getValue();
+            List<String> uids = new ArrayList<String>(parents.size());
+            for (String id : parents.keySet()) {
+                uids.add(Uid.createUid(parentType, id));
+            }
+            String scrollId = null;
+            int children = 0;
+            try {
+                SearchResponse response = esClient.prepareSearch(index).setSearchType(SearchType.SCAN).setScroll(CHILDREN_SCROLL_KEEP_ALIVE)
+                        .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+                                FilterBuilders.termsFilter(ParentFieldMapper.NAME, uids)))
+                        .setSize(definition.getBulk().getBulkActions()).addField(ParentFieldMapper.NAME).get();
+                scrollId = response.getScrollId();
+                while (true) {
+                    response = esClient.prepareSearchScroll(scrollId).setScroll(CHILDREN_SCROLL_KEEP_ALIVE).get();
+                    scrollId = response.getScrollId();
+                    if (response.getHits().getHits().length == 0) {
+                        break;
+                    }
+                    for (SearchHit hit : response.getHits().getHits()) {
+                        SearchHitField field = hit.field(ParentFieldMapper.NAME);
+                        String parentId = field != null ? field.getValue().toString() : null;
+                        getBulkProcessor(index, hit.getType()).deleteBulkRequest(hit.getId(), parents.get(parentId), parentId);
+                        children++;
+                    }
+                }
+                logger.trace("Deleted {} children of {} parents of type [{}] in [{}]", children, parents.size(), parentType, index);
+                iterator.remove();
+            } catch (Exception e) {
+                logger.warn("Failed to delete the children of {} parents of type [{}] in [{}]", e, parents.size(), parentType, index);
+                deleted = false;
+            } finally {
+                if (scrollId != null) {
+                    esClient.prepareClearScroll().addScrollId(scrollId).execute();
+                }
             }
         }
-        getBulkProcessor(index, type).deleteBulkRequest(objectId, routing, parent);
+        deletedParentCount = 0;
+        return deleted;
     }
 
     @SuppressWarnings("unchecked")
@@ -344,10 +747,12 @@ class Indexer implements Runnable {
                         logger.trace("Script to be executed: {} - {}", definition.getScriptType(), definition.getScript());
                         logger.trace("Context before script executed: {}", ctx);
                     }
+                    long start = System.nanoTime();
                     executableScript.setNextVar("ctx", ctx);
                     executableScript.run();
                     // we need to unwrap the context object...
                     ctx = (Map<String, Object>) executableScript.unwrap(ctx);
+                    context.getMetrics().transformMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
                 } catch (Exception e) {
                     logger.error("failed to script process {}, ignoring", e, ctx);
                     MongoDBRiverHelper.setRiverStatus(esClient, definition.getRiverName(), Status.SCRIPT_IMPORT_FAILED);
@@ -384,7 +789,8 @@ class Indexer implements Runnable {
                                 continue;
                             }
                             try {
-                                updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent);
+                                updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent,
+                                        version(entry));
                             } catch (IOException ioEx) {
                                 logger.error("Update bulk failed.", ioEx);
                             }
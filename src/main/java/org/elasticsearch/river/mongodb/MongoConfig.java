@@ -6,6 +6,9 @@ import com.mongodb.ServerAddress;
 
 public class MongoConfig {
 
+    // Name of the only shard of a replica set or a standalone server
+    public static final String UNSHARDED = "unsharded";
+
     private boolean isMongos;
     private final List<Shard> shards;
     
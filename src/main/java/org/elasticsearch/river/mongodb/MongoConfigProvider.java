@@ -135,7 +135,7 @@ public class MongoConfigProvider implements Callable<MongoConfig> {
         } else {
             List<ServerAddress> servers = clusterClient.getServerAddressList();
             Timestamp<?> latestOplogTimestamp = getCurrentOplogTimestamp(clusterClient);
-            shards.add(new Shard("unsharded", servers, latestOplogTimestamp));
+            shards.add(new Shard(MongoConfig.UNSHARDED, servers, latestOplogTimestamp));
             return shards;
         }
     }
@@ -21,17 +21,19 @@ package org.elasticsearch.river.mongodb;
 import static org.elasticsearch.client.Requests.indexRequest;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedTransferQueue;
 
 import org.elasticsearch.ExceptionsHelper;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.common.collect.Lists;
@@ -40,6 +42,7 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
@@ -50,11 +53,16 @@ import org.elasticsearch.river.mongodb.MongoConfig.Shard;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.SearchHit;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoSocketException;
 import com.mongodb.MongoTimeoutException;
+import com.mongodb.QueryOperators;
 import com.mongodb.ServerAddress;
 import com.mongodb.gridfs.GridFSDBFile;
 
@@ -72,6 +80,8 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     public static final String NAME = "mongodb-river";
     public static final String STATUS_ID = "_riverstatus";
     public static final String STATUS_FIELD = "status";
+    public static final String THROTTLE_ID = "_riverthrottle";
+    public static final String STATS_ID = "_riverstats";
     public static final String DESCRIPTION = "MongoDB River Plugin";
     public static final String LAST_TIMESTAMP_FIELD = "_last_ts";
     public static final String LAST_GTID_FIELD = "_last_gtid";
@@ -111,6 +121,8 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     public static final String INSERTION_ORDER_KEY = "$natural";
 
     static final int MONGODB_RETRY_ERROR_DELAY_MS = 10_000;
+    // Upper bound of the shard checkpoints read at once
+    static final int MAX_SHARDS = 1000;
     private static final ESLogger logger = ESLoggerFactory.getLogger(MongoDBRiver.class.getName());
 
     protected MongoDBRiverDefinition definition;
@@ -122,14 +134,20 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     protected volatile Thread startupThread;
     protected volatile Thread indexerThread;
     protected volatile Thread statusThread;
+    protected volatile Thread oplogLagThread;
+    protected volatile BulkLoad bulkLoad;
     private final MongoClientService mongoClientService;
+    protected final BulkDispatcherService bulkDispatcherService;
+    protected final OplogTailerService oplogTailerService;
+    private SpillQueue spillQueue;
 
     protected RiverSettings settings;
     private String riverIndexName;
 
     @Inject
     public MongoDBRiver(RiverName riverName, RiverSettings settings, @RiverIndexName String riverIndexName,
-            Client esClient, ScriptService scriptService, MongoClientService mongoClientService) {
+            Client esClient, ScriptService scriptService, MongoClientService mongoClientService,
+            BulkDispatcherService bulkDispatcherService, OplogTailerService oplogTailerService) {
         super(riverName, settings);
         if (logger.isTraceEnabled()) {
             logger.trace("Initializing river : [{}]", riverName.getName());
@@ -138,13 +156,31 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         this.esClient = esClient;
         this.scriptService = scriptService;
         this.mongoClientService = mongoClientService;
+        this.bulkDispatcherService = bulkDispatcherService;
+        this.oplogTailerService = oplogTailerService;
         this.riverIndexName = riverIndexName;
         updateDefinition(true);
 
-        BlockingQueue<QueueEntry> stream = definition.getThrottleSize() == -1 ? new LinkedTransferQueue<QueueEntry>()
-                : new ArrayBlockingQueue<QueueEntry>(definition.getThrottleSize());
+        BlockingQueue<QueueEntry> stream;
+        if (definition.getThrottleSize() == -1) {
+            if (definition.isSpill()) {
+                logger.warn("Spill ignored: the stream is not bounded (throttle_size -1)");
+            }
+            stream = new LinkedTransferQueue<QueueEntry>();
+        } else if (definition.isSpill()) {
+            // One directory per river: the spill queue deletes the segments it finds
+            File directory = new File(definition.getSpillPath() != null ? new File(definition.getSpillPath()) : new File(
+                    System.getProperty("java.io.tmpdir"), "mongodb-river-spill"), riverName.getName());
+            stream = spillQueue = new SpillQueue(definition.getThrottleSize(), directory, definition.getSpillMaxSize().bytes(),
+                    definition.getSpillSegmentSize().bytes());
+        } else {
+            stream = new ArrayBlockingQueue<QueueEntry>(definition.getThrottleSize());
+        }
 
-        this.context = new SharedContext(stream, Status.STOPPED);
+        // Imported documents wait in their own lane: they never delay the oplog entries
+        BlockingQueue<QueueEntry> importStream = definition.getThrottleSize() == -1 ? new LinkedTransferQueue<QueueEntry>()
+                : new ArrayBlockingQueue<QueueEntry>(definition.getThrottleSize());
+        this.context = new SharedContext(stream, importStream, Status.STOPPED);
     }
 
     @Override
@@ -177,6 +213,9 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         statusThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "mongodb_river_status:" + definition.getIndexName()).newThread(
                 new StatusChecker(this, definition, context));
         statusThread.start();
+        oplogLagThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "mongodb_river_oplog_lag:" + definition.getIndexName())
+                .newThread(new OplogLagSampler(definition, context));
+        oplogLagThread.start();
     }
 
     /**
@@ -211,7 +250,11 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                     // Create the index if it does not exist
                     try {
                         if (!esClient.admin().indices().prepareExists(definition.getIndexName()).get().isExists()) {
-                            esClient.admin().indices().prepareCreate(definition.getIndexName()).get();
+                            if (definition.getDropCollectionStrategy() == MongoDBRiverDefinition.DropCollectionStrategy.ALIAS) {
+                                AliasSwap.createIndex(esClient, definition.getIndexName());
+                            } else {
+                                esClient.admin().indices().prepareCreate(definition.getIndexName()).get();
+                            }
                         }
                     } catch (Exception e) {
                         if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
@@ -283,13 +326,26 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                     // All good, mark the context as "running" now: this
                     // status value is used as termination condition for the threads we're going to start now.
                     context.setStatus(Status.RUNNING);
-
+                    // Imports interrupted by a previous stop are started again from the oplog
+                    context.getImportingCollections().clear();
+
+                    DBRefResolver dbRefResolver = null;
+                    if (definition.isResolveDbRefs()) {
+                        dbRefResolver = new DBRefResolver(mongoClusterClient.getDB(definition.getMongoDb()), definition.getResolveDbRefsDepth(),
+                                definition.getResolveDbRefsFields(), definition.getDbRefCacheSize(), definition.getDbRefCacheTtl(),
+                                context.getMetrics());
+                    }
                     indexerThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "mongodb_river_indexer:" + definition.getIndexName()).newThread(
-                            new Indexer(MongoDBRiver.this, definition, context, esClient, scriptService));
+                            new Indexer(MongoDBRiver.this, definition, context, esClient, scriptService, dbRefResolver,
+                                    mongoClusterClient.getDB(definition.getMongoDb())));
                     indexerThread.start();
 
+                    BulkLoad bulkLoad = new BulkLoad(definition, esClient);
+                    MongoDBRiver.this.bulkLoad = bulkLoad;
+
                     // Import in main thread to block tailing the oplog
                     Timestamp slurperStartTimestamp = getLastProcessedTimestamp();
+                    boolean imported = false;
                     if (slurperStartTimestamp != null) {
                         logger.trace("Initial import already completed.");
                         // Start from where we last left of
@@ -305,20 +361,44 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                                 initialImportTimestamp = shard.getLatestOplogTimestamp();
                             }
                         }
+                        bulkLoad.begin();
                         CollectionSlurper importer = new CollectionSlurper(mongoClusterClient, definition, context, esClient);
                         importer.importInitial(initialImportTimestamp);
                         // Start slurping from the shard's oplog time
                         slurperStartTimestamp = null;
+                        imported = true;
+                    }
+
+                    // Settings from an interrupted import are restored too
+                    if (bulkLoad.isActive()) {
+                        bulkLoad.expect(config.getShards().size());
+                    } else {
+                        bulkLoad = null;
+                        MongoDBRiver.this.bulkLoad = null;
                     }
 
                     // Tail the oplog
                     // NB: In a non-mongos environment the config will report a single shard, with the servers used for the connection as the replicas.
                     for (Shard shard : config.getShards()) {
-                        Timestamp shardSlurperStartTimestamp = slurperStartTimestamp != null ? slurperStartTimestamp : shard.getLatestOplogTimestamp();
                         MongoClient mongoClient = mongoClientService.getMongoShardClient(definition, shard.getReplicas());
+                        // Each shard resumes from its own checkpoint
+                        Timestamp shardSlurperStartTimestamp = imported ? null : getLastTimestamp(esClient, definition, shard.getName());
+                        if (shardSlurperStartTimestamp == null) {
+                            shardSlurperStartTimestamp = slurperStartTimestamp != null ? slurperStartTimestamp : shard.getLatestOplogTimestamp();
+                        }
+                        if (!getTimestampId(definition, shard.getName()).equals(definition.getMongoOplogNamespace())
+                                && (imported || getShardTimestamp(esClient, definition, shard.getName()) == null)) {
+                            // The namespace checkpoint is not an entry of this oplog: an idle shard must not resume from it
+                            if (!imported && !shardSlurperStartTimestamp.equals(definition.getInitialTimestamp())) {
+                                shardSlurperStartTimestamp = getOplogPosition(mongoClient, shardSlurperStartTimestamp);
+                            }
+                            seedTimestamp(esClient, definition, shard.getName(), shardSlurperStartTimestamp);
+                        }
+                        logger.debug("Tail oplog of shard {} from {}", shard.getName(), shardSlurperStartTimestamp);
                         Thread tailerThread = EsExecutors.daemonThreadFactory(
                                 settings.globalSettings(), "mongodb_river_slurper_" + shard.getName() + ":" + definition.getIndexName()
-                            ).newThread(new OplogSlurper(shardSlurperStartTimestamp, mongoClusterClient, mongoClient, definition, context, esClient));
+                            ).newThread(new OplogSlurper(shard.getName(), shardSlurperStartTimestamp, mongoClusterClient, mongoClient, definition, context, esClient, bulkLoad,
+                                definition.isSharedOplog() ? oplogTailerService : null));
                         tailerThreads.add(tailerThread);
                     }
 
@@ -362,6 +442,11 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                 indexerThread.interrupt();
                 indexerThread = null;
             }
+            if (bulkLoad != null) {
+                // Do not leave the index without refresh and replicas while the river is stopped
+                bulkLoad.restore();
+                bulkLoad = null;
+            }
             logger.info("Stopped river {}", riverName.getName());
         } catch (Throwable t) {
             logger.error("Failed to stop river {}", t, riverName.getName());
@@ -379,9 +464,17 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
             statusThread.interrupt();
             statusThread = null;
         }
+        if (oplogLagThread != null) {
+            oplogLagThread.interrupt();
+            oplogLagThread = null;
+        }
 
         // Cleanup the other parts (the status thread is gone, and can't do that for us anymore)
         internalStopRiver();
+
+        if (spillQueue != null) {
+            spillQueue.close();
+        }
     }
 
     protected Timestamp<?> getLastProcessedTimestamp() {
@@ -409,48 +502,146 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     /**
      * Get the latest timestamp for a given namespace.
      */
-    @SuppressWarnings("unchecked")
     public static Timestamp<?> getLastTimestamp(Client client, MongoDBRiverDefinition definition) {
 
         client.admin().indices().prepareRefresh(definition.getRiverIndexName()).get();
 
-        GetResponse lastTimestampResponse = client.prepareGet(definition.getRiverIndexName(), definition.getRiverName(),
-                definition.getMongoOplogNamespace()).get();
+        return readTimestamp(client, definition, definition.getMongoOplogNamespace(), definition.getInitialTimestamp());
+    }
 
-        if (lastTimestampResponse.isExists()) {
-            Map<String, Object> mongodbState = (Map<String, Object>) lastTimestampResponse.getSourceAsMap().get(TYPE);
-            if (mongodbState != null) {
-                Timestamp<?> lastTimestamp = Timestamp.on(mongodbState);
-                if (lastTimestamp != null) {
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("{} last timestamp: {}", definition.getMongoOplogNamespace(), lastTimestamp);
-                    }
-                    return lastTimestamp;
-                }
+    /**
+     * Get the latest timestamp of a shard for a given namespace. Falls back
+     * to the timestamp of the namespace, written before the checkpoints were
+     * kept per shard.
+     */
+    public static Timestamp<?> getLastTimestamp(Client client, MongoDBRiverDefinition definition, String shard) {
+        String id = getTimestampId(definition, shard);
+        if (id.equals(definition.getMongoOplogNamespace())) {
+            return getLastTimestamp(client, definition);
+        }
+        Timestamp<?> lastTimestamp = getShardTimestamp(client, definition, shard);
+        if (lastTimestamp != null) {
+            return lastTimestamp;
+        }
+        return readTimestamp(client, definition, definition.getMongoOplogNamespace(), definition.getInitialTimestamp());
+    }
+
+    /**
+     * Get the checkpoint of a shard, without falling back to the timestamp
+     * of the namespace.
+     */
+    static Timestamp<?> getShardTimestamp(Client client, MongoDBRiverDefinition definition, String shard) {
+        client.admin().indices().prepareRefresh(definition.getRiverIndexName()).get();
+        return readTimestamp(client, definition, getTimestampId(definition, shard), null);
+    }
+
+    /**
+     * Get the checkpoints of the shards, by shard. Empty for unsharded
+     * deployments and for checkpoints written before they were kept per
+     * shard.
+     */
+    public static Map<String, Timestamp<?>> getShardTimestamps(Client client, MongoDBRiverDefinition definition) {
+        Map<String, Timestamp<?>> timestamps = new TreeMap<String, Timestamp<?>>();
+        if (!client.admin().indices().prepareExists(definition.getRiverIndexName()).get().isExists()) {
+            return timestamps;
+        }
+        client.admin().indices().prepareRefresh(definition.getRiverIndexName()).get();
+        String prefix = definition.getMongoOplogNamespace() + "/";
+        SearchResponse response = client.prepareSearch(definition.getRiverIndexName()).setTypes(definition.getRiverName())
+                .setQuery(QueryBuilders.prefixQuery(MONGODB_ID_FIELD, prefix)).setSize(MAX_SHARDS).get();
+        for (SearchHit hit : response.getHits().hits()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> mongodbState = (Map<String, Object>) hit.getSource().get(TYPE);
+            Timestamp<?> timestamp = mongodbState != null ? Timestamp.on(mongodbState) : null;
+            if (hit.getId().startsWith(prefix) && timestamp != null) {
+                timestamps.put(hit.getId().substring(prefix.length()), timestamp);
             }
-        } else {
-            if (definition.getInitialTimestamp() != null) {
-                return definition.getInitialTimestamp();
+        }
+        return timestamps;
+    }
+
+    /**
+     * Write the checkpoint a shard starts from, before any of its entries
+     * is indexed.
+     */
+    private static void seedTimestamp(Client client, MongoDBRiverDefinition definition, String shard, Timestamp<?> time)
+            throws IOException {
+        logger.debug("Seed checkpoint of shard {} at {}", shard, time);
+        client.prepareIndex(definition.getRiverIndexName(), definition.getRiverName(), getTimestampId(definition, shard))
+                .setSource(source(time)).get();
+    }
+
+    /**
+     * @return the last entry of the oplog read by {@code client} up to
+     *         {@code time}, or {@code time} if there is none
+     */
+    private static Timestamp<?> getOplogPosition(MongoClient client, Timestamp<?> time) {
+        DBCollection oplogCollection = client.getDB(MONGODB_LOCAL_DATABASE).getCollection(OPLOG_COLLECTION);
+        try (DBCursor cursor = oplogCollection.find(time.getOplogFilter(QueryOperators.LTE))
+                .sort(new BasicDBObject(INSERTION_ORDER_KEY, -1)).limit(1)) {
+            return cursor.hasNext() ? Timestamp.on(cursor.next()) : time;
+        }
+    }
+
+    /**
+     * @param missing
+     *            returned if there is no timestamp document
+     */
+    @SuppressWarnings("unchecked")
+    private static Timestamp<?> readTimestamp(Client client, MongoDBRiverDefinition definition, String id, Timestamp<?> missing) {
+        GetResponse lastTimestampResponse = client.prepareGet(definition.getRiverIndexName(), definition.getRiverName(), id).get();
+        if (!lastTimestampResponse.isExists()) {
+            return missing;
+        }
+        Map<String, Object> mongodbState = (Map<String, Object>) lastTimestampResponse.getSourceAsMap().get(TYPE);
+        if (mongodbState != null) {
+            Timestamp<?> lastTimestamp = Timestamp.on(mongodbState);
+            if (lastTimestamp != null) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("{} last timestamp: {}", id, lastTimestamp);
+                }
+                return lastTimestamp;
             }
         }
         return null;
     }
 
+    /**
+     * @return the id of the timestamp document of a shard: the namespace for
+     *         the initial import and unsharded deployments
+     */
+    static String getTimestampId(MongoDBRiverDefinition definition, String shard) {
+        if (shard == null || shard.equals(MongoConfig.UNSHARDED)) {
+            return definition.getMongoOplogNamespace();
+        }
+        return definition.getMongoOplogNamespace() + "/" + shard;
+    }
+
     /**
      * Adds an index request operation to a bulk request, updating the last
      * timestamp for a given namespace (ie: host:dbName.collectionName)
      * 
      * @param bulk
      */
-    static void setLastTimestamp(final MongoDBRiverDefinition definition, final Timestamp<?> time, final BulkProcessor bulkProcessor) {
+    static void setLastTimestamp(final MongoDBRiverDefinition definition, final Timestamp<?> time,
+            final MongoDBRiverBulkProcessor bulkProcessor) {
+        setLastTimestamp(definition, null, time, bulkProcessor);
+    }
+
+    /**
+     * Same as {@link #setLastTimestamp(MongoDBRiverDefinition, Timestamp, MongoDBRiverBulkProcessor)}
+     * for the oplog of a shard
+     */
+    static void setLastTimestamp(final MongoDBRiverDefinition definition, final String shard, final Timestamp<?> time,
+            final MongoDBRiverBulkProcessor bulkProcessor) {
+        String id = getTimestampId(definition, shard);
         try {
             if (logger.isTraceEnabled()) {
-                logger.trace("setLastTimestamp [{}] [{}] [{}]", definition.getRiverName(), definition.getMongoOplogNamespace(), time);
+                logger.trace("setLastTimestamp [{}] [{}] [{}]", definition.getRiverName(), id, time);
             }
-            bulkProcessor.add(indexRequest(definition.getRiverIndexName()).type(definition.getRiverName())
-                    .id(definition.getMongoOplogNamespace()).source(source(time)));
+            bulkProcessor.add(indexRequest(definition.getRiverIndexName()).type(definition.getRiverName()).id(id).source(source(time)));
         } catch (IOException e) {
-            logger.error("error updating last timestamp for namespace {}", definition.getMongoOplogNamespace());
+            logger.error("error updating last timestamp for namespace {}", id);
         }
     }
 
@@ -530,16 +721,22 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         private final Operation operation;
         private final Timestamp<?> oplogTimestamp;
         private final String collection;
+        private final String shard;
 
         public QueueEntry(DBObject data, String collection) {
             this(null, Operation.INSERT, data, collection);
         }
 
         public QueueEntry(Timestamp<?> oplogTimestamp, Operation oplogOperation, DBObject data, String collection) {
+            this(null, oplogTimestamp, oplogOperation, data, collection);
+        }
+
+        public QueueEntry(String shard, Timestamp<?> oplogTimestamp, Operation oplogOperation, DBObject data, String collection) {
             this.data = data;
             this.operation = oplogOperation;
             this.oplogTimestamp = oplogTimestamp;
             this.collection = collection;
+            this.shard = shard;
         }
 
         public boolean isAttachment() {
@@ -561,6 +758,13 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         public String getCollection() {
             return collection;
         }
+
+        /**
+         * @return the shard whose oplog holds the entry, null for the initial import
+         */
+        public String getShard() {
+            return shard;
+        }
     }
 
 }
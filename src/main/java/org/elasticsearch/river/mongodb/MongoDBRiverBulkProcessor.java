@@ -4,13 +4,11 @@ import static org.elasticsearch.client.Requests.deleteRequest;
 import static org.elasticsearch.client.Requests.indexRequest;
 
 import java.io.IOException;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -21,41 +19,66 @@ import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
 import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
 import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkProcessor.Listener;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
-import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
+import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.threadpool.ThreadPool.Info;
 import org.elasticsearch.threadpool.ThreadPoolStats.Stats;
 
 public class MongoDBRiverBulkProcessor {
 
     public static final long DEFAULT_BULK_QUEUE_SIZE = 50;
-    public static final Map<String, Boolean> DROP_INDEX = ImmutableMap.of("dropIndex", Boolean.TRUE);
+    // Partial updates racing with another bulk on the same document
+    private static final int UPDATE_RETRY_ON_CONFLICT = 3;
+    private static final String UPDATE_OP_TYPE = "update";
+    // Collection and MongoDB id of the document of an update request
+    private static final String MONGODB_DOCUMENT_CONTEXT = "mongodb_document";
+    // Longest wait for the bulks in flight before a drop or an alias swap
+    private static final TimeValue IN_FLIGHT_TIMEOUT = TimeValue.timeValueMinutes(1);
     private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     private final MongoDBRiver river;
     private final MongoDBRiverDefinition definition;
     private final Client client;
+    // One of the two, depending on bulk.shared
     private final BulkProcessor bulkProcessor;
+    private final BulkDispatcherService.Channel channel;
     private final String index;
     private final String type;
+    private final StatisticsWriter statisticsWriter;
+    private final AliasSwap aliasSwap;
 
-    private final AtomicBoolean flushBulkProcessor = new AtomicBoolean();
+    // Execution ids of the bulk requests of the own bulk processor sent but not acknowledged yet
+    private final Set<Long> inFlightBulks = Sets.newHashSet();
+    // Requests added to the shared channel since the bulk queue was last checked
+    private int channelActions;
     private final AtomicInteger deletedDocuments = new AtomicInteger();
     private final AtomicInteger insertedDocuments = new AtomicInteger();
     private final AtomicInteger updatedDocuments = new AtomicInteger();
     private final AtomicLong documentCount = new AtomicLong();
-    private final static Semaphore semaphore = new Semaphore(1);
+    // Rivers of the same node writing to the same index / type must not drop it concurrently
+    private final static ConcurrentMap<String, Object> dropLocks = Maps.newConcurrentMap();
 
     private final long bulkQueueSize;
     
@@ -66,6 +89,8 @@ public class MongoDBRiverBulkProcessor {
         private final Client client;
         private String index;
         private String type;
+        private StatisticsWriter statisticsWriter;
+        private BulkDispatcherService bulkDispatcher;
 
         public Builder(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type) {
             this.river = river;
@@ -75,78 +100,69 @@ public class MongoDBRiverBulkProcessor {
             this.type = type;
         }
 
+        public Builder statisticsWriter(StatisticsWriter statisticsWriter) {
+            this.statisticsWriter = statisticsWriter;
+            return this;
+        }
+
+        public Builder bulkDispatcher(BulkDispatcherService bulkDispatcher) {
+            this.bulkDispatcher = bulkDispatcher;
+            return this;
+        }
+
         public MongoDBRiverBulkProcessor build() {
-            return new MongoDBRiverBulkProcessor(river, definition, client, index, type);
+            return new MongoDBRiverBulkProcessor(river, definition, client, index, type, statisticsWriter, bulkDispatcher);
         }
     }
 
     private final BulkProcessor.Listener listener = new Listener() {
 
+        /*
+         * Not called for a shared channel
+         */
         @Override
         public void beforeBulk(long executionId, BulkRequest request) {
+            // Counted first: afterBulk follows a failure of the check too
+            synchronized (inFlightBulks) {
+                inFlightBulks.add(executionId);
+            }
             checkBulkProcessorAvailability();
             logger.trace("beforeBulk - new bulk [{}] of items [{}]", executionId, request.numberOfActions());
-            if (flushBulkProcessor.get()) {
-                logger.trace("About to flush bulk request index[{}] - type[{}]", index, type);
-                int dropDollectionIndex = findLastDropCollection(request.requests());
-                request.requests().subList(0, dropDollectionIndex + 1).clear();
-                try {
-                    dropRecreateMapping();
-                    deletedDocuments.set(0);
-                    updatedDocuments.set(0);
-                    insertedDocuments.set(0);
-                    flushBulkProcessor.set(false);
-                } catch (Throwable t) {
-                    logger.error("Drop collection operation failed", t);
-                    MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
-                    request.requests().clear();
-                    bulkProcessor.close();
-                    river.close();
-                }
-            }
-        }
-
-        @SuppressWarnings("rawtypes")
-        private int findLastDropCollection(List<ActionRequest> request) {
-            int index = 0;
-            for (int i = 0; i < request.size(); i++) {
-                ActionRequest<?> action = request.get(i);
-                if (action instanceof IndexRequest) {
-                    Map<String, Object> source = ((IndexRequest) action).sourceAsMap();
-                    if (source.equals(DROP_INDEX)) {
-                        index = i;
-                    }
-                }
-            }
-            return index;
         }
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            bulkCompleted(executionId);
             if (failure.getClass().equals(ActionRequestValidationException.class)) {
                 if (logger.isTraceEnabled()) {
                     logger.trace("Ignore ActionRequestValidationException : {}", failure);
                 }
             } else {
                 logger.error("afterBulk - Bulk request failed: {} - {} - {}", executionId, request, failure);
+                river.context.getMetrics().bulkFailures.inc();
                 MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
                 request.requests().clear();
-                bulkProcessor.close();
+                close();
                 river.close();
             }
         }
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
-            if (response.hasFailures()) {
+            bulkCompleted(executionId);
+            if (response.hasFailures() && !isIgnorableFailures(request, response)) {
                 logger.error("Bulk processor failed. {}", response.buildFailureMessage());
+                river.context.getMetrics().bulkFailures.inc();
                 MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
                 request.requests().clear();
-                bulkProcessor.close();
+                close();
                 river.close();
             } else {
                 documentCount.addAndGet(response.getItems().length);
-                logStatistics(response.getTookInMillis());
+                river.context.getImportThrottle().onBulkCompleted(response.getTookInMillis());
+                river.context.getMetrics().bulkLatencyMillis.record(response.getTookInMillis());
+                river.context.getMetrics().bulkSize.record(response.getItems().length);
+                logStatistics(response.getTookInMillis(), response.getItems().length);
                 deletedDocuments.set(0);
                 updatedDocuments.set(0);
                 insertedDocuments.set(0);
@@ -158,48 +174,267 @@ public class MongoDBRiverBulkProcessor {
         }
     };
 
-    MongoDBRiverBulkProcessor(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type) {
+    MongoDBRiverBulkProcessor(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type,
+            StatisticsWriter statisticsWriter, BulkDispatcherService bulkDispatcher) {
         this.river = river;
-        this.bulkProcessor = BulkProcessor.builder(client, listener).setBulkActions(definition.getBulk().getBulkActions())
-                .setConcurrentRequests(definition.getBulk().getConcurrentRequests())
-                .setFlushInterval(definition.getBulk().getFlushInterval()).setBulkSize(definition.getBulk().getBulkSize()).build();
+        if (bulkDispatcher != null) {
+            this.bulkProcessor = null;
+            this.channel = bulkDispatcher.register(definition.getRiverName() + "/" + index + "/" + type, listener, definition.getBulk()
+                    .getBulkActions());
+        } else {
+            this.bulkProcessor = BulkProcessor.builder(client, listener).setBulkActions(definition.getBulk().getBulkActions())
+                    .setConcurrentRequests(definition.getBulk().getConcurrentRequests())
+                    .setFlushInterval(definition.getBulk().getFlushInterval()).setBulkSize(definition.getBulk().getBulkSize()).build();
+            this.channel = null;
+        }
         this.definition = definition;
         this.client = client;
         this.index = index;
         this.type = type;
+        this.statisticsWriter = statisticsWriter;
+        this.aliasSwap = definition.getDropCollectionStrategy() == MongoDBRiverDefinition.DropCollectionStrategy.ALIAS ? new AliasSwap(
+                client, definition, index, type) : null;
         this.bulkQueueSize = getBulkQueueSize();
     }
 
+    /**
+     * Drop and recreate the mapping as a barrier in the indexing pipeline:
+     * send the pending requests, wait up to a minute for the bulks in
+     * flight, then drop. The caller must not add requests meanwhile.
+     */
     public void dropIndex() {
-        addBulkRequest(null, DROP_INDEX, null, null);
-        flushBulkProcessor.set(true);
+        logger.trace("About to flush bulk request index[{}] - type[{}]", index, type);
+        try {
+            awaitInFlightBulks();
+        } catch (InterruptedException e) {
+            // Leave it to the indexer loop to stop
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            dropRecreateMapping();
+            deletedDocuments.set(0);
+            updatedDocuments.set(0);
+            insertedDocuments.set(0);
+        } catch (Throwable t) {
+            logger.error("Drop collection operation failed", t);
+            MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
+            close();
+            river.close();
+        }
+    }
+
+    /**
+     * @return true if an index filled since a drop waits for the alias
+     */
+    public boolean isSwapPending() {
+        return aliasSwap != null && aliasSwap.isPending();
+    }
+
+    /**
+     * Move the alias to the index filled since the last drop, if any. The
+     * caller must not add requests meanwhile.
+     */
+    public void swapAlias() {
+        if (!isSwapPending()) {
+            return;
+        }
+        try {
+            awaitInFlightBulks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            synchronized (getDropLock(index, type)) {
+                aliasSwap.swap();
+            }
+        } catch (Throwable t) {
+            logger.error("Alias swap of index[{}] - type[{}] failed", t, index, type);
+        }
+    }
+
+    /**
+     * Send the pending requests and wait up to {@code timeout} for the bulks
+     * in flight, so their responses are handled before the processor is
+     * closed.
+     *
+     * @return false if bulks are still in flight
+     */
+    public boolean drain(TimeValue timeout) throws InterruptedException {
+        flush();
+        if (channel != null) {
+            return channel.awaitInFlight(Math.max(1, timeout.millis()));
+        }
+        long deadline = System.currentTimeMillis() + timeout.millis();
+        synchronized (inFlightBulks) {
+            long remaining;
+            while (!inFlightBulks.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                inFlightBulks.wait(remaining);
+            }
+            return inFlightBulks.isEmpty();
+        }
+    }
+
+    private String getWriteIndex() {
+        return aliasSwap != null ? aliasSwap.getWriteIndex() : index;
+    }
+
+    private void bulkCompleted(long executionId) {
+        synchronized (inFlightBulks) {
+            inFlightBulks.remove(executionId);
+            inFlightBulks.notifyAll();
+        }
+    }
+
+    /*
+     * A bulk never answered must not hold the drop forever: its requests may
+     * then be applied after it
+     */
+    private void awaitInFlightBulks() throws InterruptedException {
+        if (!drain(IN_FLIGHT_TIMEOUT)) {
+            logger.warn("Bulks of index[{}] - type[{}] still in flight after {}. Go on without them.", index, type, IN_FLIGHT_TIMEOUT);
+        }
+    }
+
+    /**
+     * With external versions a write older than the indexed document fails
+     * with a version conflict: the document is already up to date. A
+     * partial update fails if the document is not indexed yet, its insert may
+     * still be in another bulk, or was deleted: the indexer reads the document
+     * from MongoDB again.
+     */
+    private boolean isIgnorableFailures(BulkRequest request, BulkResponse response) {
+        int conflicts = 0;
+        int missing = 0;
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                continue;
+            }
+            if (definition.isExternalVersion() && item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                conflicts++;
+            } else if (isMissingDocument(item)) {
+                missing++;
+            } else {
+                return false;
+            }
+        }
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed() && isMissingDocument(item)) {
+                SimpleEntry<String, Object> document = request.requests().get(item.getItemId())
+                        .getFromContext(MONGODB_DOCUMENT_CONTEXT);
+                if (document != null) {
+                    river.context.getMissingDocuments().add(document);
+                }
+            }
+        }
+        logger.trace("Skipped {} writes older than the indexed documents, read again {} updated documents missing from the index",
+                conflicts, missing);
+        river.context.getMetrics().versionConflicts.inc(conflicts);
+        river.context.getMetrics().missingDocuments.inc(missing);
+        return true;
+    }
+
+    /*
+     * An update of a document missing from the index, not of a missing index
+     */
+    private static boolean isMissingDocument(BulkItemResponse item) {
+        return UPDATE_OP_TYPE.equals(item.getOpType()) && item.getFailure().getStatus() == RestStatus.NOT_FOUND
+                && item.getFailureMessage().contains(DocumentMissingException.class.getSimpleName());
     }
 
     public void addBulkRequest(String id, Map<?, ?> source, String routing, String parent) {
-        bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
+        add(indexRequest(getWriteIndex()).type(type).id(id).source(source).routing(routing).parent(parent));
         insertedDocuments.incrementAndGet();
     }
 
     public void addBulkRequest(String id, XContentBuilder source, String routing, String parent) {
-        bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
+        addBulkRequest(id, source, routing, parent, Versions.MATCH_ANY);
+    }
+
+    /**
+     * @param version external version of the document, or
+     *            {@link Versions#MATCH_ANY} to let Elasticsearch version it
+     */
+    public void addBulkRequest(String id, XContentBuilder source, String routing, String parent, long version) {
+        IndexRequest request = indexRequest(getWriteIndex()).type(type).id(id).source(source).routing(routing).parent(parent);
+        if (version != Versions.MATCH_ANY) {
+            request.version(version).versionType(VersionType.EXTERNAL);
+        }
+        add(request);
         insertedDocuments.incrementAndGet();
     }
 
-    // public void updateBulkRequest(String id, XContentBuilder source, String
-    // routing, String parent) {
-    // deleteBulkRequest(id, routing, parent);
-    // bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
-    // updatedDocuments.incrementAndGet();
-    // }
+    /**
+     * Merge a partial document into the indexed one
+     *
+     * @param collection
+     *            collection of the document, read again if it is not indexed
+     * @param mongoId
+     *            id of the document in MongoDB
+     */
+    public void updateBulkRequest(String id, Map<String, Object> doc, String collection, Object mongoId) {
+        UpdateRequest request = new UpdateRequest(getWriteIndex(), type, id).doc(doc).retryOnConflict(UPDATE_RETRY_ON_CONFLICT);
+        request.putInContext(MONGODB_DOCUMENT_CONTEXT, new SimpleEntry<String, Object>(collection, mongoId));
+        add(request);
+        updatedDocuments.incrementAndGet();
+    }
+
+    /**
+     * Update the indexed document with a Groovy script
+     *
+     * @see #updateBulkRequest(String, Map, String, Object)
+     */
+    public void updateBulkRequest(String id, String script, Map<String, Object> params, String collection, Object mongoId) {
+        UpdateRequest request = new UpdateRequest(getWriteIndex(), type, id).script(script, ScriptService.ScriptType.INLINE, params)
+                .scriptLang("groovy").retryOnConflict(UPDATE_RETRY_ON_CONFLICT);
+        request.putInContext(MONGODB_DOCUMENT_CONTEXT, new SimpleEntry<String, Object>(collection, mongoId));
+        add(request);
+        updatedDocuments.incrementAndGet();
+    }
 
     public void deleteBulkRequest(String id, String routing, String parent) {
-        logger.trace("deleteBulkRequest - id: {} - index: {} - type: {} - routing: {} - parent: {}", id, index, type, routing, parent);
-        bulkProcessor.add(deleteRequest(index).type(type).id(id).routing(routing).parent(parent));
+        deleteBulkRequest(id, routing, parent, Versions.MATCH_ANY);
+    }
+
+    public void deleteBulkRequest(String id, String routing, String parent, long version) {
+        logger.trace("deleteBulkRequest - id: {} - index: {} - type: {} - routing: {} - parent: {} - version: {}", id, index, type,
+                routing, parent, version);
+        DeleteRequest request = deleteRequest(getWriteIndex()).type(type).id(id).routing(routing).parent(parent);
+        if (version != Versions.MATCH_ANY) {
+            request.version(version).versionType(VersionType.EXTERNAL);
+        }
+        add(request);
         deletedDocuments.incrementAndGet();
     }
 
-    public BulkProcessor getBulkProcessor() {
-        return bulkProcessor;
+    void add(ActionRequest<?> request) {
+        if (channel != null) {
+            // Once per bulk, on the thread of the river rather than in the dispatcher shared by the node
+            if (++channelActions >= definition.getBulk().getBulkActions()) {
+                channelActions = 0;
+                checkBulkProcessorAvailability();
+            }
+            channel.add(request);
+        } else {
+            bulkProcessor.add(request);
+        }
+    }
+
+    public void flush() {
+        if (channel != null) {
+            channel.flush();
+        } else {
+            bulkProcessor.flush();
+        }
+    }
+
+    public void close() {
+        if (channel != null) {
+            channel.close();
+        } else {
+            bulkProcessor.close();
+        }
     }
 
     private void checkBulkProcessorAvailability() {
@@ -244,58 +479,78 @@ public class MongoDBRiverBulkProcessor {
         return true;
     }
 
-    private void dropRecreateMapping() throws IOException, InterruptedException {
-        try {
-            semaphore.acquire();
-            logger.trace("dropRecreateMapping index[{}] - type[{}]", index, type);
-            client.admin().indices().prepareRefresh(index).get();
-            ImmutableOpenMap<String, MappingMetaData> mappings = client.admin().cluster().prepareState().get().getState().getMetaData()
-                    .index(index).mappings();
-            logger.trace("mappings contains type {}: {}", type, mappings.containsKey(type));
-            if (mappings.containsKey(type)) {
-                /*
-                 * Issue #105 - Mapping changing from custom mapping to dynamic
-                 * when drop_collection = true Should capture the existing
-                 * mapping metadata (in case it is has been customized before to
-                 * delete.
-                 */
-                MappingMetaData mapping = mappings.get(type);
-                if (client.admin().indices().prepareDeleteMapping(index).setType(type).get().isAcknowledged()) {
-                    PutMappingResponse pmr = client.admin().indices().preparePutMapping(index).setType(type)
-                            .setSource(mapping.getSourceAsMap()).get();
-                    if (!pmr.isAcknowledged()) {
-                        logger.error("Failed to put mapping {} / {} / {}.", index, type, mapping.source());
-                    } else {
-                        logger.info("Delete and recreate for index / type [{}] [{}] successfully executed.", index, type);
-                    }
+    static Object getDropLock(String index, String type) {
+        String key = index + "/" + type;
+        Object lock = dropLocks.get(key);
+        if (lock == null) {
+            Object existing = dropLocks.putIfAbsent(key, lock = new Object());
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
+    private void dropRecreateMapping() throws IOException {
+        synchronized (getDropLock(index, type)) {
+            logger.trace("dropRecreateMapping index[{}] - type[{}] - strategy[{}]", index, type, definition.getDropCollectionStrategy());
+            switch (definition.getDropCollectionStrategy()) {
+            case DELETE_BY_QUERY:
+                deleteByQuery();
+                break;
+            case ALIAS:
+                if (!aliasSwap.drop()) {
+                    deleteByQuery();
+                }
+                break;
+            default:
+                deleteRecreateMapping();
+                break;
+            }
+        }
+    }
+
+    private void deleteByQuery() {
+        DeleteByQueryResponse response = client.prepareDeleteByQuery(getWriteIndex()).setTypes(type).setQuery(QueryBuilders.matchAllQuery())
+                .get();
+        logger.info("Delete by query for index / type [{}] [{}] executed with status {}.", index, type, response.status());
+    }
+
+    private void deleteRecreateMapping() throws IOException {
+        ImmutableOpenMap<String, MappingMetaData> mappings = client.admin().indices().prepareGetMappings(index).setTypes(type).get()
+                .getMappings().get(index);
+        logger.trace("mappings contains type {}: {}", type, mappings != null && mappings.containsKey(type));
+        if (mappings != null && mappings.containsKey(type)) {
+            /*
+             * Issue #105 - Mapping changing from custom mapping to dynamic
+             * when drop_collection = true Should capture the existing
+             * mapping metadata (in case it is has been customized before to
+             * delete.
+             */
+            MappingMetaData mapping = mappings.get(type);
+            if (client.admin().indices().prepareDeleteMapping(index).setType(type).get().isAcknowledged()) {
+                PutMappingResponse pmr = client.admin().indices().preparePutMapping(index).setType(type)
+                        .setSource(mapping.getSourceAsMap()).get();
+                if (!pmr.isAcknowledged()) {
+                    logger.error("Failed to put mapping {} / {} / {}.", index, type, mapping.source());
                 } else {
-                    logger.warn("Delete type[{}] on index[{}] return aknowledge false", type, index);
+                    logger.info("Delete and recreate for index / type [{}] [{}] successfully executed.", index, type);
                 }
             } else {
-                logger.info("type[{}] does not exist in index[{}]. No need to remove mapping.", index, type);
+                logger.warn("Delete type[{}] on index[{}] return aknowledge false", type, index);
             }
-        } finally {
-            semaphore.release();
+        } else {
+            logger.info("type[{}] does not exist in index[{}]. No need to remove mapping.", index, type);
         }
     }
 
-    private void logStatistics(long duration) {
-        if (definition.isStoreStatistics()) {
+    private void logStatistics(long duration, int items) {
+        if (definition.isStoreStatistics() && statisticsWriter != null) {
             long totalDocuments = deletedDocuments.get() + insertedDocuments.get();
             logger.trace("Indexed {} documents: {} insertions, {} updates, {} deletions", totalDocuments, insertedDocuments.get(),
                     updatedDocuments.get(), deletedDocuments.get());
-            Map<String, Object> source = new HashMap<String, Object>();
-            Map<String, Object> statistics = Maps.newHashMap();
-            statistics.put("duration", duration);
-            statistics.put("date", new Date());
-            statistics.put("index", index);
-            statistics.put("type", type);
-            statistics.put("documents.inserted", insertedDocuments.get());
-            statistics.put("documents.updated", updatedDocuments.get());
-            statistics.put("documents.deleted", deletedDocuments.get());
-            statistics.put("documents.total", documentCount.get());
-            source.put("statistics", statistics);
-            client.prepareIndex(definition.getStatisticsIndexName(), definition.getStatisticsTypeName()).setSource(source).get();
+            statisticsWriter.record(index, type, duration, items, insertedDocuments.get(), updatedDocuments.get(), deletedDocuments.get(),
+                    documentCount.get());
         }
     }
 }
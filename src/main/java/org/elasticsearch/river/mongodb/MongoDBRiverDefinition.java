@@ -51,10 +51,24 @@ public class MongoDBRiverDefinition {
     public final static int DEFAULT_BULK_ACTIONS = 1000;
     public final static TimeValue DEFAULT_FLUSH_INTERVAL = TimeValue.timeValueMillis(10);
     public final static ByteSizeValue DEFAULT_BULK_SIZE = new ByteSizeValue(5, ByteSizeUnit.MB);
+    public final static int DEFAULT_MAX_PROCESSORS = 100;
+    public final static TimeValue DEFAULT_PROCESSOR_IDLE_TIMEOUT = TimeValue.timeValueMinutes(10);
     public final static int DEFAULT_CONNECT_TIMEOUT = 30000;
     public final static int DEFAULT_SOCKET_TIMEOUT = 60000;
     public final static int DEFAULT_CONNECTIONS_PER_HOST = 100;
     public final static int DEFAULT_THREADS_ALLOWED_TO_BLOCK_FOR_CONNECTION_MULTIPLIER = 5;
+    public final static int DEFAULT_IMPORT_ALL_COLLECTIONS_CONCURRENCY = 4;
+    public final static int DEFAULT_BULK_LOAD_MAX_NUM_SEGMENTS = 1;
+    public final static TimeValue DEFAULT_OPLOG_LAG_WARNING = TimeValue.timeValueMinutes(5);
+    public final static ByteSizeValue DEFAULT_SPILL_MAX_SIZE = new ByteSizeValue(1, ByteSizeUnit.GB);
+    public final static ByteSizeValue DEFAULT_SPILL_SEGMENT_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+    public final static int DEFAULT_LIVE_LANE_WEIGHT = 4;
+    public final static int DEFAULT_RESOLVE_DBREFS_DEPTH = 1;
+    public final static int DEFAULT_DBREF_CACHE_SIZE = 10000;
+    public final static TimeValue DEFAULT_DBREF_CACHE_TTL = TimeValue.timeValueMinutes(5);
+    public final static TimeValue DEFAULT_STATISTICS_INTERVAL = TimeValue.timeValueSeconds(1);
+    public final static TimeValue DEFAULT_MAX_BULK_LATENCY = TimeValue.timeValueSeconds(1);
+    public final static int DEFAULT_MAX_QUEUED_OPERATIONS = 10;
 
     // fields
     public final static String DB_FIELD = "db";
@@ -69,6 +83,7 @@ public class MongoDBRiverDefinition {
     public final static String SSL_VERIFY_CERT_FIELD = "ssl_verify_certificate";
     public final static String IS_MONGOS_FIELD = "is_mongos";
     public final static String DROP_COLLECTION_FIELD = "drop_collection";
+    public final static String DROP_COLLECTION_STRATEGY_FIELD = "drop_collection_strategy";
     public final static String EXCLUDE_FIELDS_FIELD = "exclude_fields";
     public final static String INCLUDE_FIELDS_FIELD = "include_fields";
     public final static String INCLUDE_COLLECTION_FIELD = "include_collection";
@@ -82,7 +97,35 @@ public class MongoDBRiverDefinition {
     public final static String PARENT_TYPES_FIELD = "parent_types";
     public final static String STORE_STATISTICS_FIELD = "store_statistics";
     public final static String IMPORT_ALL_COLLECTIONS_FIELD = "import_all_collections";
+    public final static String CONCURRENCY_FIELD = "concurrency";
+    public final static String INITIAL_IMPORT_FIELD = "initial_import";
+    public final static String READ_PREFERENCE_FIELD = "read_preference";
+    public final static String READ_PREFERENCE_TAGS_FIELD = "read_preference_tags";
+    public final static String SCAN_FIELD = "scan";
+    public final static String MAX_DOCS_PER_SECOND_FIELD = "max_docs_per_second";
+    public final static String MAX_BYTES_PER_SECOND_FIELD = "max_bytes_per_second";
+    public final static String ADAPTIVE_FIELD = "adaptive";
+    public final static String MAX_BULK_LATENCY_FIELD = "max_bulk_latency";
+    public final static String MAX_QUEUED_OPERATIONS_FIELD = "max_queued_operations";
     public final static String DISABLE_INDEX_REFRESH_FIELD = "disable_index_refresh";
+    public final static String BULK_LOAD_FIELD = "bulk_load";
+    public final static String OPLOG_LAG_WARNING_FIELD = "oplog_lag_warning";
+    public final static String SHARED_OPLOG_FIELD = "shared_oplog";
+    public final static String SPILL_FIELD = "spill";
+    public final static String PATH_FIELD = "path";
+    public final static String MAX_SIZE_FIELD = "max_size";
+    public final static String SEGMENT_SIZE_FIELD = "segment_size";
+    public final static String LIVE_LANE_WEIGHT_FIELD = "live_lane_weight";
+    public final static String EXTERNAL_VERSION_FIELD = "external_version";
+    public final static String PARTIAL_UPDATE_FIELD = "partial_update";
+    public final static String SCRIPTS_FIELD = "scripts";
+    public final static String RESOLVE_DBREFS_FIELD = "resolve_dbrefs";
+    public final static String DEPTH_FIELD = "depth";
+    public final static String FIELDS_FIELD = "fields";
+    public final static String CACHE_SIZE_FIELD = "cache_size";
+    public final static String CACHE_TTL_FIELD = "cache_ttl";
+    public final static String FORCE_MERGE_FIELD = "force_merge";
+    public final static String MAX_NUM_SEGMENTS_FIELD = "max_num_segments";
     public final static String FILTER_FIELD = "filter";
     public final static String CREDENTIALS_FIELD = "credentials";
     public final static String USER_FIELD = "user";
@@ -107,6 +150,10 @@ public class MongoDBRiverDefinition {
     public final static String SIZE_FIELD = "size";
     public final static String CONCURRENT_REQUESTS_FIELD = "concurrent_requests";
     public final static String FLUSH_INTERVAL_FIELD = "flush_interval";
+    public final static String SHARED_FIELD = "shared";
+    public final static String MAX_PROCESSORS_FIELD = "max_processors";
+    public final static String PROCESSOR_IDLE_TIMEOUT_FIELD = "processor_idle_timeout";
+    public final static String STATISTICS_INTERVAL_FIELD = "interval";
 
     // river
     private final String riverName;
@@ -120,6 +167,7 @@ public class MongoDBRiverDefinition {
     private final boolean mongoGridFS;
     private final BasicDBObject mongoOplogFilter;
     private final BasicDBObject mongoCollectionFilter;
+    private final OplogFilter oplogFilter;
     // mongodb.credentials
     private final String mongoAdminUser;
     private final String mongoAdminPassword;
@@ -136,6 +184,7 @@ public class MongoDBRiverDefinition {
     private final boolean mongoUseSSL;
     private final boolean mongoSSLVerifyCertificate;
     private final boolean dropCollection;
+    private final DropCollectionStrategy dropCollectionStrategy;
     private final Boolean isMongos;
     private final Set<String> excludeFields;
     private final Set<String> includeFields;
@@ -149,8 +198,38 @@ public class MongoDBRiverDefinition {
     private final boolean storeStatistics;
     private final String statisticsIndexName;
     private final String statisticsTypeName;
+    private final TimeValue statisticsInterval;
     private final boolean importAllCollections;
+    private final int importAllCollectionsConcurrency;
     private final boolean disableIndexRefresh;
+    private final boolean bulkLoad;
+    private final boolean bulkLoadForceMerge;
+    private final int bulkLoadMaxNumSegments;
+    private final TimeValue oplogLagWarning;
+    private final boolean sharedOplog;
+    private final int liveLaneWeight;
+    private final boolean externalVersion;
+    // mongodb.options.partial_update
+    private final boolean partialUpdate;
+    private final boolean partialUpdateScripts;
+    // mongodb.options.resolve_dbrefs
+    private final boolean resolveDbRefs;
+    private final int resolveDbRefsDepth;
+    private final Set<String> resolveDbRefsFields;
+    private final int dbRefCacheSize;
+    private final TimeValue dbRefCacheTtl;
+    // mongodb.options.spill
+    private final boolean spill;
+    private final String spillPath;
+    private final ByteSizeValue spillMaxSize;
+    private final ByteSizeValue spillSegmentSize;
+    // mongodb.options.initial_import
+    private final ReadPreference initialImportReadPreference;
+    private final InitialImportScan initialImportScan;
+    private final int initialImportMaxDocsPerSecond;
+    private final ByteSizeValue initialImportMaxBytesPerSecond;
+    private final TimeValue initialImportMaxBulkLatency;
+    private final int initialImportMaxQueuedOperations;
     // index
     private final String indexName;
     private final String typeName;
@@ -189,6 +268,7 @@ public class MongoDBRiverDefinition {
         private boolean mongoUseSSL = false;
         private boolean mongoSSLVerifyCertificate = false;
         private boolean dropCollection = false;
+        private DropCollectionStrategy dropCollectionStrategy = DropCollectionStrategy.MAPPING;
         private Boolean isMongos = null;
         private Set<String> excludeFields = null;
         private Set<String> includeFields = null;
@@ -202,8 +282,38 @@ public class MongoDBRiverDefinition {
         private boolean storeStatistics;
         private String statisticsIndexName;
         private String statisticsTypeName;
+        private TimeValue statisticsInterval = DEFAULT_STATISTICS_INTERVAL;
         private boolean importAllCollections;
+        private int importAllCollectionsConcurrency = DEFAULT_IMPORT_ALL_COLLECTIONS_CONCURRENCY;
         private boolean disableIndexRefresh;
+        private boolean bulkLoad;
+        private boolean bulkLoadForceMerge;
+        private int bulkLoadMaxNumSegments = DEFAULT_BULK_LOAD_MAX_NUM_SEGMENTS;
+        private TimeValue oplogLagWarning = DEFAULT_OPLOG_LAG_WARNING;
+        private boolean sharedOplog;
+        private int liveLaneWeight = DEFAULT_LIVE_LANE_WEIGHT;
+        private boolean externalVersion;
+        // mongodb.options.partial_update
+        private boolean partialUpdate;
+        private boolean partialUpdateScripts;
+        // mongodb.options.resolve_dbrefs
+        private boolean resolveDbRefs;
+        private int resolveDbRefsDepth = DEFAULT_RESOLVE_DBREFS_DEPTH;
+        private Set<String> resolveDbRefsFields = null;
+        private int dbRefCacheSize = DEFAULT_DBREF_CACHE_SIZE;
+        private TimeValue dbRefCacheTtl = DEFAULT_DBREF_CACHE_TTL;
+        // mongodb.options.spill
+        private boolean spill;
+        private String spillPath;
+        private ByteSizeValue spillMaxSize = DEFAULT_SPILL_MAX_SIZE;
+        private ByteSizeValue spillSegmentSize = DEFAULT_SPILL_SEGMENT_SIZE;
+        // mongodb.options.initial_import
+        private ReadPreference initialImportReadPreference = null;
+        private InitialImportScan initialImportScan = InitialImportScan.SORT;
+        private int initialImportMaxDocsPerSecond = 0;
+        private ByteSizeValue initialImportMaxBytesPerSecond = null;
+        private TimeValue initialImportMaxBulkLatency = null;
+        private int initialImportMaxQueuedOperations = DEFAULT_MAX_QUEUED_OPERATIONS;
 
         // index
         private String indexName;
@@ -319,6 +429,11 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder dropCollectionStrategy(DropCollectionStrategy dropCollectionStrategy) {
+            this.dropCollectionStrategy = dropCollectionStrategy;
+            return this;
+        }
+
         public Builder isMongos(Boolean isMongos) {
             this.isMongos = isMongos;
             return this;
@@ -344,6 +459,96 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder bulkLoad(boolean bulkLoad) {
+            this.bulkLoad = bulkLoad;
+            return this;
+        }
+
+        public Builder bulkLoadForceMerge(boolean bulkLoadForceMerge) {
+            this.bulkLoadForceMerge = bulkLoadForceMerge;
+            return this;
+        }
+
+        public Builder bulkLoadMaxNumSegments(int bulkLoadMaxNumSegments) {
+            this.bulkLoadMaxNumSegments = bulkLoadMaxNumSegments;
+            return this;
+        }
+
+        public Builder oplogLagWarning(TimeValue oplogLagWarning) {
+            this.oplogLagWarning = oplogLagWarning;
+            return this;
+        }
+
+        public Builder sharedOplog(boolean sharedOplog) {
+            this.sharedOplog = sharedOplog;
+            return this;
+        }
+
+        public Builder liveLaneWeight(int liveLaneWeight) {
+            this.liveLaneWeight = liveLaneWeight;
+            return this;
+        }
+
+        public Builder externalVersion(boolean externalVersion) {
+            this.externalVersion = externalVersion;
+            return this;
+        }
+
+        public Builder partialUpdate(boolean partialUpdate) {
+            this.partialUpdate = partialUpdate;
+            return this;
+        }
+
+        public Builder partialUpdateScripts(boolean partialUpdateScripts) {
+            this.partialUpdateScripts = partialUpdateScripts;
+            return this;
+        }
+
+        public Builder resolveDbRefs(boolean resolveDbRefs) {
+            this.resolveDbRefs = resolveDbRefs;
+            return this;
+        }
+
+        public Builder resolveDbRefsDepth(int resolveDbRefsDepth) {
+            this.resolveDbRefsDepth = resolveDbRefsDepth;
+            return this;
+        }
+
+        public Builder resolveDbRefsFields(Set<String> resolveDbRefsFields) {
+            this.resolveDbRefsFields = resolveDbRefsFields;
+            return this;
+        }
+
+        public Builder dbRefCacheSize(int dbRefCacheSize) {
+            this.dbRefCacheSize = dbRefCacheSize;
+            return this;
+        }
+
+        public Builder dbRefCacheTtl(TimeValue dbRefCacheTtl) {
+            this.dbRefCacheTtl = dbRefCacheTtl;
+            return this;
+        }
+
+        public Builder spill(boolean spill) {
+            this.spill = spill;
+            return this;
+        }
+
+        public Builder spillPath(String spillPath) {
+            this.spillPath = spillPath;
+            return this;
+        }
+
+        public Builder spillMaxSize(ByteSizeValue spillMaxSize) {
+            this.spillMaxSize = spillMaxSize;
+            return this;
+        }
+
+        public Builder spillSegmentSize(ByteSizeValue spillSegmentSize) {
+            this.spillSegmentSize = spillSegmentSize;
+            return this;
+        }
+
         public Builder initialTimestamp(Binary initialTimestamp) {
             this.initialTimestamp = new Timestamp.GTID(initialTimestamp.getData(), null);
             return this;
@@ -384,11 +589,51 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder statisticsInterval(TimeValue statisticsInterval) {
+            this.statisticsInterval = statisticsInterval;
+            return this;
+        }
+
         public Builder importAllCollections(boolean importAllCollections) {
             this.importAllCollections = importAllCollections;
             return this;
         }
 
+        public Builder importAllCollectionsConcurrency(int importAllCollectionsConcurrency) {
+            this.importAllCollectionsConcurrency = importAllCollectionsConcurrency;
+            return this;
+        }
+
+        public Builder initialImportReadPreference(ReadPreference initialImportReadPreference) {
+            this.initialImportReadPreference = initialImportReadPreference;
+            return this;
+        }
+
+        public Builder initialImportScan(InitialImportScan initialImportScan) {
+            this.initialImportScan = initialImportScan;
+            return this;
+        }
+
+        public Builder initialImportMaxDocsPerSecond(int initialImportMaxDocsPerSecond) {
+            this.initialImportMaxDocsPerSecond = initialImportMaxDocsPerSecond;
+            return this;
+        }
+
+        public Builder initialImportMaxBytesPerSecond(ByteSizeValue initialImportMaxBytesPerSecond) {
+            this.initialImportMaxBytesPerSecond = initialImportMaxBytesPerSecond;
+            return this;
+        }
+
+        public Builder initialImportMaxBulkLatency(TimeValue initialImportMaxBulkLatency) {
+            this.initialImportMaxBulkLatency = initialImportMaxBulkLatency;
+            return this;
+        }
+
+        public Builder initialImportMaxQueuedOperations(int initialImportMaxQueuedOperations) {
+            this.initialImportMaxQueuedOperations = initialImportMaxQueuedOperations;
+            return this;
+        }
+
         public Builder script(String script) {
             this.script = script;
             return this;
@@ -434,12 +679,57 @@ public class MongoDBRiverDefinition {
         }
     }
 
+    /**
+     * How the initial import walks a collection.
+     */
+    public static enum InitialImportScan {
+        /** Sort on _id and let the query planner pick the index */
+        SORT,
+        /** Sort on _id and force the _id index, even when a filter matches another index */
+        HINT,
+        /** Use $snapshot so documents moved during the scan are neither missed nor returned twice */
+        SNAPSHOT;
+
+        public static InitialImportScan fromString(String value) {
+            for (InitialImportScan scan : values()) {
+                if (scan.name().equalsIgnoreCase(value)) {
+                    return scan;
+                }
+            }
+            throw new IllegalArgumentException("Unknown initial import scan: " + value);
+        }
+    }
+
+    /**
+     * How the documents of a dropped collection are removed from the index.
+     */
+    public static enum DropCollectionStrategy {
+        /** Delete the mapping of the type and put it back */
+        MAPPING,
+        /** Delete the documents of the type and keep the mapping, cheaper on large indices */
+        DELETE_BY_QUERY,
+        /** Fill a new index and swap the alias of the index name once caught up: readers never see an empty type */
+        ALIAS;
+
+        public static DropCollectionStrategy fromString(String value) {
+            for (DropCollectionStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(value)) {
+                    return strategy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown drop collection strategy: " + value);
+        }
+    }
+
     static class Bulk {
 
         private final int concurrentRequests;
         private final int bulkActions;
         private final ByteSizeValue bulkSize;
         private final TimeValue flushInterval;
+        private final boolean shared;
+        private final int maxProcessors;
+        private final TimeValue processorIdleTimeout;
 
         static class Builder {
 
@@ -447,6 +737,9 @@ public class MongoDBRiverDefinition {
             private int bulkActions = DEFAULT_BULK_ACTIONS;
             private ByteSizeValue bulkSize = DEFAULT_BULK_SIZE;
             private TimeValue flushInterval = DEFAULT_FLUSH_INTERVAL;
+            private boolean shared = false;
+            private int maxProcessors = DEFAULT_MAX_PROCESSORS;
+            private TimeValue processorIdleTimeout = DEFAULT_PROCESSOR_IDLE_TIMEOUT;
 
             public Builder concurrentRequests(int concurrentRequests) {
                 this.concurrentRequests = concurrentRequests;
@@ -468,6 +761,21 @@ public class MongoDBRiverDefinition {
                 return this;
             }
 
+            public Builder shared(boolean shared) {
+                this.shared = shared;
+                return this;
+            }
+
+            public Builder maxProcessors(int maxProcessors) {
+                this.maxProcessors = maxProcessors;
+                return this;
+            }
+
+            public Builder processorIdleTimeout(TimeValue processorIdleTimeout) {
+                this.processorIdleTimeout = processorIdleTimeout;
+                return this;
+            }
+
             /**
              * Builds a new bulk processor.
              */
@@ -481,6 +789,9 @@ public class MongoDBRiverDefinition {
             this.bulkSize = builder.bulkSize;
             this.concurrentRequests = builder.concurrentRequests;
             this.flushInterval = builder.flushInterval;
+            this.shared = builder.shared;
+            this.maxProcessors = builder.maxProcessors;
+            this.processorIdleTimeout = builder.processorIdleTimeout;
         }
 
         public int getConcurrentRequests() {
@@ -499,6 +810,24 @@ public class MongoDBRiverDefinition {
             return flushInterval;
         }
 
+        /*
+         * Send the requests through the node level bulk dispatcher
+         */
+        public boolean isShared() {
+            return shared;
+        }
+
+        /*
+         * Bulk processors kept open for the index / type pairs routed by scripts
+         */
+        public int getMaxProcessors() {
+            return maxProcessors;
+        }
+
+        public TimeValue getProcessorIdleTimeout() {
+            return processorIdleTimeout;
+        }
+
     }
 
     @SuppressWarnings("unchecked")
@@ -562,6 +891,16 @@ public class MongoDBRiverDefinition {
                         DEFAULT_CONNECT_TIMEOUT));
                 builder.socketTimeout(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(SOCKET_TIMEOUT), DEFAULT_SOCKET_TIMEOUT));
                 builder.dropCollection(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(DROP_COLLECTION_FIELD), false));
+                String dropCollectionStrategy = XContentMapValues.nodeStringValue(
+                        mongoOptionsSettings.get(DROP_COLLECTION_STRATEGY_FIELD), null);
+                if (dropCollectionStrategy != null) {
+                    try {
+                        builder.dropCollectionStrategy(DropCollectionStrategy.fromString(dropCollectionStrategy));
+                    } catch (IllegalArgumentException iaEx) {
+                        logger.warn("Invalid drop collection strategy {}. Using {}.", dropCollectionStrategy,
+                                DropCollectionStrategy.MAPPING);
+                    }
+                }
                 String isMongos = XContentMapValues.nodeStringValue(mongoOptionsSettings.get(IS_MONGOS_FIELD), null);
                 if (isMongos != null) {
                     builder.isMongos(Boolean.valueOf(isMongos));
@@ -615,6 +954,8 @@ public class MongoDBRiverDefinition {
                         builder.statisticsIndexName(XContentMapValues.nodeStringValue(storeStatisticsSettings.get(INDEX_OBJECT), riverName
                                 + "-stats"));
                         builder.statisticsTypeName(XContentMapValues.nodeStringValue(storeStatisticsSettings.get(TYPE_FIELD), "stats"));
+                        builder.statisticsInterval(XContentMapValues.nodeTimeValue(storeStatisticsSettings.get(STATISTICS_INTERVAL_FIELD),
+                                DEFAULT_STATISTICS_INTERVAL));
                     } else {
                         builder.storeStatistics(XContentMapValues.nodeBooleanValue(storeStatistics, false));
                         if (builder.storeStatistics) {
@@ -625,9 +966,122 @@ public class MongoDBRiverDefinition {
                 }
                 // builder.storeStatistics(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(STORE_STATISTICS_FIELD),
                 // false));
-                builder.importAllCollections(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(IMPORT_ALL_COLLECTIONS_FIELD),
-                        false));
+                if (mongoOptionsSettings.containsKey(IMPORT_ALL_COLLECTIONS_FIELD)) {
+                    Object importAllCollections = mongoOptionsSettings.get(IMPORT_ALL_COLLECTIONS_FIELD);
+                    if (XContentMapValues.isObject(importAllCollections)) {
+                        Map<String, Object> importAllCollectionsSettings = (Map<String, Object>) importAllCollections;
+                        builder.importAllCollections(true);
+                        builder.importAllCollectionsConcurrency(Math.max(1, XContentMapValues.nodeIntegerValue(
+                                importAllCollectionsSettings.get(CONCURRENCY_FIELD), DEFAULT_IMPORT_ALL_COLLECTIONS_CONCURRENCY)));
+                    } else {
+                        builder.importAllCollections(XContentMapValues.nodeBooleanValue(importAllCollections, false));
+                    }
+                }
                 builder.disableIndexRefresh(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(DISABLE_INDEX_REFRESH_FIELD), false));
+                builder.oplogLagWarning(XContentMapValues.nodeTimeValue(mongoOptionsSettings.get(OPLOG_LAG_WARNING_FIELD),
+                        DEFAULT_OPLOG_LAG_WARNING));
+                builder.sharedOplog(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(SHARED_OPLOG_FIELD), false));
+                builder.liveLaneWeight(Math.max(1, XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(LIVE_LANE_WEIGHT_FIELD),
+                        DEFAULT_LIVE_LANE_WEIGHT)));
+                builder.externalVersion(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(EXTERNAL_VERSION_FIELD), false));
+                if (mongoOptionsSettings.containsKey(BULK_LOAD_FIELD)) {
+                    Object bulkLoad = mongoOptionsSettings.get(BULK_LOAD_FIELD);
+                    if (XContentMapValues.isObject(bulkLoad)) {
+                        Map<String, Object> bulkLoadSettings = (Map<String, Object>) bulkLoad;
+                        builder.bulkLoad(true);
+                        builder.bulkLoadForceMerge(XContentMapValues.nodeBooleanValue(bulkLoadSettings.get(FORCE_MERGE_FIELD), false));
+                        builder.bulkLoadMaxNumSegments(Math.max(1, XContentMapValues.nodeIntegerValue(
+                                bulkLoadSettings.get(MAX_NUM_SEGMENTS_FIELD), DEFAULT_BULK_LOAD_MAX_NUM_SEGMENTS)));
+                    } else {
+                        builder.bulkLoad(XContentMapValues.nodeBooleanValue(bulkLoad, false));
+                    }
+                }
+                if (mongoOptionsSettings.containsKey(PARTIAL_UPDATE_FIELD)) {
+                    Object partialUpdate = mongoOptionsSettings.get(PARTIAL_UPDATE_FIELD);
+                    if (XContentMapValues.isObject(partialUpdate)) {
+                        Map<String, Object> partialUpdateSettings = (Map<String, Object>) partialUpdate;
+                        builder.partialUpdate(true);
+                        builder.partialUpdateScripts(XContentMapValues.nodeBooleanValue(partialUpdateSettings.get(SCRIPTS_FIELD), false));
+                    } else {
+                        builder.partialUpdate(XContentMapValues.nodeBooleanValue(partialUpdate, false));
+                    }
+                }
+                if (mongoOptionsSettings.containsKey(RESOLVE_DBREFS_FIELD)) {
+                    Object resolveDbRefs = mongoOptionsSettings.get(RESOLVE_DBREFS_FIELD);
+                    if (XContentMapValues.isObject(resolveDbRefs)) {
+                        Map<String, Object> resolveDbRefsSettings = (Map<String, Object>) resolveDbRefs;
+                        builder.resolveDbRefs(true);
+                        builder.resolveDbRefsDepth(Math.max(1,
+                                XContentMapValues.nodeIntegerValue(resolveDbRefsSettings.get(DEPTH_FIELD), DEFAULT_RESOLVE_DBREFS_DEPTH)));
+                        Object fieldsSettings = resolveDbRefsSettings.get(FIELDS_FIELD);
+                        if (XContentMapValues.isArray(fieldsSettings)) {
+                            Set<String> fields = new HashSet<String>();
+                            for (Object field : (List<Object>) fieldsSettings) {
+                                fields.add(field.toString());
+                            }
+                            builder.resolveDbRefsFields(fields);
+                        }
+                        builder.dbRefCacheSize(XContentMapValues.nodeIntegerValue(resolveDbRefsSettings.get(CACHE_SIZE_FIELD),
+                                DEFAULT_DBREF_CACHE_SIZE));
+                        builder.dbRefCacheTtl(XContentMapValues.nodeTimeValue(resolveDbRefsSettings.get(CACHE_TTL_FIELD),
+                                DEFAULT_DBREF_CACHE_TTL));
+                    } else {
+                        builder.resolveDbRefs(XContentMapValues.nodeBooleanValue(resolveDbRefs, false));
+                    }
+                }
+                if (mongoOptionsSettings.containsKey(SPILL_FIELD)) {
+                    Object spill = mongoOptionsSettings.get(SPILL_FIELD);
+                    if (XContentMapValues.isObject(spill)) {
+                        Map<String, Object> spillSettings = (Map<String, Object>) spill;
+                        builder.spill(true);
+                        builder.spillPath(XContentMapValues.nodeStringValue(spillSettings.get(PATH_FIELD), null));
+                        builder.spillMaxSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                                spillSettings.get(MAX_SIZE_FIELD), DEFAULT_SPILL_MAX_SIZE.toString())));
+                        builder.spillSegmentSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                                spillSettings.get(SEGMENT_SIZE_FIELD), DEFAULT_SPILL_SEGMENT_SIZE.toString())));
+                    } else {
+                        builder.spill(XContentMapValues.nodeBooleanValue(spill, false));
+                    }
+                }
+                if (mongoOptionsSettings.containsKey(INITIAL_IMPORT_FIELD)) {
+                    Map<String, Object> initialImportSettings = (Map<String, Object>) mongoOptionsSettings.get(INITIAL_IMPORT_FIELD);
+                    String readPreference = XContentMapValues.nodeStringValue(initialImportSettings.get(READ_PREFERENCE_FIELD), null);
+                    if (readPreference != null) {
+                        try {
+                            builder.initialImportReadPreference(getReadPreference(readPreference,
+                                    initialImportSettings.get(READ_PREFERENCE_TAGS_FIELD)));
+                        } catch (IllegalArgumentException iaEx) {
+                            logger.warn("Invalid initial import read preference {}. Using the connection read preference.", iaEx,
+                                    readPreference);
+                        }
+                    }
+                    String scan = XContentMapValues.nodeStringValue(initialImportSettings.get(SCAN_FIELD), null);
+                    if (scan != null) {
+                        try {
+                            builder.initialImportScan(InitialImportScan.fromString(scan));
+                        } catch (IllegalArgumentException iaEx) {
+                            logger.warn("Invalid initial import scan {}. Using {}.", scan, InitialImportScan.SORT);
+                        }
+                    }
+                    builder.initialImportMaxDocsPerSecond(XContentMapValues.nodeIntegerValue(
+                            initialImportSettings.get(MAX_DOCS_PER_SECOND_FIELD), 0));
+                    if (initialImportSettings.containsKey(MAX_BYTES_PER_SECOND_FIELD)) {
+                        builder.initialImportMaxBytesPerSecond(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                                initialImportSettings.get(MAX_BYTES_PER_SECOND_FIELD), null)));
+                    }
+                    if (initialImportSettings.containsKey(ADAPTIVE_FIELD)) {
+                        Object adaptive = initialImportSettings.get(ADAPTIVE_FIELD);
+                        if (XContentMapValues.isObject(adaptive)) {
+                            Map<String, Object> adaptiveSettings = (Map<String, Object>) adaptive;
+                            builder.initialImportMaxBulkLatency(XContentMapValues.nodeTimeValue(
+                                    adaptiveSettings.get(MAX_BULK_LATENCY_FIELD), DEFAULT_MAX_BULK_LATENCY));
+                            builder.initialImportMaxQueuedOperations(XContentMapValues.nodeIntegerValue(
+                                    adaptiveSettings.get(MAX_QUEUED_OPERATIONS_FIELD), DEFAULT_MAX_QUEUED_OPERATIONS));
+                        } else if (XContentMapValues.nodeBooleanValue(adaptive, false)) {
+                            builder.initialImportMaxBulkLatency(DEFAULT_MAX_BULK_LATENCY);
+                        }
+                    }
+                }
                 builder.includeCollection(XContentMapValues.nodeStringValue(mongoOptionsSettings.get(INCLUDE_COLLECTION_FIELD), ""));
 
                 if (mongoOptionsSettings.containsKey(INCLUDE_FIELDS_FIELD)) {
@@ -791,6 +1245,11 @@ public class MongoDBRiverDefinition {
                 bulkBuilder.concurrentRequests(XContentMapValues.nodeIntegerValue(bulkSettings.get(CONCURRENT_REQUESTS_FIELD),
                         EsExecutors.boundedNumberOfProcessors(ImmutableSettings.EMPTY)));
                 bulkBuilder.flushInterval(XContentMapValues.nodeTimeValue(bulkSettings.get(FLUSH_INTERVAL_FIELD), DEFAULT_FLUSH_INTERVAL));
+                bulkBuilder.shared(XContentMapValues.nodeBooleanValue(bulkSettings.get(SHARED_FIELD), false));
+                bulkBuilder.maxProcessors(XContentMapValues.nodeIntegerValue(bulkSettings.get(MAX_PROCESSORS_FIELD),
+                        DEFAULT_MAX_PROCESSORS));
+                bulkBuilder.processorIdleTimeout(XContentMapValues.nodeTimeValue(bulkSettings.get(PROCESSOR_IDLE_TIMEOUT_FIELD),
+                        DEFAULT_PROCESSOR_IDLE_TIMEOUT));
                 builder.throttleSize(XContentMapValues.nodeIntegerValue(indexSettings.get(THROTTLE_SIZE_FIELD), bulkActions * 5));
             } else {
                 int bulkActions = XContentMapValues.nodeIntegerValue(indexSettings.get(BULK_SIZE_FIELD), DEFAULT_BULK_ACTIONS);
@@ -810,6 +1269,25 @@ public class MongoDBRiverDefinition {
         return builder.build();
     }
 
+    @SuppressWarnings("unchecked")
+    private static ReadPreference getReadPreference(String name, Object tags) {
+        if (tags == null) {
+            return ReadPreference.valueOf(name);
+        }
+        List<DBObject> tagSets = new ArrayList<DBObject>();
+        if (XContentMapValues.isArray(tags)) {
+            for (Object tagSet : (List<Object>) tags) {
+                tagSets.add(new BasicDBObject((Map<String, Object>) tagSet));
+            }
+        } else {
+            tagSets.add(new BasicDBObject((Map<String, Object>) tags));
+        }
+        if (tagSets.isEmpty()) {
+            return ReadPreference.valueOf(name);
+        }
+        return ReadPreference.valueOf(name, tagSets.get(0), tagSets.subList(1, tagSets.size()).toArray(new DBObject[0]));
+    }
+
     private static SocketFactory getSSLSocketFactory() {
         SocketFactory sslSocketFactory;
         try {
@@ -895,6 +1373,7 @@ public class MongoDBRiverDefinition {
         this.mongoGridFS = builder.mongoGridFS;
         this.mongoOplogFilter = builder.mongoOplogFilter;
         this.mongoCollectionFilter = builder.mongoCollectionFilter;
+        this.oplogFilter = OplogFilter.compile(builder.mongoOplogFilter);
         // mongodb.credentials
         this.mongoAdminUser = builder.mongoAdminUser;
         this.mongoAdminPassword = builder.mongoAdminPassword;
@@ -911,6 +1390,7 @@ public class MongoDBRiverDefinition {
         this.mongoUseSSL = builder.mongoUseSSL;
         this.mongoSSLVerifyCertificate = builder.mongoSSLVerifyCertificate;
         this.dropCollection = builder.dropCollection;
+        this.dropCollectionStrategy = builder.dropCollectionStrategy;
         this.isMongos = builder.isMongos;
         this.excludeFields = builder.excludeFields;
         this.includeFields = builder.includeFields;
@@ -924,8 +1404,34 @@ public class MongoDBRiverDefinition {
         this.storeStatistics = builder.storeStatistics;
         this.statisticsIndexName = builder.statisticsIndexName;
         this.statisticsTypeName = builder.statisticsTypeName;
+        this.statisticsInterval = builder.statisticsInterval;
         this.importAllCollections = builder.importAllCollections;
+        this.importAllCollectionsConcurrency = builder.importAllCollectionsConcurrency;
         this.disableIndexRefresh = builder.disableIndexRefresh;
+        this.bulkLoad = builder.bulkLoad;
+        this.bulkLoadForceMerge = builder.bulkLoadForceMerge;
+        this.bulkLoadMaxNumSegments = builder.bulkLoadMaxNumSegments;
+        this.oplogLagWarning = builder.oplogLagWarning;
+        this.sharedOplog = builder.sharedOplog;
+        this.liveLaneWeight = builder.liveLaneWeight;
+        this.externalVersion = builder.externalVersion;
+        this.partialUpdate = builder.partialUpdate;
+        this.partialUpdateScripts = builder.partialUpdateScripts;
+        this.resolveDbRefs = builder.resolveDbRefs;
+        this.resolveDbRefsDepth = builder.resolveDbRefsDepth;
+        this.resolveDbRefsFields = builder.resolveDbRefsFields;
+        this.dbRefCacheSize = builder.dbRefCacheSize;
+        this.dbRefCacheTtl = builder.dbRefCacheTtl;
+        this.spill = builder.spill;
+        this.spillPath = builder.spillPath;
+        this.spillMaxSize = builder.spillMaxSize;
+        this.spillSegmentSize = builder.spillSegmentSize;
+        this.initialImportReadPreference = builder.initialImportReadPreference;
+        this.initialImportScan = builder.initialImportScan;
+        this.initialImportMaxDocsPerSecond = builder.initialImportMaxDocsPerSecond;
+        this.initialImportMaxBytesPerSecond = builder.initialImportMaxBytesPerSecond;
+        this.initialImportMaxBulkLatency = builder.initialImportMaxBulkLatency;
+        this.initialImportMaxQueuedOperations = builder.initialImportMaxQueuedOperations;
 
         // index
         this.indexName = builder.indexName;
@@ -968,6 +1474,13 @@ public class MongoDBRiverDefinition {
         return mongoCollectionFilter;
     }
 
+    /*
+     * The oplog filter compiled into matchers, null without filter
+     */
+    OplogFilter getOplogFilter() {
+        return oplogFilter;
+    }
+
     public String getMongoAdminUser() {
         return mongoAdminUser;
     }
@@ -1020,6 +1533,13 @@ public class MongoDBRiverDefinition {
         return dropCollection;
     }
 
+    /*
+     * How the documents of a dropped collection are removed from the index
+     */
+    public DropCollectionStrategy getDropCollectionStrategy() {
+        return dropCollectionStrategy;
+    }
+
     public Boolean isMongos() {
         return isMongos;
     }
@@ -1072,14 +1592,184 @@ public class MongoDBRiverDefinition {
         return statisticsTypeName;
     }
 
+    /*
+     * Period of the statistics documents
+     */
+    public TimeValue getStatisticsInterval() {
+        return statisticsInterval;
+    }
+
     public boolean isImportAllCollections() {
         return importAllCollections;
     }
 
+    /*
+     * Number of collections imported in parallel when import_all_collections is set
+     */
+    public int getImportAllCollectionsConcurrency() {
+        return importAllCollectionsConcurrency;
+    }
+
     public boolean isDisableIndexRefresh() {
         return disableIndexRefresh;
     }
 
+    /*
+     * Disable refresh and replicas for the whole initial import
+     */
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
+    public boolean isBulkLoadForceMerge() {
+        return bulkLoadForceMerge;
+    }
+
+    public int getBulkLoadMaxNumSegments() {
+        return bulkLoadMaxNumSegments;
+    }
+
+    /*
+     * Oplog lag above which the river reports a warning
+     */
+    public TimeValue getOplogLagWarning() {
+        return oplogLagWarning;
+    }
+
+    /*
+     * Read the oplog through the tailer shared by the rivers of the node
+     */
+    public boolean isSharedOplog() {
+        return sharedOplog;
+    }
+
+    /*
+     * Oplog entries indexed for each imported document while both lanes are busy
+     */
+    public int getLiveLaneWeight() {
+        return liveLaneWeight;
+    }
+
+    /*
+     * Version the documents with the timestamp of their oplog entry (version_type external)
+     */
+    public boolean isExternalVersion() {
+        return externalVersion;
+    }
+
+    /*
+     * Send the $set / $unset updates of the oplog as partial updates instead of reading the post-image
+     */
+    public boolean isPartialUpdate() {
+        return partialUpdate;
+    }
+
+    /*
+     * Apply the partial updates a partial document cannot express with a Groovy script
+     */
+    public boolean isPartialUpdateScripts() {
+        return partialUpdateScripts;
+    }
+
+    /*
+     * Inline the documents referenced by DBRefs in the indexed documents
+     */
+    public boolean isResolveDbRefs() {
+        return resolveDbRefs;
+    }
+
+    /*
+     * Levels of DBRefs resolved, the referenced documents of the last level keep their DBRefs
+     */
+    public int getResolveDbRefsDepth() {
+        return resolveDbRefsDepth;
+    }
+
+    /*
+     * Fields of the referenced documents to inline, null for all of them
+     */
+    public Set<String> getResolveDbRefsFields() {
+        return resolveDbRefsFields;
+    }
+
+    /*
+     * Number of referenced documents kept in the cache
+     */
+    public int getDbRefCacheSize() {
+        return dbRefCacheSize;
+    }
+
+    /*
+     * Time a referenced document is kept in the cache after it was read
+     */
+    public TimeValue getDbRefCacheTtl() {
+        return dbRefCacheTtl;
+    }
+
+    /*
+     * Spill the oplog entries to disk when the indexer falls behind
+     */
+    public boolean isSpill() {
+        return spill;
+    }
+
+    /*
+     * Directory the spill segments of the river go under, null for the temporary directory
+     */
+    public String getSpillPath() {
+        return spillPath;
+    }
+
+    /*
+     * Disk space the spilled entries may use
+     */
+    public ByteSizeValue getSpillMaxSize() {
+        return spillMaxSize;
+    }
+
+    /*
+     * Size of a memory mapped spill segment file
+     */
+    public ByteSizeValue getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+
+    /*
+     * Read preference of the initial import cursor, null to use the one of the connection
+     */
+    public ReadPreference getInitialImportReadPreference() {
+        return initialImportReadPreference;
+    }
+
+    public InitialImportScan getInitialImportScan() {
+        return initialImportScan;
+    }
+
+    /*
+     * 0 when the initial import is not limited
+     */
+    public int getInitialImportMaxDocsPerSecond() {
+        return initialImportMaxDocsPerSecond;
+    }
+
+    /*
+     * null when the initial import is not limited
+     */
+    public ByteSizeValue getInitialImportMaxBytesPerSecond() {
+        return initialImportMaxBytesPerSecond;
+    }
+
+    /*
+     * null when adaptive throttling is disabled
+     */
+    public TimeValue getInitialImportMaxBulkLatency() {
+        return initialImportMaxBulkLatency;
+    }
+
+    public int getInitialImportMaxQueuedOperations() {
+        return initialImportMaxQueuedOperations;
+    }
+
     public String getIndexName() {
         return indexName;
     }
@@ -6,5 +6,7 @@ public class NodeLevelModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(MongoClientService.class).asEagerSingleton();
+        bind(BulkDispatcherService.class).asEagerSingleton();
+        bind(OplogTailerService.class).asEagerSingleton();
     }
 }
@@ -9,6 +9,7 @@ public enum Operation {
     DROP_DATABASE("dd"),
     COMMAND(MongoDBRiver.OPLOG_COMMAND_OPERATION),
     UPDATE_TIMESTAMP("uptime"),  // Not a Mongo op, but we use it to propagate Timestamp updates from the slurper.
+    PARTIAL_UPDATE("pu"),  // Not a Mongo op: the modifiers of an update, applied by Elasticsearch.
     UNKNOWN(null);
 
     private String value;
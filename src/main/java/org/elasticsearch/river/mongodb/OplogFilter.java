@@ -0,0 +1,513 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import com.mongodb.DBObject;
+
+/**
+ * The river filter compiled once into a tree of matchers.
+ *
+ * Supports equality, {@code $ne}, {@code $in}, {@code $nin}, {@code $gt},
+ * {@code $gte}, {@code $lt}, {@code $lte}, {@code $exists} and the
+ * {@code $and}, {@code $or} and {@code $nor} combinations, on dotted paths
+ * that go through sub documents and arrays as MongoDB does. Paths are split
+ * at compile time: matching a document does not allocate. A filter using
+ * other operators, or regular expressions, is not supported: see
+ * {@link #isSupported()}.
+ */
+class OplogFilter {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(OplogFilter.class.getName());
+
+    static final String EQ = "$eq";
+    static final String NE = "$ne";
+    static final String IN = "$in";
+    static final String NIN = "$nin";
+    static final String GT = "$gt";
+    static final String GTE = "$gte";
+    static final String LT = "$lt";
+    static final String LTE = "$lte";
+    static final String EXISTS = "$exists";
+    static final String AND = "$and";
+    static final String OR = "$or";
+    static final String NOR = "$nor";
+
+    interface Matcher {
+        boolean matches(DBObject document);
+    }
+
+    /**
+     * Condition on the value found at the end of a path.
+     */
+    private static abstract class Condition {
+
+        abstract boolean matches(Object value);
+
+        boolean matchesMissing() {
+            return false;
+        }
+    }
+
+    private static final Matcher ANY = new Matcher() {
+        @Override
+        public boolean matches(DBObject document) {
+            return true;
+        }
+    };
+
+    private final Matcher matcher;
+    private final Set<String> fields;
+    private final List<String> unsupported;
+
+    private OplogFilter(Matcher matcher, Set<String> fields, List<String> unsupported) {
+        this.matcher = matcher;
+        this.fields = fields;
+        this.unsupported = unsupported;
+    }
+
+    /**
+     * @return null if the filter is empty
+     */
+    static OplogFilter compile(DBObject filter) {
+        if (filter == null || filter.keySet().isEmpty()) {
+            return null;
+        }
+        Set<String> fields = new HashSet<String>();
+        List<String> unsupported = new ArrayList<String>();
+        Matcher matcher = compile(filter, fields, unsupported);
+        if (!unsupported.isEmpty()) {
+            logger.info("Operators {} are not supported by the oplog filter. The filter is evaluated by the server.", unsupported);
+        }
+        return new OplogFilter(matcher, fields, unsupported);
+    }
+
+    /**
+     * @return false if the filter uses operators the matchers do not
+     *         support: it must be evaluated by the server instead, leaving
+     *         them out would change its meaning
+     */
+    boolean isSupported() {
+        return unsupported.isEmpty();
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             if the filter is not {@link #isSupported() supported}
+     */
+    boolean matches(DBObject document) {
+        if (!unsupported.isEmpty()) {
+            throw new IllegalStateException("Operators " + unsupported + " are not supported by the oplog filter");
+        }
+        return matcher.matches(document);
+    }
+
+    /**
+     * @return the top level fields the filter reads
+     */
+    Set<String> getFields() {
+        return fields;
+    }
+
+    private static Matcher compile(DBObject filter, Set<String> fields, List<String> unsupported) {
+        List<Matcher> matchers = new ArrayList<Matcher>();
+        for (String key : filter.keySet()) {
+            Object value = filter.get(key);
+            if (key.equals(AND) || key.equals(OR) || key.equals(NOR)) {
+                if (!(value instanceof List)) {
+                    throw new IllegalArgumentException(key + " must be an array");
+                }
+                List<?> clauses = (List<?>) value;
+                Matcher[] compiled = new Matcher[clauses.size()];
+                for (int i = 0; i < compiled.length; i++) {
+                    compiled[i] = compile((DBObject) clauses.get(i), fields, unsupported);
+                }
+                if (key.equals(AND)) {
+                    matchers.add(new And(compiled));
+                } else if (key.equals(OR)) {
+                    matchers.add(new Or(compiled));
+                } else {
+                    matchers.add(new Not(new Or(compiled)));
+                }
+            } else if (key.startsWith("$")) {
+                unsupported.add(key);
+            } else {
+                String[] path = key.split("\\.");
+                fields.add(path[0]);
+                matchers.addAll(compileField(path, value, unsupported));
+            }
+        }
+        if (matchers.size() == 1) {
+            return matchers.get(0);
+        }
+        return matchers.isEmpty() ? ANY : new And(matchers.toArray(new Matcher[matchers.size()]));
+    }
+
+    private static List<Matcher> compileField(String[] path, Object value, List<String> unsupported) {
+        List<Matcher> matchers = new ArrayList<Matcher>();
+        if (hasPattern(value)) {
+            // Regular expressions match as the server does, not as java.util.regex
+            unsupported.add(join(path) + ": " + value);
+            return matchers;
+        }
+        if (!isOperators(value)) {
+            matchers.add(new Field(path, new Equals(value)));
+            return matchers;
+        }
+        DBObject operators = (DBObject) value;
+        for (String operator : operators.keySet()) {
+            Object operand = operators.get(operator);
+            switch (operator) {
+            case EQ:
+                matchers.add(new Field(path, new Equals(operand)));
+                break;
+            case NE:
+                matchers.add(new Not(new Field(path, new Equals(operand))));
+                break;
+            case IN:
+                matchers.add(new Field(path, new In(toArray(operator, operand))));
+                break;
+            case NIN:
+                matchers.add(new Not(new Field(path, new In(toArray(operator, operand)))));
+                break;
+            case GT:
+                matchers.add(new Field(path, new Compare(operand, 1, 1)));
+                break;
+            case GTE:
+                matchers.add(new Field(path, new Compare(operand, 0, 1)));
+                break;
+            case LT:
+                matchers.add(new Field(path, new Compare(operand, -1, -1)));
+                break;
+            case LTE:
+                matchers.add(new Field(path, new Compare(operand, -1, 0)));
+                break;
+            case EXISTS:
+                matchers.add(new Field(path, new Exists(isTrue(operand))));
+                break;
+            default:
+                unsupported.add(join(path) + "." + operator);
+            }
+        }
+        return matchers;
+    }
+
+    private static boolean hasPattern(Object value) {
+        if (value instanceof Pattern) {
+            return true;
+        }
+        if (value instanceof DBObject) {
+            DBObject object = (DBObject) value;
+            for (String key : object.keySet()) {
+                if (hasPattern(object.get(key))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOperators(Object value) {
+        if (!(value instanceof DBObject) || value instanceof List) {
+            return false;
+        }
+        Set<String> keys = ((DBObject) value).keySet();
+        if (keys.isEmpty()) {
+            return false;
+        }
+        for (String key : keys) {
+            if (!key.startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object[] toArray(String operator, Object operand) {
+        if (!(operand instanceof List)) {
+            throw new IllegalArgumentException(operator + " must be an array");
+        }
+        return ((List<?>) operand).toArray();
+    }
+
+    private static boolean isTrue(Object operand) {
+        if (operand instanceof Boolean) {
+            return (Boolean) operand;
+        }
+        if (operand instanceof Number) {
+            return ((Number) operand).doubleValue() != 0;
+        }
+        return operand != null;
+    }
+
+    private static String join(String[] path) {
+        StringBuilder builder = new StringBuilder();
+        for (String segment : path) {
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            builder.append(segment);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Condition on the values at the end of a dotted path. An array on the
+     * path matches if any of its elements matches.
+     */
+    private static class Field implements Matcher {
+
+        private final String[] path;
+        private final Condition condition;
+
+        Field(String[] path, Condition condition) {
+            this.path = path;
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean matches(DBObject document) {
+            return matches(document, 0);
+        }
+
+        private boolean matches(Object value, int depth) {
+            if (depth == path.length) {
+                if (condition.matches(value)) {
+                    return true;
+                }
+                if (value instanceof List) {
+                    List<?> list = (List<?>) value;
+                    for (int i = 0; i < list.size(); i++) {
+                        if (condition.matches(list.get(i))) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                int index = indexOf(path[depth]);
+                if (index >= 0 && index < list.size() && matches(list.get(index), depth + 1)) {
+                    return true;
+                }
+                boolean found = false;
+                for (int i = 0; i < list.size(); i++) {
+                    Object element = list.get(i);
+                    if (element instanceof DBObject && !(element instanceof List)) {
+                        found = true;
+                        if (matches(element, depth)) {
+                            return true;
+                        }
+                    }
+                }
+                return !found && index < 0 && condition.matchesMissing();
+            }
+            if (value instanceof DBObject) {
+                DBObject object = (DBObject) value;
+                if (object.containsField(path[depth])) {
+                    return matches(object.get(path[depth]), depth + 1);
+                }
+            }
+            return condition.matchesMissing();
+        }
+
+        private static int indexOf(String segment) {
+            for (int i = 0; i < segment.length(); i++) {
+                if (!Character.isDigit(segment.charAt(i))) {
+                    return -1;
+                }
+            }
+            return segment.isEmpty() || segment.length() > 9 ? -1 : Integer.parseInt(segment);
+        }
+    }
+
+    private static class And implements Matcher {
+
+        private final Matcher[] matchers;
+
+        And(Matcher[] matchers) {
+            this.matchers = matchers;
+        }
+
+        @Override
+        public boolean matches(DBObject document) {
+            for (Matcher matcher : matchers) {
+                if (!matcher.matches(document)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Or implements Matcher {
+
+        private final Matcher[] matchers;
+
+        Or(Matcher[] matchers) {
+            this.matchers = matchers;
+        }
+
+        @Override
+        public boolean matches(DBObject document) {
+            for (Matcher matcher : matchers) {
+                if (matcher.matches(document)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Not implements Matcher {
+
+        private final Matcher matcher;
+
+        Not(Matcher matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        public boolean matches(DBObject document) {
+            return !matcher.matches(document);
+        }
+    }
+
+    private static class Equals extends Condition {
+
+        private final Object expected;
+
+        Equals(Object expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        boolean matches(Object value) {
+            return valueEquals(expected, value);
+        }
+
+        @Override
+        boolean matchesMissing() {
+            // {field: null} matches documents without the field
+            return expected == null;
+        }
+    }
+
+    private static class In extends Condition {
+
+        private final Object[] expected;
+
+        In(Object[] expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        boolean matches(Object value) {
+            for (Object candidate : expected) {
+                if (valueEquals(candidate, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean matchesMissing() {
+            for (Object candidate : expected) {
+                if (candidate == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Ordering of the value against the operand, between {@code min} and
+     * {@code max} inclusive. Values of different types do not match.
+     */
+    private static class Compare extends Condition {
+
+        private final Object operand;
+        private final int min;
+        private final int max;
+
+        Compare(Object operand, int min, int max) {
+            this.operand = operand;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean matches(Object value) {
+            if (value == null || operand == null) {
+                return false;
+            }
+            int comparison;
+            if (value instanceof Number && operand instanceof Number) {
+                comparison = compareNumbers((Number) value, (Number) operand);
+            } else if (value instanceof String && operand instanceof String) {
+                comparison = ((String) value).compareTo((String) operand);
+            } else if (value instanceof Date && operand instanceof Date) {
+                comparison = ((Date) value).compareTo((Date) operand);
+            } else if (value.getClass() == operand.getClass() && value instanceof Comparable) {
+                @SuppressWarnings("unchecked")
+                Comparable<Object> comparable = (Comparable<Object>) value;
+                comparison = comparable.compareTo(operand);
+            } else {
+                return false;
+            }
+            comparison = Integer.signum(comparison);
+            return comparison >= min && comparison <= max;
+        }
+    }
+
+    private static class Exists extends Condition {
+
+        private final boolean exists;
+
+        Exists(boolean exists) {
+            this.exists = exists;
+        }
+
+        @Override
+        boolean matches(Object value) {
+            return exists;
+        }
+
+        @Override
+        boolean matchesMissing() {
+            return !exists;
+        }
+    }
+
+    private static boolean valueEquals(Object expected, Object value) {
+        if (expected == null) {
+            return value == null;
+        }
+        if (expected instanceof Number && value instanceof Number) {
+            return compareNumbers((Number) expected, (Number) value) == 0;
+        }
+        return expected.equals(value);
+    }
+
+    private static int compareNumbers(Number left, Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return Long.compare(left.longValue(), right.longValue());
+        }
+        return Double.compare(left.doubleValue(), right.doubleValue());
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+}
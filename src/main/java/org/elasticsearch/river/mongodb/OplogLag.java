@@ -0,0 +1,147 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * How far the oplog slurper of a shard trails the head of its oplog, in
+ * seconds and in entries.
+ */
+class OplogLag {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(OplogLag.class.getName());
+
+    // The entries behind are read to be counted: stop there
+    static final int MAX_ENTRIES = 10000;
+
+    private final String shard;
+    private final DBCollection oplogCollection;
+    private final TimeValue warningThreshold;
+    private volatile Timestamp<?> processed;
+    private volatile long seconds;
+    private volatile int entries;
+    private volatile boolean warning;
+    // Positions of the previous sample: the entries behind are only read again once one of them moved
+    private Timestamp<?> sampledProcessed;
+    private Timestamp<?> sampledHead;
+
+    OplogLag(String shard, DBCollection oplogCollection, TimeValue warningThreshold) {
+        this.shard = shard;
+        this.oplogCollection = oplogCollection;
+        this.warningThreshold = warningThreshold;
+    }
+
+    String getShard() {
+        return shard;
+    }
+
+    long getSeconds() {
+        return seconds;
+    }
+
+    int getEntries() {
+        return entries;
+    }
+
+    boolean isWarning() {
+        return warning;
+    }
+
+    /**
+     * @param timestamp timestamp of the last oplog entry processed by the slurper
+     */
+    void processed(Timestamp<?> timestamp) {
+        processed = timestamp;
+    }
+
+    /**
+     * Compare the last processed entry against the latest entry of the oplog.
+     * Reads at most {@link #MAX_ENTRIES} oplog positions, through the _id
+     * index on TokuMX and the oplog replay start otherwise: not to be called
+     * from the status thread.
+     */
+    void sample() {
+        Timestamp<?> timestamp = processed;
+        if (timestamp == null) {
+            return;
+        }
+        try {
+            Timestamp<?> head;
+            try (DBCursor cursor = oplogCollection.find().sort(new BasicDBObject(MongoDBRiver.INSERTION_ORDER_KEY, -1)).limit(1)) {
+                if (!cursor.hasNext()) {
+                    return;
+                }
+                head = Timestamp.on(cursor.next());
+            }
+            seconds = Math.max(0, head.getTime() - timestamp.getTime()) / 1000;
+            if (Timestamp.compare(head, timestamp) <= 0) {
+                entries = 0;
+            } else if (!timestamp.equals(sampledProcessed) || !head.equals(sampledHead)) {
+                entries = countEntries(timestamp);
+            }
+            sampledProcessed = timestamp;
+            sampledHead = head;
+        } catch (MongoException e) {
+            logger.debug("Cannot sample oplog lag of shard {}: {}", shard, e.getMessage());
+            return;
+        }
+
+        boolean behind = warningThreshold != null && seconds * 1000 > warningThreshold.millis();
+        if (behind && !warning) {
+            logger.warn("Oplog slurper of shard {} is {} seconds ({}{} entries) behind", shard, seconds, entries,
+                    entries >= MAX_ENTRIES ? "+" : "");
+        } else if (!behind && warning) {
+            logger.info("Oplog slurper of shard {} caught up", shard);
+        }
+        warning = behind;
+    }
+
+    /*
+     * Number of entries after the last processed one, up to MAX_ENTRIES
+     */
+    private int countEntries(Timestamp<?> timestamp) {
+        // A count would scan the whole oplog: read the positions of the entries, from the last processed one
+        DBObject filter = timestamp.getOplogFilter();
+        DBCursor cursor;
+        if (filter.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
+            cursor = oplogCollection.find(filter, new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1)).hint("_id_");
+        } else {
+            cursor = oplogCollection.find(filter,
+                    new BasicDBObject(MongoDBRiver.OPLOG_TIMESTAMP, 1).append(MongoDBRiver.MONGODB_ID_FIELD, 0)).addOption(
+                    Bytes.QUERYOPTION_OPLOGREPLAY);
+        }
+        cursor.limit(MAX_ENTRIES + 1).batchSize(MAX_ENTRIES + 1);
+        try {
+            int read = 0;
+            while (cursor.hasNext()) {
+                cursor.next();
+                read++;
+            }
+            // The filter includes the last processed entry
+            return Math.max(0, read - 1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    void toXContent(XContentBuilder builder) throws IOException {
+        builder.startObject(shard);
+        builder.field("seconds", seconds);
+        builder.field("entries", entries);
+        builder.field("entries_capped", entries >= MAX_ENTRIES);
+        builder.field("warning", warning);
+        builder.endObject();
+    }
+
+}
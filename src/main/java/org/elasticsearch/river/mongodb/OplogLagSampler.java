@@ -0,0 +1,42 @@
+package org.elasticsearch.river.mongodb;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+/**
+ * Samples the oplog lag of the shard slurpers of a river. Reading the oplog
+ * entries behind takes a while on a busy oplog: it runs on its own thread so
+ * the status checker keeps publishing the statistics and watching the river
+ * status meanwhile.
+ */
+class OplogLagSampler implements Runnable {
+    private static final ESLogger logger = ESLoggerFactory.getLogger(OplogLagSampler.class.getName());
+    static final long SAMPLE_INTERVAL_MS = 10000;
+
+    private final MongoDBRiverDefinition definition;
+    private final SharedContext context;
+
+    OplogLagSampler(MongoDBRiverDefinition definition, SharedContext context) {
+        this.definition = definition;
+        this.context = context;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (context.getStatus() == Status.RUNNING) {
+                    context.getMetrics().sampleOplogLag();
+                }
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                logger.debug("Oplog lag thread of river {} interrupted", definition.getRiverName());
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.warn("Cannot sample oplog lag of river {}", e, definition.getRiverName());
+            }
+        }
+    }
+
+}
@@ -1,9 +1,9 @@
 package org.elasticsearch.river.mongodb;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.bson.BasicBSONObject;
@@ -12,6 +12,7 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableList;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
@@ -21,6 +22,7 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DBRef;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCursorNotFoundException;
 import com.mongodb.MongoInterruptedException;
@@ -44,10 +46,17 @@ class OplogSlurper implements Runnable {
     }
 
     private static final ESLogger logger = ESLoggerFactory.getLogger(OplogSlurper.class.getName());
+    // Refs fetched per round trip while reading a large transaction
+    private static final int OPLOG_REFS_BATCH_SIZE = 100;
 
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
     private final BasicDBObject findKeys;
+    // Post-images are read with the fields of the filter, filtered out after matching
+    private final boolean findKeysWithFilterFields;
+    private final boolean partialUpdate;
+    // Updates needing a script are sent as partial updates too
+    private final boolean partialUpdateScripts;
     private final String gridfsOplogNamespace;
     private final String cmdOplogNamespace;
     private final ImmutableList<String> oplogOperations = ImmutableList.of(MongoDBRiver.OPLOG_DELETE_OPERATION,
@@ -61,10 +70,33 @@ class OplogSlurper implements Runnable {
     private final DB oplogDb;
     private final DBCollection oplogCollection, oplogRefsCollection;
     private final AtomicLong totalDocuments = new AtomicLong();
-    private HashMap<String, ArrayList<String>> pkCache;
-
-    public OplogSlurper(Timestamp<?> timestamp, MongoClient mongoClusterClient, MongoClient mongoShardClient, MongoDBRiverDefinition definition, SharedContext context, Client esClient) {
+    private BulkLoad bulkLoad;
+    private Timestamp<?> catchUpTimestamp;
+    // Last entry read from the oplog, processed or not
+    private Timestamp<?> seenTimestamp;
+    // A drop was queued since the head of the oplog was last reached
+    private boolean dropped;
+    private final String shard;
+    private final OplogTailerService oplogTailerService;
+    private final OplogLag oplogLag;
+    // Imports collections renamed into the database, created on the first one
+    private ExecutorService importExecutor;
+
+    /**
+     * @param shard
+     *            name of the shard whose oplog is tailed
+     * @param bulkLoad
+     *            notified once this slurper reaches the oplog entries written
+     *            during the initial import, null if there is nothing to notify
+     * @param oplogTailerService
+     *            tailer to read the oplog from, null to read it on an own cursor
+     */
+    public OplogSlurper(String shard, Timestamp<?> timestamp, MongoClient mongoClusterClient, MongoClient mongoShardClient, MongoDBRiverDefinition definition, SharedContext context, Client esClient, BulkLoad bulkLoad,
+            OplogTailerService oplogTailerService) {
+        this.shard = shard;
+        this.oplogTailerService = oplogTailerService;
         this.timestamp = timestamp;
+        this.bulkLoad = bulkLoad;
         this.definition = definition;
         this.context = context;
         this.esClient = esClient;
@@ -73,7 +105,6 @@ class OplogSlurper implements Runnable {
         this.findKeys = new BasicDBObject();
         this.gridfsOplogNamespace = definition.getMongoOplogNamespace() + MongoDBRiver.GRIDFS_FILES_SUFFIX;
         this.cmdOplogNamespace = definition.getMongoDb() + "." + MongoDBRiver.OPLOG_NAMESPACE_COMMAND;
-        this.pkCache = new HashMap<String, ArrayList<String>>();
         if (definition.getExcludeFields() != null) {
             for (String key : definition.getExcludeFields()) {
                 findKeys.put(key, 0);
@@ -83,10 +114,30 @@ class OplogSlurper implements Runnable {
                 findKeys.put(key, 1);
             }
         }
+        // The post-images are matched against the filter before the fields are filtered
+        this.findKeysWithFilterFields = definition.getOplogFilter() != null && !findKeys.isEmpty();
+        if (findKeysWithFilterFields) {
+            for (String key : definition.getOplogFilter().getFields()) {
+                if (definition.getExcludeFields() != null) {
+                    findKeys.removeField(key);
+                } else {
+                    findKeys.put(key, 1);
+                }
+            }
+        }
+        this.partialUpdate = isPartialUpdate(definition);
+        this.partialUpdateScripts = partialUpdate && isPartialUpdateScripts(definition, esClient);
         this.oplogDb = mongoShardClient.getDB(MongoDBRiver.MONGODB_LOCAL_DATABASE);
         this.oplogCollection = oplogDb.getCollection(MongoDBRiver.OPLOG_COLLECTION);
         this.oplogRefsCollection = oplogDb.getCollection(MongoDBRiver.OPLOG_REFS_COLLECTION);
         this.slurpedDb = mongoShardClient.getDB(definition.getMongoDb());
+        this.oplogLag = new OplogLag(shard, oplogCollection, definition.getOplogLagWarning());
+        this.oplogLag.processed(timestamp);
+        context.getMetrics().addOplogLag(oplogLag);
+        if (definition.isImportAllCollections()) {
+            // Known before a dropDatabase needs them
+            context.getCollectionNameCache().get(slurpedDb);
+        }
     }
 
     @Override
@@ -96,22 +147,28 @@ class OplogSlurper implements Runnable {
                 // Slurp from oplog
                 DBCursor cursor = null;
                 try {
+                    if (bulkLoad != null && catchUpTimestamp == null) {
+                        // Head of the oplog when tailing starts: everything up to it was written during the import
+                        catchUpTimestamp = getCurrentOplogTimestamp();
+                    }
+                    if (oplogTailerService != null) {
+                        tailSharedOplog();
+                        continue;
+                    }
                     cursor = oplogCursor(timestamp);
                     if (cursor == null) {
                         cursor = processFullOplog();
                     }
+                    boolean end = true;
                     while (cursor.hasNext()) {
-                        DBObject item = cursor.next();
-                        // TokuMX secondaries can have ops in the oplog that
-                        // have not yet been applied
-                        // We need to wait until they have been applied before
-                        // processing them
-                        Object applied = item.get("a");
-                        if (applied != null && !applied.equals(Boolean.TRUE)) {
-                            logger.debug("Encountered oplog entry with a:false, ts:" + item.get("ts"));
+                        if (!processTailedEntry(cursor.next())) {
+                            end = false;
                             break;
                         }
-                        timestamp = processOplogEntry(item, timestamp);
+                    }
+                    if (end) {
+                        // Nothing left up to the head of the oplog, even if no entry was read
+                        reachedHead(seenTimestamp != null ? seenTimestamp : timestamp);
                     }
                     logger.debug("Before waiting for 500 ms");
                     Thread.sleep(500);
@@ -145,11 +202,144 @@ class OplogSlurper implements Runnable {
                 break;
             }
         }
+        if (importExecutor != null) {
+            importExecutor.shutdownNow();
+        }
         logger.info("Slurper is stopping. River has status {}", context.getStatus());
     }
 
+    /**
+     * @return false if the entry is not applied yet and must be read again
+     */
+    private boolean processTailedEntry(DBObject item) throws InterruptedException, SlurperException {
+        context.getMetrics().oplogEntries.inc();
+        // TokuMX secondaries can have ops in the oplog that
+        // have not yet been applied
+        // We need to wait until they have been applied before
+        // processing them
+        Object applied = item.get("a");
+        if (applied != null && !applied.equals(Boolean.TRUE)) {
+            logger.debug("Encountered oplog entry with a:false, ts:" + item.get("ts"));
+            return false;
+        }
+        timestamp = processOplogEntry(item, timestamp);
+        seen(Timestamp.on(item));
+        return true;
+    }
+
+    /**
+     * Every entry up to {@code position} has been read.
+     */
+    private void seen(Timestamp<?> position) throws InterruptedException {
+        seenTimestamp = position;
+        oplogLag.processed(position);
+        if (bulkLoad != null && Timestamp.compare(position, catchUpTimestamp) >= 0) {
+            caughtUp(position);
+        }
+    }
+
+    /**
+     * Every entry up to the head of the oplog has been read, up to
+     * {@code position}: the indexer swaps the indices filled since a drop
+     * once it gets there.
+     */
+    private void reachedHead(Timestamp<?> position) throws InterruptedException {
+        if (bulkLoad != null) {
+            caughtUp(position);
+        } else if (dropped) {
+            addToStream(Operation.UPDATE_TIMESTAMP, position, new BasicDBObject(), null);
+        }
+        dropped = false;
+    }
+
+    /**
+     * Every entry written during the import has been read, up to
+     * {@code position}: the indexer ends the bulk load once it checkpoints
+     * this position, queued after the entries read.
+     */
+    private void caughtUp(Timestamp<?> position) throws InterruptedException {
+        if (bulkLoad == null) {
+            return;
+        }
+        bulkLoad.caughtUp(shard, position);
+        bulkLoad = null;
+        // Checkpointed even if none of the entries read is indexed
+        addToStream(Operation.UPDATE_TIMESTAMP, position, new BasicDBObject(), null);
+    }
+
+    /**
+     * Read the oplog from the tailer shared by the rivers of the node. The
+     * entries between the last one processed and the start of the
+     * subscription are read on the own cursor of the river, as are all the
+     * entries after the subscription is detached.
+     */
+    private void tailSharedOplog() throws InterruptedException, SlurperException {
+        // Most of the way on the own cursor: the shared tailer does not wait
+        if (!catchUp(getCurrentOplogTimestamp())) {
+            Thread.sleep(500);
+            return;
+        }
+        caughtUp(seenTimestamp);
+        OplogTailerService.Subscription subscription = oplogTailerService.subscribe(
+                definition.getRiverName() + ":" + shard, mongoShardClient, definition.getMongoDb());
+        try {
+            if (!catchUp(subscription.getStart())) {
+                Thread.sleep(500);
+                return;
+            }
+            while (context.getStatus() == Status.RUNNING && !subscription.isDetached()) {
+                Timestamp<?> position = subscription.getPosition();
+                DBObject item = subscription.poll(500, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (subscription.isEmpty() && !subscription.isDetached()) {
+                        // Nothing of this river up to the position of the tailer
+                        seen(position);
+                        reachedHead(position);
+                    }
+                } else if (Timestamp.compare(Timestamp.on(item), seenTimestamp) > 0) {
+                    processTailedEntry(item);
+                }
+            }
+        } finally {
+            subscription.close();
+        }
+    }
+
+    /**
+     * Process the entries up to {@code target} on the own cursor of the river.
+     *
+     * @return false if {@code target} was not reached
+     */
+    private boolean catchUp(Timestamp<?> target) throws InterruptedException, SlurperException {
+        if (timestamp == null) {
+            timestamp = target;
+        }
+        if (seenTimestamp == null || Timestamp.compare(seenTimestamp, timestamp) < 0) {
+            seenTimestamp = timestamp;
+        }
+        if (Timestamp.compare(seenTimestamp, target) >= 0) {
+            return true;
+        }
+        logger.debug("Catch up from {} to {}", seenTimestamp, target);
+        DBCursor cursor = oplogCursor(seenTimestamp);
+        try {
+            while (context.getStatus() == Status.RUNNING && cursor.hasNext()) {
+                DBObject item = cursor.next();
+                if (!processTailedEntry(item)) {
+                    return false;
+                }
+                if (Timestamp.compare(Timestamp.on(item), target) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
     protected boolean riverHasIndexedFromOplog() {
-        return MongoDBRiver.getLastTimestamp(esClient, definition) != null;
+        return MongoDBRiver.getLastTimestamp(esClient, definition, shard) != null;
     }
 
     protected boolean isIndexEmpty() {
@@ -188,7 +378,10 @@ class OplogSlurper implements Runnable {
     }
 
     private Timestamp<?> processSingleOp(final DBObject entry, final Timestamp<?> startTimestamp, final Timestamp<?> oplogTimestamp) throws InterruptedException {
+        context.getPrimaryKeyCache().invalidate(entry);
+        context.getCollectionNameCache().invalidate(entry);
         if (!isValidOplogEntry(entry, startTimestamp, oplogTimestamp)) {
+            context.getMetrics().oplogFiltered.inc();
             return startTimestamp;
         }
         Operation operation = Operation.fromString(entry.get(MongoDBRiver.OPLOG_OPERATION).toString());
@@ -197,7 +390,7 @@ class OplogSlurper implements Runnable {
         DBObject object = (DBObject) entry.get(MongoDBRiver.OPLOG_OBJECT);
 
         if (definition.isImportAllCollections()) {
-            if (namespace.startsWith(definition.getMongoDb()) && !namespace.equals(cmdOplogNamespace)) {
+            if (namespace.startsWith(definition.getMongoDb() + '.') && !namespace.equals(cmdOplogNamespace)) {
                 collection = getCollectionFromNamespace(namespace);
             }
         } else {
@@ -267,6 +460,11 @@ class OplogSlurper implements Runnable {
             BasicDBObject update;
             switch (operation) {
                 case INSERT:
+                    OplogFilter filter = definition.getOplogFilter();
+                    if (filter != null && !filter.isSupported() && !matchesFilter(object, collection)) {
+                        context.getMetrics().oplogFiltered.inc();
+                        break;
+                    }
                     addInsertToStream(oplogTimestamp, applyFieldFilter(object), collection);
                     break;
                 case UPDATE:
@@ -291,8 +489,8 @@ class OplogSlurper implements Runnable {
                         }
                     } else if (definition.isTokumx) {
                         // tokumx provides a postimage, we can just save it
-                        addToStream(operation, oplogTimestamp, applyFieldFilter(update), collection);
-                    } else {
+                        addPostImageToStream(operation, oplogTimestamp, update, collection, true);
+                    } else if (!addPartialUpdateToStream(oplogTimestamp, update, object, collection)) {
                         // mongo doesn't provide the postimage, so we have to query on the update
                         addQueryToStream(operation, oplogTimestamp, update, collection);
                     }
@@ -307,8 +505,8 @@ class OplogSlurper implements Runnable {
 
 
     // Tokumx doesn't provide key names in the `pk` field. We'll have to map them from the collection ourselves.
-    private BasicDBObject mapPKFields(String namespace, BasicDBObject pk) {
-        ArrayList<String> map = getPKMapFor(namespace);
+    private BasicDBObject mapPKFields(String collection, BasicDBObject pk) {
+        List<String> map = context.getPrimaryKeyCache().get(slurpedDb, collection);
         if (map == null) return null;
 
         BasicDBObject selector = new BasicDBObject();
@@ -320,75 +518,42 @@ class OplogSlurper implements Runnable {
         return selector;
     }
 
-    private ArrayList<String> getPKMapFor(String namespace) {
-        if(!pkCache.containsKey(namespace)) {
-            List<DBObject> indexes = slurpedDb.getCollection(namespace).getIndexInfo();
-            BasicDBObject idKey = null;
-            BasicDBObject pkKey = null;
-            for(DBObject idx : indexes) {
-                if(idx.get("name").equals("primaryKey")) {
-                    pkKey = (BasicDBObject)idx.get("key");
-                } else if (idx.get("name").equals("_id_")) {
-                    idKey = (BasicDBObject)idx.get("key");
-                }
-            }
-            ArrayList<String> keys = new ArrayList<String>();
-            if (pkKey != null) {
-                for (Map.Entry<String, Object> entry : pkKey.entrySet()) {
-                    keys.add(entry.getKey());
-                }
-            } else if (idKey != null) {
-                for (Map.Entry<String, Object> entry : idKey.entrySet()) {
-                    keys.add(entry.getKey());
-                }
-            }
-            if (keys.size() != 0) {
-                pkCache.put(namespace, keys);
-            }
-            logger.debug("pkcache for {}: {}", namespace, keys);
-        }
-        if(pkCache.containsKey(namespace)) {
-            return pkCache.get(namespace);
-        } else {
-            return null;
-        }
-    }
-
     private Timestamp<?> processOplogRefs(final DBObject entry, final Timestamp<?> timestamp, final Timestamp<?> oplogTimestamp) throws InterruptedException, SlurperException {
         ObjectId ref = (ObjectId) entry.get(MongoDBRiver.OPLOG_REF);
-        long seq = 0;
         if(ref != null) {
-            // Find the refs matching this oplog entry and update the docs they touch
-            // db.oplog.refs.find({_id: {$gt: {oid: id_from_oplog, seq: 0}}})
-            // db.oplog.refs.find({"_id.oid": ObjectId("5564b20d996b5d1f5a753633"), "_id.seq": {$gt: 0} })
-            while(true) {
-                BasicDBObject selector = new BasicDBObject("_id.".concat(MongoDBRiver.MONGODB_OID_FIELD), ref).append("_id.".concat(MongoDBRiver.MONGODB_SEQ_FIELD), new BasicDBObject(QueryOperators.GT, seq));
-                // BasicDBObject query = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.GT, selector));
-                BasicDBObject refResult = (BasicDBObject)oplogRefsCollection.findOne(selector);
-                // logger.debug("Finding refs for {}", query);
-                if(refResult == null) {
-                    logger.debug("Got no refResult for {}, breaking...", selector);
-                    break;
-                }
-
-                BasicDBObject refId = (BasicDBObject)refResult.get(MongoDBRiver.MONGODB_ID_FIELD);
-                ObjectId refOid = (ObjectId)refId.get(MongoDBRiver.MONGODB_OID_FIELD);
-                if( !refOid.equals(ref) ) {
-                    // logger.debug("{} != {}, breaking oplog ref loop...", ref, refOid);
-                    break;
+            // Find the refs matching this oplog entry and update the docs they touch, in seq order, with a single cursor:
+            // db.oplog.refs.find({_id: {$gt: {oid: ref, seq: 0}, $lte: {oid: ref, seq: MAX}}}).sort({_id: 1})
+            BasicDBObject query = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.GT,
+                    refId(ref, 0L)).append(QueryOperators.LTE, refId(ref, Long.MAX_VALUE)));
+            long refs = 0;
+            try (DBCursor cursor = oplogRefsCollection.find(query).sort(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1))
+                    .hint("_id_").batchSize(OPLOG_REFS_BATCH_SIZE)) {
+                while (cursor.hasNext()) {
+                    BasicDBObject refResult = (BasicDBObject) cursor.next();
+                    BasicDBObject refId = (BasicDBObject) refResult.get(MongoDBRiver.MONGODB_ID_FIELD);
+                    ObjectId refOid = (ObjectId) refId.get(MongoDBRiver.MONGODB_OID_FIELD);
+                    if (!refOid.equals(ref)) {
+                        break;
+                    }
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Processing oplog.refs entry: {} seq {}", ref, refId.get(MongoDBRiver.MONGODB_SEQ_FIELD));
+                    }
+                    processOplogEntry(refResult, timestamp, oplogTimestamp);
+                    refs++;
                 }
-
-                logger.debug("Processing oplog.refs entry: {} seq {}", ref, seq);
-
-                seq = refId.getLong(MongoDBRiver.MONGODB_SEQ_FIELD);
-                processOplogEntry(refResult, timestamp, oplogTimestamp);
             }
+            logger.debug("Processed {} oplog.refs entries for {}", refs, ref);
             return timestamp;
         } else {
             throw new SlurperException("Invalid oplog entry - namespace is null, but ref field is missing");
         }
     }
 
+    private static BasicDBObject refId(ObjectId ref, long seq) {
+        // Field order matters when comparing embedded documents
+        return new BasicDBObject(MongoDBRiver.MONGODB_OID_FIELD, ref).append(MongoDBRiver.MONGODB_SEQ_FIELD, seq);
+    }
+
     private void processAdminCommandOplogEntry(final DBObject entry) throws InterruptedException {
         if (logger.isTraceEnabled()) {
             logger.trace("processAdminCommandOplogEntry - [{}]", entry);
@@ -397,16 +562,39 @@ class OplogSlurper implements Runnable {
         if (definition.isImportAllCollections()) {
             if (object.containsField(MongoDBRiver.OPLOG_RENAME_COLLECTION_COMMAND_OPERATION) && object.containsField(MongoDBRiver.OPLOG_TO)) {
                 String to = object.get(MongoDBRiver.OPLOG_TO).toString();
-                if (to.startsWith(definition.getMongoDb())) {
+                if (to.startsWith(definition.getMongoDb() + '.')) {
                     String newCollection = getCollectionFromNamespace(to);
-                    DBCollection coll = slurpedDb.getCollection(newCollection);
-                    CollectionSlurper importer = new CollectionSlurper(mongoClusterClient, definition, context, esClient);
-                    importer.importCollection(coll, timestamp);
+                    importCollection(slurpedDb.getCollection(newCollection));
                 }
             }
         }
     }
 
+    /*
+     * Import the collection in the import lane while the oplog is tailed on
+     */
+    private void importCollection(final DBCollection collection) {
+        if (importExecutor == null) {
+            importExecutor = EsExecutors.newFixed(1, -1, EsExecutors.daemonThreadFactory("mongodb_river_import:" + definition.getIndexName()));
+        }
+        // Before the next oplog entries of the collection reach the indexer
+        context.getImportingCollections().add(collection.getName());
+        importExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The oplog checkpoints cover the import once it is indexed
+                    new CollectionSlurper(mongoClusterClient, definition, context, esClient).importCollection(collection, null);
+                } catch (MongoInterruptedException | InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    logger.error("Import of {} failed", e, collection.getFullName());
+                    MongoDBRiverHelper.setRiverStatus(esClient, definition.getRiverName(), Status.IMPORT_FAILED);
+                }
+            }
+        });
+    }
+
     private String getCollectionFromNamespace(String namespace) {
         if (namespace.startsWith(definition.getMongoDb() + '.')) {
             return namespace.substring(definition.getMongoDb().length() + 1);
@@ -451,7 +639,7 @@ class OplogSlurper implements Runnable {
         } else {
             if (definition.isImportAllCollections()) {
                 // Skip temp entry generated by map / reduce
-                if (namespace.startsWith(definition.getMongoDb()) && !namespace.startsWith(definition.getMongoDb() + ".tmp.mr")) {
+                if (namespace.startsWith(definition.getMongoDb() + '.') && !namespace.startsWith(definition.getMongoDb() + ".tmp.mr")) {
                     validNamespace = true;
                 }
             } else {
@@ -481,24 +669,14 @@ class OplogSlurper implements Runnable {
             return false;
         }
 
-        // TODO: implement a better solution
-        if (definition.getMongoOplogFilter() != null) {
+        // Only inserts carry the document: updates are matched on their
+        // post-image, deletes and commands always apply. Filters the
+        // matchers do not support are evaluated when the insert is queued.
+        OplogFilter filter = definition.getOplogFilter();
+        if (filter != null && filter.isSupported() && MongoDBRiver.OPLOG_INSERT_OPERATION.equals(operation)) {
             DBObject object = (DBObject) entry.get(MongoDBRiver.OPLOG_OBJECT);
-            BasicDBObject filter = definition.getMongoOplogFilter();
-            if (!filterMatch(filter, object)) {
-                logger.trace("[Invalid Oplog Entry] - filter [{}] does not match object [{}]", filter, object);
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private boolean filterMatch(DBObject filter, DBObject object) {
-        for (String key : filter.keySet()) {
-            if (!object.containsField(key)) {
-                return false;
-            }
-            if (!filter.get(key).equals(object.get(key))) {
+            if (object != null && !filter.matches(object)) {
+                logger.trace("[Invalid Oplog Entry] - filter [{}] does not match object [{}]", definition.getMongoOplogFilter(), object);
                 return false;
             }
         }
@@ -587,6 +765,115 @@ class OplogSlurper implements Runnable {
         }
     }
 
+    /*
+     * Partial updates skip the post-image: nothing may need the whole document
+     */
+    private static boolean isPartialUpdate(MongoDBRiverDefinition definition) {
+        if (!definition.isPartialUpdate()) {
+            return false;
+        }
+        String option = null;
+        if (definition.getScript() != null) {
+            option = MongoDBRiverDefinition.SCRIPT_FIELD;
+        } else if (definition.getOplogFilter() != null) {
+            option = MongoDBRiverDefinition.FILTER_FIELD;
+        } else if (definition.getParentTypes() != null) {
+            option = MongoDBRiverDefinition.PARENT_TYPES_FIELD;
+        } else if (definition.isMongoGridFS()) {
+            option = MongoDBRiverDefinition.GRIDFS_FIELD;
+        } else if (definition.isExternalVersion()) {
+            // Update requests only support internal versions
+            option = MongoDBRiverDefinition.EXTERNAL_VERSION_FIELD;
+        }
+        if (option != null) {
+            logger.warn("Option {} ignored: not supported with {}", MongoDBRiverDefinition.PARTIAL_UPDATE_FIELD, option);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * The updates needing a script read the post-image if the data nodes do not run them
+     */
+    private static boolean isPartialUpdateScripts(MongoDBRiverDefinition definition, Client esClient) {
+        if (!definition.isPartialUpdateScripts()) {
+            return false;
+        }
+        if (!MongoDBRiverHelper.isGroovyDynamicScriptingEnabled(esClient)) {
+            logger.warn("Option {}.{} ignored: dynamic Groovy scripting is disabled", MongoDBRiverDefinition.PARTIAL_UPDATE_FIELD,
+                    MongoDBRiverDefinition.SCRIPTS_FIELD);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send the modifiers of an update to the indexer as a partial update.
+     *
+     * @return false if the post-image must be read instead
+     */
+    private boolean addPartialUpdateToStream(final Timestamp<?> currentTimestamp, final DBObject selector, final DBObject modifiers,
+            final String collection) throws InterruptedException {
+        if (!partialUpdate || collection == null || modifiers == null) {
+            return false;
+        }
+        Object id = selector.get(MongoDBRiver.MONGODB_ID_FIELD);
+        // The imported version of the document must be indexed before an update applies to it
+        if (id == null || context.getImportingCollections().contains(collection)) {
+            return false;
+        }
+        // The indexer inlines the DBRefs of whole documents only
+        if (definition.isResolveDbRefs() && hasDbRef(modifiers)) {
+            return false;
+        }
+        PartialUpdate update = PartialUpdate.of(modifiers, partialUpdateScripts);
+        if (update == null) {
+            return false;
+        }
+        for (String path : update.getPaths()) {
+            if (isFieldFiltered(path)) {
+                return false;
+            }
+        }
+        BasicDBObject data = new BasicDBObject(modifiers.toMap());
+        data.put(MongoDBRiver.MONGODB_ID_FIELD, id);
+        context.getMetrics().partialUpdates.inc();
+        addToStream(Operation.PARTIAL_UPDATE, currentTimestamp, data, collection);
+        return true;
+    }
+
+    private static boolean hasDbRef(DBObject object) {
+        for (String key : object.keySet()) {
+            Object value = object.get(key);
+            if (value instanceof DBRef || (value instanceof DBObject && hasDbRef((DBObject) value))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The included / excluded fields are applied to whole documents: updates of their paths read the post-image
+     */
+    private boolean isFieldFiltered(String path) {
+        if (definition.getExcludeFields() != null) {
+            for (String field : definition.getExcludeFields()) {
+                if (path.equals(field) || path.startsWith(field + ".") || field.startsWith(path + ".")) {
+                    return true;
+                }
+            }
+        }
+        if (definition.getIncludeFields() != null) {
+            for (String field : definition.getIncludeFields()) {
+                if (path.equals(field) || path.startsWith(field + ".")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
     private void addQueryToStream(final Operation operation, final Timestamp<?> currentTimestamp, final DBObject update,
             final String collection) throws InterruptedException {
         if (logger.isTraceEnabled()) {
@@ -594,22 +881,64 @@ class OplogSlurper implements Runnable {
         }
 
         if (collection == null) {
-            for (String name : slurpedDb.getCollectionNames()) {
-                DBCollection slurpedCollection = slurpedDb.getCollection(name);
-                addQueryToStream(operation, currentTimestamp, update, name, slurpedCollection);
-            }
-        } else {
-            DBCollection slurpedCollection = slurpedDb.getCollection(collection);
-            addQueryToStream(operation, currentTimestamp, update, collection, slurpedCollection);
+            // The namespace is not a collection of the river database: nothing to look up
+            logger.debug("addQueryToStream - no collection for operation [{}], update [{}]. Skipped.", operation, update);
+            context.getMetrics().oplogFiltered.inc();
+            return;
         }
+        DBCollection slurpedCollection = slurpedDb.getCollection(collection);
+        addQueryToStream(operation, currentTimestamp, update, collection, slurpedCollection);
     }
 
     private void addQueryToStream(final Operation operation, final Timestamp<?> currentTimestamp, final DBObject update,
                 final String collection, final DBCollection slurpedCollection) throws InterruptedException {
+        long start = System.currentTimeMillis();
         DBObject item = slurpedCollection.findOne(update, findKeys);
+        context.getMetrics().postImageLookupMillis.record(System.currentTimeMillis() - start);
         if(item != null) {
-            addToStream(operation, currentTimestamp, item, collection);
+            addPostImageToStream(operation, currentTimestamp, item, collection, findKeysWithFilterFields);
+        }
+    }
+
+    /**
+     * Index the post-image of an update, or delete the document if it does
+     * not match the filter anymore.
+     */
+    private void addPostImageToStream(final Operation operation, final Timestamp<?> currentTimestamp, final DBObject item,
+            final String collection, boolean filterFields) throws InterruptedException {
+        if (!matchesFilter(item, collection)) {
+            logger.trace("Filter [{}] does not match post-image of [{}]. Delete it.", definition.getMongoOplogFilter(),
+                    item.get(MongoDBRiver.MONGODB_ID_FIELD));
+            addToStream(Operation.DELETE, currentTimestamp,
+                    new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, item.get(MongoDBRiver.MONGODB_ID_FIELD)), collection);
+            return;
+        }
+        addToStream(operation, currentTimestamp, filterFields ? applyFieldFilter(item) : item, collection);
+    }
+
+    /**
+     * Match a document against the filter. A filter the matchers do not
+     * support is evaluated by the server, on the current version of the
+     * document: a later entry brings it in line with the oplog.
+     */
+    private boolean matchesFilter(final DBObject document, final String collection) {
+        OplogFilter filter = definition.getOplogFilter();
+        if (filter == null) {
+            return true;
+        }
+        if (filter.isSupported()) {
+            return filter.matches(document);
+        }
+        Object id = document.get(MongoDBRiver.MONGODB_ID_FIELD);
+        if (id == null) {
+            return false;
         }
+        DBObject query = new BasicDBObject(QueryOperators.AND, ImmutableList.of(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id),
+                definition.getMongoOplogFilter()));
+        long start = System.currentTimeMillis();
+        DBObject found = slurpedDb.getCollection(collection).findOne(query, new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1));
+        context.getMetrics().postImageLookupMillis.record(System.currentTimeMillis() - start);
+        return found != null;
     }
 
     private String addInsertToStream(final Timestamp<?> currentTimestamp, final DBObject data, final String collection)
@@ -640,16 +969,20 @@ class OplogSlurper implements Runnable {
             logger.info("addToStream - Operation.DROP_DATABASE, currentTimestamp [{}], data [{}], collection [{}]",
                     currentTimestamp, data, collection);
             if (definition.isImportAllCollections()) {
-                for (String name : slurpedDb.getCollectionNames()) {
+                // Collections as cached before the drop
+                for (String name : context.getCollectionNameCache().get(slurpedDb)) {
                     logger.info("addToStream - isImportAllCollections - Operation.DROP_DATABASE, currentTimestamp [{}], data [{}], collection [{}]",
                             currentTimestamp, data, name);
-                    context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, name));
+                    context.getStream().put(new MongoDBRiver.QueueEntry(shard, currentTimestamp, Operation.DROP_COLLECTION, data, name));
                 }
             } else {
-                context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, collection));
+                context.getStream().put(new MongoDBRiver.QueueEntry(shard, currentTimestamp, Operation.DROP_COLLECTION, data, collection));
             }
+            context.getCollectionNameCache().invalidate(slurpedDb.getName());
+            dropped = true;
         } else {
-            context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, operation, data, collection));
+            context.getStream().put(new MongoDBRiver.QueueEntry(shard, currentTimestamp, operation, data, collection));
+            dropped |= operation == Operation.DROP_COLLECTION;
         }
     }
 
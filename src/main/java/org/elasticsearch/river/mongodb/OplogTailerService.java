@@ -0,0 +1,279 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Singleton;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoInterruptedException;
+
+/**
+ * Node level oplog tailer shared by the rivers that set
+ * {@code options.shared_oplog}.
+ *
+ * The oplog of a replica set is read by a single tailable cursor, whatever
+ * the number of rivers reading it. Entries are routed by namespace to the
+ * queues of the {@link Subscription}s of the matching database. A tailer
+ * never waits for a river: the subscription of a river whose queue is full
+ * is detached, and the river catches up on its own cursor from its last
+ * processed entry before subscribing again.
+ */
+@Singleton
+public class OplogTailerService extends AbstractLifecycleComponent<OplogTailerService> {
+
+    public static final String QUEUE_SIZE_SETTING = "mongodb.oplog_tailer.queue_size";
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private final int queueSize;
+    // Clients are shared by the rivers with the same servers, credentials and options
+    private final Map<MongoClient, Tailer> tailers = new HashMap<>();
+
+    /**
+     * Oplog entries of one database, for one river.
+     */
+    public class Subscription {
+
+        private final String name;
+        private final String database;
+        private final Tailer tailer;
+        private final BlockingQueue<DBObject> queue;
+        private final Timestamp<?> start;
+        private volatile boolean detached;
+
+        private Subscription(String name, String database, Tailer tailer, Timestamp<?> start) {
+            this.name = name;
+            this.database = database;
+            this.tailer = tailer;
+            this.queue = new ArrayBlockingQueue<DBObject>(queueSize);
+            this.start = start;
+        }
+
+        /**
+         * @return the last entry read before the subscription: only the
+         *         entries after it are queued
+         */
+        public Timestamp<?> getStart() {
+            return start;
+        }
+
+        /**
+         * @return the last entry read by the tailer. All entries up to it
+         *         have been queued if the subscription is not detached.
+         */
+        public Timestamp<?> getPosition() {
+            return tailer.position;
+        }
+
+        /**
+         * @return true once entries have been dropped: the subscription
+         *         cannot be read any further
+         */
+        public boolean isDetached() {
+            return detached;
+        }
+
+        public DBObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return queue.poll(timeout, unit);
+        }
+
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        public void close() {
+            tailer.unsubscribe(this);
+        }
+
+        private boolean routes(String namespace) {
+            // TokuMX transactions hold the namespaces in their operations
+            return namespace == null || namespace.startsWith(database + '.') || namespace.equals(MongoDBRiver.OPLOG_ADMIN_COMMAND);
+        }
+
+        private void detach() {
+            if (!detached) {
+                detached = true;
+                queue.clear();
+                logger.info("Oplog subscription {} fell behind. Detached.", name);
+            }
+        }
+    }
+
+    /**
+     * The cursor on the oplog of one replica set.
+     */
+    private class Tailer implements Runnable {
+
+        private final MongoClient client;
+        private final DBCollection oplogCollection;
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private final List<Subscription> targets = new ArrayList<>();
+        private volatile Timestamp<?> position;
+        private Thread thread;
+
+        private Tailer(MongoClient client) {
+            this.client = client;
+            this.oplogCollection = client.getDB(MongoDBRiver.MONGODB_LOCAL_DATABASE).getCollection(MongoDBRiver.OPLOG_COLLECTION);
+            this.position = getHead();
+        }
+
+        private synchronized Subscription subscribe(String name, String database) {
+            Subscription subscription = new Subscription(name, database, this, position);
+            subscriptions.add(subscription);
+            if (thread == null) {
+                thread = EsExecutors.daemonThreadFactory(settings, "mongodb_river_oplog_tailer").newThread(this);
+                thread.start();
+            }
+            logger.debug("Oplog subscription {} from {} - {} subscriptions", name, position, subscriptions.size());
+            return subscription;
+        }
+
+        private void unsubscribe(Subscription subscription) {
+            synchronized (OplogTailerService.this) {
+                synchronized (this) {
+                    subscriptions.remove(subscription);
+                    logger.debug("Oplog subscription {} closed - {} subscriptions", subscription.name, subscriptions.size());
+                    if (subscriptions.isEmpty()) {
+                        tailers.remove(client);
+                        if (thread != null) {
+                            thread.interrupt();
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                DBCursor cursor = null;
+                try {
+                    DBObject filter = position.getOplogFilter();
+                    cursor = oplogCollection.find(filter).setOptions(
+                            Bytes.QUERYOPTION_TAILABLE | Bytes.QUERYOPTION_AWAITDATA | Bytes.QUERYOPTION_NOTIMEOUT
+                                    | Bytes.QUERYOPTION_OPLOGREPLAY);
+                    if (filter.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
+                        cursor = cursor.hint("_id_");
+                    }
+                    while (cursor.hasNext()) {
+                        DBObject entry = cursor.next();
+                        Object applied = entry.get("a");
+                        if (applied != null && !applied.equals(Boolean.TRUE)) {
+                            // TokuMX entry not applied yet: read it again
+                            break;
+                        }
+                        Timestamp<?> timestamp = Timestamp.on(entry);
+                        if (Timestamp.compare(timestamp, position) > 0) {
+                            dispatch(entry, timestamp);
+                        }
+                    }
+                    Thread.sleep(500);
+                } catch (MongoInterruptedException | InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    // Restart from the head: the subscriptions catch up on their own cursors
+                    logger.warn("Failed to tail the oplog of {}. Will retry.", e, client.getServerAddressList());
+                    synchronized (this) {
+                        for (Subscription subscription : subscriptions) {
+                            subscription.detach();
+                        }
+                    }
+                    try {
+                        Thread.sleep(MongoDBRiver.MONGODB_RETRY_ERROR_DELAY_MS);
+                        position = getHead();
+                    } catch (InterruptedException iEx) {
+                        break;
+                    } catch (Exception hEx) {
+                        logger.debug("Cannot read the head of the oplog of {}", hEx, client.getServerAddressList());
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+            logger.debug("Stopped oplog tailer of {}", client.getServerAddressList());
+        }
+
+        private synchronized void dispatch(DBObject entry, Timestamp<?> timestamp) {
+            Object namespace = entry.get(MongoDBRiver.OPLOG_NAMESPACE);
+            for (Subscription subscription : subscriptions) {
+                if (!subscription.detached && subscription.routes(namespace != null ? namespace.toString() : null)) {
+                    targets.add(subscription);
+                }
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                // The rivers change the entries they process: each one gets its own copy
+                DBObject copy = i > 0 && entry instanceof BasicDBObject ? (DBObject) ((BasicDBObject) entry).copy() : entry;
+                if (!targets.get(i).queue.offer(copy)) {
+                    targets.get(i).detach();
+                }
+            }
+            targets.clear();
+            // Entries are queued before the position moves past them
+            position = timestamp;
+        }
+
+        private Timestamp<?> getHead() {
+            try (DBCursor cursor = oplogCollection.find().sort(new BasicDBObject(MongoDBRiver.INSERTION_ORDER_KEY, -1)).limit(1)) {
+                return Timestamp.on(cursor.next());
+            }
+        }
+    }
+
+    @Inject
+    public OplogTailerService(Settings settings) {
+        super(settings);
+        this.queueSize = Math.max(1, settings.getAsInt(QUEUE_SIZE_SETTING, DEFAULT_QUEUE_SIZE));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        synchronized (this) {
+            for (Tailer tailer : tailers.values()) {
+                if (tailer.thread != null) {
+                    tailer.thread.interrupt();
+                }
+            }
+            tailers.clear();
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    /**
+     * Subscribe to the entries of a database in the oplog read by
+     * {@code client}, starting the tailer of this oplog if needed.
+     */
+    public synchronized Subscription subscribe(String name, MongoClient client, String database) {
+        Tailer tailer = tailers.get(client);
+        if (tailer == null) {
+            tailer = new Tailer(client);
+            tailers.put(client, tailer);
+            logger.info("Start shared oplog tailer of {} from {}", client.getServerAddressList(), tailer.position);
+        }
+        return tailer.subscribe(name, database);
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The modifiers of an oplog update translated into an Elasticsearch partial
+ * update, so the post-image does not have to be read from MongoDB.
+ *
+ * A {@code $set} of values other than sub documents is sent as a partial
+ * document, merged into the indexed one. {@code $unset} and a {@code $set} of
+ * sub documents, which must replace the indexed ones, need {@link #SCRIPT}:
+ * they are only translated when scripted updates are enabled. Other operators
+ * and paths through array positions are not translated: the post-image is read
+ * instead. MongoDB logs an {@code $inc} as the {@code $set} of its result,
+ * which can be applied again on replay.
+ */
+class PartialUpdate {
+
+    static final String SET = "$set";
+    static final String UNSET = "$unset";
+
+    static final String SET_PARAM = "set";
+    static final String UNSET_PARAM = "unset";
+
+    /**
+     * Groovy script applying the {@code set} and {@code unset} parameters, keyed by dotted path, to the indexed source.
+     */
+    static final String SCRIPT = "for (p in set.keySet()) { s = ctx._source; k = p.tokenize('.'); "
+            + "for (i = 0; i < k.size() - 1; i++) { if (!(s[k[i]] instanceof Map)) { s[k[i]] = [:] }; s = s[k[i]] }; "
+            + "s[k[-1]] = set[p] }; "
+            + "for (p in unset) { s = ctx._source; k = p.tokenize('.'); "
+            + "for (i = 0; i < k.size() - 1 && s instanceof Map; i++) { s = s[k[i]] }; "
+            + "if (s instanceof Map) { s.remove(k[-1]) } }";
+
+    private final DBObject set;
+    private final List<String> unset;
+    private final boolean script;
+
+    private PartialUpdate(DBObject set, List<String> unset, boolean script) {
+        this.set = set;
+        this.unset = unset;
+        this.script = script;
+    }
+
+    /**
+     * @param modifiers
+     *            the {@code o} field of an update oplog entry, its
+     *            {@code _id} is ignored
+     * @param scripts
+     *            true if the update may be applied by {@link #SCRIPT}
+     * @return null if the modifiers cannot be translated
+     */
+    static PartialUpdate of(DBObject modifiers, boolean scripts) {
+        DBObject set = new BasicDBObject();
+        List<String> unset = new ArrayList<String>();
+        boolean script = false;
+        for (String operator : modifiers.keySet()) {
+            if (operator.equals(MongoDBRiver.MONGODB_ID_FIELD)) {
+                continue;
+            }
+            Object value = modifiers.get(operator);
+            if (!(value instanceof DBObject) || value instanceof List) {
+                return null;
+            }
+            DBObject fields = (DBObject) value;
+            for (String path : fields.keySet()) {
+                if (!isTranslatable(path)) {
+                    return null;
+                }
+            }
+            switch (operator) {
+            case SET:
+                for (String path : fields.keySet()) {
+                    Object field = fields.get(path);
+                    // A partial document would be merged into the indexed sub document
+                    script |= field instanceof DBObject && !(field instanceof List);
+                    set.put(path, field);
+                }
+                break;
+            case UNSET:
+                unset.addAll(fields.keySet());
+                script = true;
+                break;
+            default:
+                return null;
+            }
+        }
+        if (script && !scripts) {
+            return null;
+        }
+        return new PartialUpdate(set, unset, script);
+    }
+
+    /**
+     * @return the paths the update changes
+     */
+    List<String> getPaths() {
+        List<String> paths = new ArrayList<String>(set.keySet());
+        paths.addAll(unset);
+        return paths;
+    }
+
+    boolean isScript() {
+        return script;
+    }
+
+    /**
+     * @return the partial document of a {@code $set}, with the dotted paths
+     *         expanded to sub documents
+     */
+    DBObject getDoc() {
+        DBObject doc = new BasicDBObject();
+        for (String path : set.keySet()) {
+            String[] segments = path.split("\\.");
+            DBObject parent = doc;
+            for (int i = 0; i < segments.length - 1; i++) {
+                Object child = parent.get(segments[i]);
+                if (!(child instanceof DBObject)) {
+                    child = new BasicDBObject();
+                    parent.put(segments[i], child);
+                }
+                parent = (DBObject) child;
+            }
+            parent.put(segments[segments.length - 1], set.get(path));
+        }
+        return doc;
+    }
+
+    /**
+     * @return the parameters of {@link #SCRIPT}
+     */
+    Map<String, Object> getParams() {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put(SET_PARAM, set);
+        params.put(UNSET_PARAM, unset);
+        return params;
+    }
+
+    private static boolean isTranslatable(String path) {
+        if (path.isEmpty() || path.startsWith(".") || path.endsWith(".") || path.contains("..")) {
+            return false;
+        }
+        for (String segment : path.split("\\.")) {
+            // Positions in arrays, including the positional operator $
+            if (segment.startsWith("$") || isNumber(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
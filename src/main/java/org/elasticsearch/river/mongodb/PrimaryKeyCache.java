@@ -0,0 +1,124 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+/**
+ * Primary key fields of the TokuMX collections, by namespace.
+ *
+ * TokuMX oplog entries only carry the values of the primary key. The field
+ * names come from the index definitions, read once and shared by the oplog
+ * slurpers of every shard. Index and collection commands seen in the oplog
+ * invalidate the namespaces they touch.
+ */
+class PrimaryKeyCache {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(PrimaryKeyCache.class.getName());
+
+    static final String PRIMARY_KEY_INDEX = "primaryKey";
+    static final String ID_INDEX = "_id_";
+    static final String SYSTEM_INDEXES = "system.indexes";
+    // Commands whose value is the name of the collection they change
+    private static final String[] COLLECTION_COMMANDS = { "createIndexes", "dropIndexes", "deleteIndexes",
+            MongoDBRiver.OPLOG_DROP_COMMAND_OPERATION };
+
+    private final Cache<String, List<String>> keys = CacheBuilder.newBuilder().build();
+
+    /**
+     * @return the primary key fields of the collection, or null if it has no
+     *         primary key or _id index
+     */
+    List<String> get(DB db, String collection) {
+        String namespace = db.getName() + "." + collection;
+        List<String> fields = keys.getIfPresent(namespace);
+        if (fields != null) {
+            return fields;
+        }
+        BasicDBObject idKey = null;
+        BasicDBObject pkKey = null;
+        for (DBObject idx : db.getCollection(collection).getIndexInfo()) {
+            if (PRIMARY_KEY_INDEX.equals(idx.get("name"))) {
+                pkKey = (BasicDBObject) idx.get("key");
+            } else if (ID_INDEX.equals(idx.get("name"))) {
+                idKey = (BasicDBObject) idx.get("key");
+            }
+        }
+        fields = new ArrayList<String>();
+        BasicDBObject key = pkKey != null ? pkKey : idKey;
+        if (key != null) {
+            for (Map.Entry<String, Object> entry : key.entrySet()) {
+                fields.add(entry.getKey());
+            }
+        }
+        logger.debug("Primary key of {}: {}", namespace, fields);
+        // The collection may not exist yet: read it again next time
+        if (fields.isEmpty()) {
+            return null;
+        }
+        keys.put(namespace, fields);
+        return fields;
+    }
+
+    /**
+     * Forget the namespaces whose indexes are changed by an oplog entry.
+     */
+    void invalidate(DBObject entry) {
+        Object namespaceValue = entry.get(MongoDBRiver.OPLOG_NAMESPACE);
+        Object object = entry.get(MongoDBRiver.OPLOG_OBJECT);
+        if (namespaceValue == null || !(object instanceof DBObject)) {
+            return;
+        }
+        String namespace = namespaceValue.toString();
+        DBObject command = (DBObject) object;
+        int dot = namespace.indexOf('.');
+        if (dot < 0) {
+            return;
+        }
+        String db = namespace.substring(0, dot);
+        String collection = namespace.substring(dot + 1);
+
+        if (collection.equals(SYSTEM_INDEXES)) {
+            // Index created by an insert (MongoDB 2.x, TokuMX)
+            Object indexNamespace = command.get("ns");
+            if (indexNamespace != null) {
+                invalidate(indexNamespace.toString());
+            }
+        } else if (collection.equals(MongoDBRiver.OPLOG_NAMESPACE_COMMAND)) {
+            for (String name : COLLECTION_COMMANDS) {
+                Object target = command.get(name);
+                if (target != null) {
+                    invalidate(db + "." + target);
+                }
+            }
+            if (command.containsField(MongoDBRiver.OPLOG_RENAME_COLLECTION_COMMAND_OPERATION)) {
+                invalidate(String.valueOf(command.get(MongoDBRiver.OPLOG_RENAME_COLLECTION_COMMAND_OPERATION)));
+                invalidate(String.valueOf(command.get(MongoDBRiver.OPLOG_TO)));
+            }
+            if (command.containsField(MongoDBRiver.OPLOG_DROP_DATABASE_COMMAND_OPERATION)) {
+                for (String cached : keys.asMap().keySet()) {
+                    if (cached.startsWith(db + ".")) {
+                        invalidate(cached);
+                    }
+                }
+            }
+        }
+    }
+
+    void invalidate(String namespace) {
+        if (keys.getIfPresent(namespace) != null) {
+            logger.debug("Invalidate primary key of {}", namespace);
+            keys.invalidate(namespace);
+        }
+    }
+
+}
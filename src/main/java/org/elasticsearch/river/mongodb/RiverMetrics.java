@@ -0,0 +1,206 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Counters, histograms and gauges for each stage of the river pipeline:
+ * oplog tailing, post-image lookups, queue, script transformation, DBRef
+ * resolution, bulk requests and checkpoints.
+ */
+class RiverMetrics {
+
+    /**
+     * Histogram with power of two buckets: percentiles are reported as the
+     * upper bound of their bucket.
+     */
+    static class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final MeanMetric mean = new MeanMetric();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            // Bucket i holds the values from 2^(i-1) to 2^i - 1
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            mean.inc(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        long count() {
+            return mean.count();
+        }
+
+        double mean() {
+            return mean.mean();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long count = mean.count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        void toXContent(XContentBuilder builder, String name) throws IOException {
+            builder.startObject(name);
+            builder.field("count", count());
+            builder.field("mean", mean());
+            builder.field("max", max());
+            builder.field("p50", percentile(50));
+            builder.field("p95", percentile(95));
+            builder.field("p99", percentile(99));
+            builder.endObject();
+        }
+    }
+
+    final CounterMetric oplogEntries = new CounterMetric();
+    final CounterMetric oplogFiltered = new CounterMetric();
+    final CounterMetric partialUpdates = new CounterMetric();
+    final CounterMetric importedDocuments = new CounterMetric();
+    final Histogram postImageLookupMillis = new Histogram();
+    final Histogram transformMicros = new Histogram();
+    final CounterMetric dbRefCacheHits = new CounterMetric();
+    final CounterMetric dbRefCacheMisses = new CounterMetric();
+    final Histogram dbRefLookupMillis = new Histogram();
+    final Histogram bulkLatencyMillis = new Histogram();
+    final Histogram bulkSize = new Histogram();
+    final CounterMetric bulkFailures = new CounterMetric();
+    final CounterMetric versionConflicts = new CounterMetric();
+    final CounterMetric missingDocuments = new CounterMetric();
+    private final ConcurrentMap<String, OplogLag> oplogLags = Maps.newConcurrentMap();
+
+    private volatile Timestamp<?> checkpoint;
+    private volatile long checkpointMillis;
+
+    // Previous snapshot, to report rates
+    private long lastSnapshotMillis = System.currentTimeMillis();
+    private long lastOplogEntries;
+    private long lastOplogFiltered;
+    private long lastImportedDocuments;
+    private long lastIndexedDocuments;
+
+    /**
+     * Track the lag of a shard oplog slurper, replacing the one of a previous start.
+     */
+    void addOplogLag(OplogLag oplogLag) {
+        oplogLags.put(oplogLag.getShard(), oplogLag);
+    }
+
+    void sampleOplogLag() {
+        for (OplogLag oplogLag : oplogLags.values()) {
+            oplogLag.sample();
+        }
+    }
+
+    void checkpoint(Timestamp<?> timestamp) {
+        checkpoint = timestamp;
+        checkpointMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the current values. Rates are computed since the previous call.
+     */
+    synchronized void toXContent(XContentBuilder builder, int queueSize, int importQueueSize) throws IOException {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastSnapshotMillis) / 1000.0;
+        long indexedDocuments = bulkSize.mean.sum();
+
+        builder.field("timestamp", now);
+        builder.startObject("oplog");
+        builder.field("read", oplogEntries.count());
+        builder.field("read_per_second", (oplogEntries.count() - lastOplogEntries) / seconds);
+        builder.field("filtered", oplogFiltered.count());
+        builder.field("filtered_per_second", (oplogFiltered.count() - lastOplogFiltered) / seconds);
+        builder.field("partial_updates", partialUpdates.count());
+        postImageLookupMillis.toXContent(builder, "post_image_lookup_ms");
+        builder.startObject("lag");
+        long maxSeconds = 0;
+        boolean warning = false;
+        for (OplogLag oplogLag : oplogLags.values()) {
+            maxSeconds = Math.max(maxSeconds, oplogLag.getSeconds());
+            warning |= oplogLag.isWarning();
+        }
+        builder.field("seconds", maxSeconds);
+        builder.field("warning", warning);
+        builder.startObject("shards");
+        for (OplogLag oplogLag : oplogLags.values()) {
+            oplogLag.toXContent(builder);
+        }
+        builder.endObject();
+        builder.endObject();
+        builder.endObject();
+
+        builder.startObject("initial_import");
+        builder.field("documents", importedDocuments.count());
+        builder.field("documents_per_second", (importedDocuments.count() - lastImportedDocuments) / seconds);
+        builder.endObject();
+
+        builder.startObject("queue");
+        builder.field("size", queueSize);
+        builder.field("import_size", importQueueSize);
+        builder.endObject();
+
+        transformMicros.toXContent(builder, "transform_us");
+
+        builder.startObject("dbref");
+        long hits = dbRefCacheHits.count();
+        long misses = dbRefCacheMisses.count();
+        builder.field("cache_hits", hits);
+        builder.field("cache_misses", misses);
+        builder.field("cache_hit_ratio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        dbRefLookupMillis.toXContent(builder, "lookup_ms");
+        builder.endObject();
+
+        builder.startObject("bulk");
+        builder.field("documents", indexedDocuments);
+        builder.field("documents_per_second", (indexedDocuments - lastIndexedDocuments) / seconds);
+        builder.field("failures", bulkFailures.count());
+        builder.field("version_conflicts", versionConflicts.count());
+        builder.field("missing_documents", missingDocuments.count());
+        bulkLatencyMillis.toXContent(builder, "latency_ms");
+        bulkSize.toXContent(builder, "size");
+        builder.endObject();
+
+        builder.startObject("checkpoint");
+        Timestamp<?> timestamp = checkpoint;
+        if (timestamp != null) {
+            builder.field("timestamp", timestamp.toString());
+            builder.field("time", timestamp.getTime());
+            builder.field("age_ms", now - checkpointMillis);
+        }
+        builder.endObject();
+
+        lastSnapshotMillis = now;
+        lastOplogEntries = oplogEntries.count();
+        lastOplogFiltered = oplogFiltered.count();
+        lastImportedDocuments = importedDocuments.count();
+        lastIndexedDocuments = indexedDocuments;
+    }
+
+}
@@ -1,6 +1,12 @@
 package org.elasticsearch.river.mongodb;
 
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 
@@ -10,10 +16,20 @@ import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 public class SharedContext {
 
     private final BlockingQueue<QueueEntry> stream;
+    private final BlockingQueue<QueueEntry> importStream;
+    // Collections imported again while the oplog is tailed
+    private final Set<String> importingCollections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Documents partially updated before they were indexed, by collection / MongoDB id
+    private final Queue<SimpleEntry<String, Object>> missingDocuments = new ConcurrentLinkedQueue<SimpleEntry<String, Object>>();
+    private final ImportThrottle importThrottle = new ImportThrottle();
+    private final RiverMetrics metrics = new RiverMetrics();
+    private final PrimaryKeyCache primaryKeyCache = new PrimaryKeyCache();
+    private final CollectionNameCache collectionNameCache = new CollectionNameCache();
     private Status status;
 
-    public SharedContext(BlockingQueue<QueueEntry> stream, Status status) {
+    public SharedContext(BlockingQueue<QueueEntry> stream, BlockingQueue<QueueEntry> importStream, Status status) {
         this.stream = stream;
+        this.importStream = importStream;
         this.status = status;
     }
 
@@ -21,6 +37,41 @@ public class SharedContext {
         return stream;
     }
 
+    /**
+     * @return the lane of the collection imports, indexed with a lower
+     *         priority than the oplog entries of {@link #getStream()}
+     */
+    public BlockingQueue<QueueEntry> getImportStream() {
+        return importStream;
+    }
+
+    Set<String> getImportingCollections() {
+        return importingCollections;
+    }
+
+    /**
+     * @return the documents the indexer must read from MongoDB again
+     */
+    Queue<SimpleEntry<String, Object>> getMissingDocuments() {
+        return missingDocuments;
+    }
+
+    ImportThrottle getImportThrottle() {
+        return importThrottle;
+    }
+
+    RiverMetrics getMetrics() {
+        return metrics;
+    }
+
+    PrimaryKeyCache getPrimaryKeyCache() {
+        return primaryKeyCache;
+    }
+
+    CollectionNameCache getCollectionNameCache() {
+        return collectionNameCache;
+    }
+
     public Status getStatus() {
         return status;
     }
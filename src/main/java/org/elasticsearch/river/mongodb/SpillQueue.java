@@ -0,0 +1,475 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Stream between the slurpers and the indexer that spills to disk instead of
+ * blocking the slurpers while the indexer is behind.
+ *
+ * Up to {@code capacity} entries are held in memory. Past that the entries
+ * are appended, BSON encoded, to memory mapped segment files until the disk
+ * budget is used; only then does {@link #put(QueueEntry)} block. Entries are
+ * taken in order: from memory first, then from the segments, and a segment is
+ * unmapped and deleted once read. Spilled entries are not checkpointed yet: the segments
+ * of a previous run are deleted and their entries read again from the oplog.
+ */
+class SpillQueue extends AbstractQueue<QueueEntry> implements BlockingQueue<QueueEntry> {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(SpillQueue.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String DATA = "d";
+    private static final String OPERATION = "op";
+    private static final String COLLECTION = "c";
+    private static final String SHARD = "s";
+
+    private final int capacity;
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<QueueEntry> memory = new ArrayDeque<QueueEntry>();
+    // Oldest first, the last one is written
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+    private final DefaultDBDecoder decoder = new DefaultDBDecoder();
+    private int spilled;
+    private long nextSegment;
+
+    /**
+     * A memory mapped file of length prefixed records.
+     */
+    private static class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        // Unmapped: the buffer must not be read anymore
+        private boolean released;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        boolean append(byte[] record) {
+            if (buffer.remaining() < record.length + 4) {
+                return false;
+            }
+            buffer.putInt(record.length);
+            buffer.put(record);
+            return true;
+        }
+
+        boolean hasNext() {
+            return readPosition < buffer.position();
+        }
+
+        byte[] next() {
+            byte[] record = read(readPosition);
+            readPosition += 4 + record.length;
+            return record;
+        }
+
+        byte[] read(int position) {
+            int length = buffer.getInt(position);
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + 4);
+            byte[] record = new byte[length];
+            view.get(record);
+            return record;
+        }
+
+        void delete() {
+            released = true;
+            unmap();
+            if (!file.delete()) {
+                logger.debug("Cannot delete spill segment {}", file);
+            }
+        }
+
+        /*
+         * Release the mapping now rather than once the buffer is collected, as Lucene does for its mapped files
+         */
+        private void unmap() {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                logger.debug("Cannot unmap spill segment {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    SpillQueue(int capacity, File directory, long maxSize, long segmentSize) {
+        this.capacity = Math.max(1, capacity);
+        this.directory = directory;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(1024, segmentSize));
+        this.maxSegments = (int) Math.max(1, maxSize / this.segmentSize);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Cannot create spill directory {}", directory);
+        }
+        deleteSegments();
+    }
+
+    @Override
+    public void put(QueueEntry entry) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(entry)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry entry, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(entry)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry entry) {
+        lock.lock();
+        try {
+            return enqueue(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty() && spilled == 0) {
+                notEmpty.await();
+            }
+            return remove(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty() && spilled == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return remove(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry poll() {
+        lock.lock();
+        try {
+            return remove(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry peek() {
+        lock.lock();
+        try {
+            return remove(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return memory.size() + spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super QueueEntry> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super QueueEntry> collection, int maxElements) {
+        int drained = 0;
+        QueueEntry entry;
+        while (drained < maxElements && (entry = poll()) != null) {
+            collection.add(entry);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return a read only iterator, over the entries in memory when it is
+     *         created then over the spilled entries not taken yet
+     */
+    @Override
+    public Iterator<QueueEntry> iterator() {
+        lock.lock();
+        try {
+            return new Itr(new ArrayList<QueueEntry>(memory), new ArrayList<Segment>(segments));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the segments under the lock, and stops at a segment released
+     * meanwhile.
+     */
+    private class Itr implements Iterator<QueueEntry> {
+
+        private final Iterator<QueueEntry> memoryEntries;
+        private final List<Segment> segmentList;
+        private int segmentIndex;
+        private int position;
+        private QueueEntry next;
+
+        Itr(List<QueueEntry> memoryEntries, List<Segment> segmentList) {
+            this.memoryEntries = memoryEntries.iterator();
+            this.segmentList = segmentList;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public QueueEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            QueueEntry entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private QueueEntry advance() {
+            if (memoryEntries.hasNext()) {
+                return memoryEntries.next();
+            }
+            lock.lock();
+            try {
+                while (segmentIndex < segmentList.size()) {
+                    Segment segment = segmentList.get(segmentIndex);
+                    if (segment.released) {
+                        return null;
+                    }
+                    // Entries taken meanwhile are skipped
+                    position = Math.max(position, segment.readPosition);
+                    if (position < segment.buffer.position()) {
+                        byte[] record = segment.read(position);
+                        position += 4 + record.length;
+                        return fromRecord(decoder.decode(record, (DBCollection) null));
+                    }
+                    segmentIndex++;
+                    position = 0;
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drop the entries and delete the segments.
+     */
+    void close() {
+        lock.lock();
+        try {
+            memory.clear();
+            spilled = 0;
+            releaseSegments();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(QueueEntry entry) {
+        // Once spilling, every entry goes to disk until the indexer drained it
+        if (spilled == 0 && memory.size() < capacity) {
+            memory.add(entry);
+        } else if (!spill(entry)) {
+            return false;
+        }
+        notEmpty.signal();
+        return true;
+    }
+
+    private boolean spill(QueueEntry entry) {
+        if (entry.isAttachment()) {
+            // GridFS files are read from MongoDB by the indexer: wait for memory
+            return false;
+        }
+        byte[] record = encoder.encode(toRecord(entry));
+        Segment segment = segments.peekLast();
+        if (segment == null || !segment.append(record)) {
+            if (segments.size() >= maxSegments || record.length + 4 > segmentSize) {
+                return false;
+            }
+            try {
+                segment = new Segment(new File(directory, SEGMENT_PREFIX + nextSegment++), segmentSize);
+            } catch (IOException e) {
+                logger.warn("Cannot create spill segment in {}", e, directory);
+                return false;
+            }
+            if (segments.isEmpty()) {
+                logger.info("Indexer behind: spill oplog entries to {}", directory);
+            }
+            segments.add(segment);
+            segment.append(record);
+        }
+        spilled++;
+        return true;
+    }
+
+    private QueueEntry remove(boolean remove) {
+        QueueEntry entry;
+        if (!memory.isEmpty()) {
+            entry = remove ? memory.poll() : memory.peek();
+        } else if (spilled > 0) {
+            Segment segment = segments.peekFirst();
+            while (!segment.hasNext()) {
+                segments.poll().delete();
+                segment = segments.peekFirst();
+            }
+            int readPosition = segment.readPosition;
+            entry = fromRecord(decoder.decode(segment.next(), (DBCollection) null));
+            if (!remove) {
+                segment.readPosition = readPosition;
+                return entry;
+            }
+            if (!segment.hasNext() && segment != segments.peekLast()) {
+                // Read and not written anymore
+                segments.poll().delete();
+            }
+            if (--spilled == 0) {
+                logger.info("Spilled oplog entries drained from {}", directory);
+                releaseSegments();
+            }
+        } else {
+            return null;
+        }
+        if (remove) {
+            notFull.signal();
+        }
+        return entry;
+    }
+
+    private void releaseSegments() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+    }
+
+    private void deleteSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_PREFIX) && !file.delete()) {
+                logger.warn("Cannot delete spill segment {}", file);
+            }
+        }
+    }
+
+    private static DBObject toRecord(QueueEntry entry) {
+        DBObject record = new BasicDBObject();
+        if (entry.getOplogTimestamp() != null) {
+            entry.getOplogTimestamp().saveFields(record);
+        }
+        record.put(OPERATION, entry.getOperation().name());
+        record.put(COLLECTION, entry.getCollection());
+        record.put(SHARD, entry.getShard());
+        record.put(DATA, entry.getData());
+        return record;
+    }
+
+    private static QueueEntry fromRecord(DBObject record) {
+        Timestamp<?> timestamp = record.containsField(MongoDBRiver.OPLOG_TIMESTAMP) ? Timestamp.on(record) : null;
+        return new QueueEntry((String) record.get(SHARD), timestamp, Operation.valueOf((String) record.get(OPERATION)),
+                (DBObject) record.get(DATA), (String) record.get(COLLECTION));
+    }
+
+}
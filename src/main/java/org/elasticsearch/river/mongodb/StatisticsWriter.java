@@ -0,0 +1,166 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.elasticsearch.client.Requests.indexRequest;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Aggregate the statistics of the bulk requests in memory and store one
+ * document per index / type and interval, written asynchronously in a
+ * single bulk request.
+ */
+class StatisticsWriter {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(StatisticsWriter.class.getName());
+
+    /**
+     * Statistics of the bulk requests of an index / type during one interval.
+     */
+    static class Rollup {
+
+        private final String index;
+        private final String type;
+        private int bulks;
+        private long inserted;
+        private long updated;
+        private long deleted;
+        private long items;
+        private long totalDuration;
+        private long minDuration = Long.MAX_VALUE;
+        private long maxDuration;
+        private long totalDocuments;
+
+        Rollup(String index, String type) {
+            this.index = index;
+            this.type = type;
+        }
+
+        void add(long duration, long items, long inserted, long updated, long deleted, long totalDocuments) {
+            this.bulks++;
+            this.items += items;
+            this.inserted += inserted;
+            this.updated += updated;
+            this.deleted += deleted;
+            this.totalDuration += duration;
+            this.minDuration = Math.min(minDuration, duration);
+            this.maxDuration = Math.max(maxDuration, duration);
+            this.totalDocuments = Math.max(this.totalDocuments, totalDocuments);
+        }
+
+        Map<String, Object> toSource(Date date, long intervalMillis) {
+            Map<String, Object> statistics = Maps.newHashMap();
+            statistics.put("date", date);
+            statistics.put("index", index);
+            statistics.put("type", type);
+            statistics.put("interval", intervalMillis);
+            statistics.put("bulks", bulks);
+            // Sum over the bulks of the interval, see latency for the per bulk durations
+            statistics.put("total_duration", totalDuration);
+            Map<String, Object> latency = Maps.newHashMap();
+            latency.put("min", minDuration);
+            latency.put("avg", totalDuration / (double) bulks);
+            latency.put("max", maxDuration);
+            statistics.put("latency", latency);
+            statistics.put("throughput", items * 1000.0 / Math.max(1, intervalMillis));
+            statistics.put("documents.inserted", inserted);
+            statistics.put("documents.updated", updated);
+            statistics.put("documents.deleted", deleted);
+            statistics.put("documents.total", totalDocuments);
+            Map<String, Object> source = new HashMap<String, Object>();
+            source.put("statistics", statistics);
+            return source;
+        }
+    }
+
+    private final MongoDBRiverDefinition definition;
+    private final Client client;
+    private final ScheduledExecutorService scheduler;
+    private Map<SimpleEntry<String, String>, Rollup> rollups = new HashMap<>();
+    private long intervalStart = System.currentTimeMillis();
+
+    StatisticsWriter(MongoDBRiverDefinition definition, Client client) {
+        this.definition = definition;
+        this.client = client;
+        long interval = definition.getStatisticsInterval().millis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mongodb_river_statistics:"
+                + definition.getIndexName()));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void record(String index, String type, long duration, long items, long inserted, long updated, long deleted,
+            long totalDocuments) {
+        SimpleEntry<String, String> key = new SimpleEntry<String, String>(index, type);
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            rollup = new Rollup(index, type);
+            rollups.put(key, rollup);
+        }
+        rollup.add(duration, items, inserted, updated, deleted, totalDocuments);
+    }
+
+    /**
+     * Send the statistics of the current interval, if any bulk completed.
+     */
+    void flush() {
+        Map<SimpleEntry<String, String>, Rollup> completed;
+        long start;
+        long end = System.currentTimeMillis();
+        synchronized (this) {
+            completed = rollups;
+            start = intervalStart;
+            rollups = new HashMap<>();
+            intervalStart = end;
+        }
+        if (completed.isEmpty()) {
+            return;
+        }
+        Date date = new Date(end);
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (Rollup rollup : completed.values()) {
+            bulk.add(indexRequest(definition.getStatisticsIndexName()).type(definition.getStatisticsTypeName()).source(
+                    rollup.toSource(date, end - start)));
+        }
+        bulk.execute(new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                if (response.hasFailures()) {
+                    logger.warn("Failed to store statistics: {}", response.buildFailureMessage());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                logger.warn("Failed to store statistics", e);
+            }
+        });
+    }
+
+    /**
+     * Send the pending statistics and stop the periodic flush.
+     */
+    void close() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+}
@@ -1,15 +1,28 @@
 package org.elasticsearch.river.mongodb;
 
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
 class StatusChecker implements Runnable {
     private static final ESLogger logger = ESLoggerFactory.getLogger(StatusChecker.class.getName());
+    private static final long STATS_INTERVAL_MS = 5000;
+    private static final long THROTTLE_INTERVAL_MS = 10000;
 
     private final MongoDBRiver mongoDBRiver;
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
+    private long lastStatsMillis;
+    // Definition the import limits were last read for, and when
+    private MongoDBRiverDefinition throttleDefinition;
+    private long lastThrottleMillis;
 
     public StatusChecker(MongoDBRiver mongoDBRiver, MongoDBRiverDefinition definition, SharedContext context) {
         this.mongoDBRiver = mongoDBRiver;
@@ -21,6 +34,8 @@ class StatusChecker implements Runnable {
     public void run() {
         while (true) {
             try {
+                updateImportThrottle();
+                publishStats();
                 Status status = MongoDBRiverHelper.getRiverStatus(this.mongoDBRiver.esClient, this.definition.getRiverName());
                 if (status != this.context.getStatus()) {
                     if (status == Status.RUNNING && this.context.getStatus() != Status.STARTING) {
@@ -52,4 +67,51 @@ class StatusChecker implements Runnable {
 
         }
     }
+
+    /**
+     * Store a snapshot of the river metrics in the river index, where the
+     * stats REST endpoint reads it from whichever node it runs on.
+     */
+    private void publishStats() {
+        long now = System.currentTimeMillis();
+        if (context.getStatus() != Status.RUNNING || now - lastStatsMillis < STATS_INTERVAL_MS) {
+            return;
+        }
+        lastStatsMillis = now;
+        try {
+            XContentBuilder builder = jsonBuilder().startObject().startObject(MongoDBRiver.TYPE);
+            context.getMetrics().toXContent(builder, context.getStream().size(), context.getImportStream().size());
+            builder.endObject().endObject();
+            this.mongoDBRiver.esClient.prepareIndex("_river", this.definition.getRiverName(), MongoDBRiver.STATS_ID).setSource(builder)
+                    .execute();
+        } catch (IOException e) {
+            logger.warn("Cannot publish statistics of river {}", e, this.definition.getRiverName());
+        }
+    }
+
+    /**
+     * Apply the initial import limits: the ones set through the REST API take
+     * precedence over the river definition. They are read again when the
+     * definition changes, and every 10 seconds for the REST API.
+     */
+    private void updateImportThrottle() {
+        MongoDBRiverDefinition definition = this.mongoDBRiver.definition;
+        long now = System.currentTimeMillis();
+        if (definition == throttleDefinition && now - lastThrottleMillis < THROTTLE_INTERVAL_MS) {
+            return;
+        }
+        throttleDefinition = definition;
+        lastThrottleMillis = now;
+        long maxDocsPerSecond = definition.getInitialImportMaxDocsPerSecond();
+        long maxBytesPerSecond = definition.getInitialImportMaxBytesPerSecond() != null ? definition
+                .getInitialImportMaxBytesPerSecond().bytes() : 0;
+        Map<String, Object> throttle = MongoDBRiverHelper.getRiverThrottle(this.mongoDBRiver.esClient, definition.getRiverName());
+        if (throttle != null) {
+            maxDocsPerSecond = XContentMapValues.nodeLongValue(throttle.get(MongoDBRiverDefinition.MAX_DOCS_PER_SECOND_FIELD), 0);
+            maxBytesPerSecond = XContentMapValues.nodeLongValue(throttle.get(MongoDBRiverDefinition.MAX_BYTES_PER_SECOND_FIELD), 0);
+        }
+        ImportThrottle importThrottle = context.getImportThrottle();
+        importThrottle.setLimits(maxDocsPerSecond, maxBytesPerSecond);
+        importThrottle.setAdaptive(definition.getInitialImportMaxBulkLatency(), definition.getInitialImportMaxQueuedOperations());
+    }
 }
@@ -0,0 +1,90 @@
+package org.elasticsearch.river.mongodb;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+
+/**
+ * Reads the oplog entries and the imported documents of the shared context in
+ * the order the indexer processes them.
+ */
+class StreamLanes {
+
+    private final SharedContext context;
+    private final int liveLaneWeight;
+    // Oplog entries taken in a row while imported documents wait
+    private int liveEntries;
+    // Ids changed by the oplog while their collection is imported, by collection
+    private final Map<String, Set<Object>> liveIds = Maps.newHashMap();
+
+    StreamLanes(SharedContext context, int liveLaneWeight) {
+        this.context = context;
+        this.liveLaneWeight = liveLaneWeight;
+    }
+
+    /*
+     * Take the oplog entries first, and an imported document after every live_lane_weight of them.
+     * Waits up to timeout for an oplog entry if both lanes are empty.
+     */
+    QueueEntry poll(long timeout) throws InterruptedException {
+        BlockingQueue<QueueEntry> stream = context.getStream();
+        BlockingQueue<QueueEntry> importStream = context.getImportStream();
+        QueueEntry entry = null;
+        if (liveEntries < liveLaneWeight || importStream.isEmpty()) {
+            entry = stream.poll();
+        }
+        if (entry == null) {
+            entry = importStream.poll();
+            if (entry != null) {
+                liveEntries = 0;
+                return entry;
+            }
+            entry = stream.poll(timeout, MILLISECONDS);
+        }
+        if (entry != null) {
+            liveEntries = Math.min(liveEntries + 1, liveLaneWeight);
+        }
+        return entry;
+    }
+
+    /*
+     * The oplog entries and the imported documents of a collection are in different lanes: a document
+     * changed by the oplog during the import keeps the version of the oplog, read after the import one
+     */
+    boolean isSuperseded(QueueEntry entry) {
+        String collection = entry.getCollection();
+        if (collection == null || entry.getOperation() == Operation.UPDATE_TIMESTAMP
+                || !context.getImportingCollections().contains(collection)) {
+            return false;
+        }
+        Object id = entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD);
+        if (id == null) {
+            return false;
+        }
+        Set<Object> ids = liveIds.get(collection);
+        if (entry.getShard() != null) {
+            if (ids == null) {
+                ids = Sets.newHashSet();
+                liveIds.put(collection, ids);
+            }
+            ids.add(id);
+            return false;
+        }
+        return ids != null && ids.contains(id);
+    }
+
+    /*
+     * Every document of the collection is indexed
+     */
+    void imported(String collection) {
+        context.getImportingCollections().remove(collection);
+        liveIds.remove(collection);
+    }
+
+}
@@ -1,6 +1,7 @@
 package org.elasticsearch.river.mongodb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
@@ -25,6 +26,12 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
 
     public abstract long getTime();
 
+    /**
+     * @return a positive number that orders the oplog entries as their
+     *         timestamps do, used as external document version
+     */
+    public abstract long getVersion();
+
     public final static class BSON extends Timestamp<BSON> {
         private final BSONTimestamp ts;
 
@@ -61,14 +68,24 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
         }
 
         @Override
-        public DBObject getOplogFilter() {
-            return new BasicDBObject(MongoDBRiver.OPLOG_TIMESTAMP, new BasicDBObject(QueryOperators.GTE, ts));
+        public long getVersion() {
+            return ((long) ts.getTime() << 32) | (ts.getInc() & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public DBObject getOplogFilter(String operator) {
+            return new BasicDBObject(MongoDBRiver.OPLOG_TIMESTAMP, new BasicDBObject(operator, ts));
         }
 
         @Override
         public void saveFields(XContentBuilder builder) throws IOException {
             builder.field(MongoDBRiver.LAST_TIMESTAMP_FIELD, JSON.serialize(ts));
         }
+
+        @Override
+        void saveFields(DBObject entry) {
+            entry.put(MongoDBRiver.OPLOG_TIMESTAMP, ts);
+        }
     }
 
     public final static class GTID extends Timestamp<GTID> {
@@ -111,9 +128,19 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
             return ts.getTime();
         }
 
+        /**
+         * The primary sequence number in the top 15 bits, the operation
+         * sequence number in the low 48 bits.
+         */
+        @Override
+        public long getVersion() {
+            ByteBuffer buffer = ByteBuffer.wrap(gtid);
+            return ((buffer.getLong(0) & 0x7FFFL) << 48) | (buffer.getLong(8) & 0xFFFFFFFFFFFFL);
+        }
+
         @Override
-        public DBObject getOplogFilter() {
-            return new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.GTE, gtid));
+        public DBObject getOplogFilter(String operator) {
+            return new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(operator, gtid));
         }
 
         @Override
@@ -121,6 +148,12 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
             builder.field(MongoDBRiver.LAST_TIMESTAMP_FIELD, JSON.serialize(ts));
             builder.field(MongoDBRiver.LAST_GTID_FIELD, JSONSerializers.getStrict().serialize(gtid));
         }
+
+        @Override
+        void saveFields(DBObject entry) {
+            entry.put(MongoDBRiver.OPLOG_TIMESTAMP, ts != null ? ts : new Date(0));
+            entry.put(MongoDBRiver.MONGODB_ID_FIELD, gtid);
+        }
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -176,7 +209,23 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
                 + " " + timestamp + " of type " + timestamp.getClass());
     }
 
-    public abstract DBObject getOplogFilter();
+    /**
+     * @return the filter of the oplog entries from this timestamp
+     */
+    public DBObject getOplogFilter() {
+        return getOplogFilter(QueryOperators.GTE);
+    }
+
+    /**
+     * @param operator
+     *            comparison of the oplog entries to this timestamp
+     */
+    public abstract DBObject getOplogFilter(String operator);
 
     public abstract void saveFields(XContentBuilder builder) throws IOException;
+
+    /**
+     * Write the fields {@link #on(DBObject)} reads from an oplog entry.
+     */
+    abstract void saveFields(DBObject entry);
 }
@@ -3,15 +3,22 @@ package org.elasticsearch.river.mongodb.util;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
 
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.river.mongodb.MongoDBRiver;
+import org.elasticsearch.river.mongodb.MongoDBRiverDefinition;
 import org.elasticsearch.river.mongodb.Status;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.groovy.GroovyScriptEngineService;
 
 public abstract class MongoDBRiverHelper {
 
@@ -40,4 +47,78 @@ public abstract class MongoDBRiverHelper {
         }
     }
 
+    /**
+     * @return the last metrics snapshot published by the river, null if none
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getRiverStats(Client client, String riverName) {
+        GetResponse statsResponse = client.prepareGet("_river", riverName, MongoDBRiver.STATS_ID).get();
+        if (!statsResponse.isExists()) {
+            return null;
+        }
+        return (Map<String, Object>) statsResponse.getSourceAsMap().get(MongoDBRiver.TYPE);
+    }
+
+    /**
+     * @return the initial import limits set through the REST API, null if none
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getRiverThrottle(Client client, String riverName) {
+        GetResponse throttleResponse = client.prepareGet("_river", riverName, MongoDBRiver.THROTTLE_ID).get();
+        if (!throttleResponse.isExists()) {
+            return null;
+        }
+        return (Map<String, Object>) throttleResponse.getSourceAsMap().get(MongoDBRiver.TYPE);
+    }
+
+    public static void setRiverThrottle(Client client, String riverName, int maxDocsPerSecond, long maxBytesPerSecond) {
+        logger.info("setRiverThrottle called with {} - {} documents/s - {} bytes/s", riverName, maxDocsPerSecond, maxBytesPerSecond);
+        XContentBuilder xb;
+        try {
+            xb = jsonBuilder().startObject().startObject(MongoDBRiver.TYPE)
+                    .field(MongoDBRiverDefinition.MAX_DOCS_PER_SECOND_FIELD, maxDocsPerSecond)
+                    .field(MongoDBRiverDefinition.MAX_BYTES_PER_SECOND_FIELD, maxBytesPerSecond).endObject().endObject();
+            client.prepareIndex("_river", riverName, MongoDBRiver.THROTTLE_ID).setSource(xb).get();
+        } catch (IOException ioEx) {
+            logger.error("setRiverThrottle failed for river {}", ioEx, riverName);
+        }
+    }
+
+    /**
+     * Remove the limits set through the REST API so the river definition applies again.
+     */
+    public static void clearRiverThrottle(Client client, String riverName) {
+        logger.info("clearRiverThrottle called with {}", riverName);
+        client.prepareDelete("_river", riverName, MongoDBRiver.THROTTLE_ID).get();
+    }
+
+    /**
+     * @return true if every data node runs inline Groovy scripts, disabled by
+     *         default since Elasticsearch 1.4.3
+     */
+    public static boolean isGroovyDynamicScriptingEnabled(Client client) {
+        for (NodeInfo node : client.admin().cluster().prepareNodesInfo().setSettings(true).get().getNodes()) {
+            if (!node.getNode().isDataNode()) {
+                continue;
+            }
+            Settings settings = node.getSettings();
+            String disableDynamic = settings.get(ScriptService.DISABLE_DYNAMIC_SCRIPTING_SETTING,
+                    ScriptService.DISABLE_DYNAMIC_SCRIPTING_DEFAULT).toLowerCase(Locale.ROOT);
+            switch (disableDynamic) {
+            case "false":
+            case "none":
+                break;
+            case "sandbox":
+            case "sandboxed":
+                if (!settings.getAsBoolean(GroovyScriptEngineService.GROOVY_SCRIPT_SANDBOX_ENABLED, false)) {
+                    return false;
+                }
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
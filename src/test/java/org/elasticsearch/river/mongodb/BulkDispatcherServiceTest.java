@@ -0,0 +1,193 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.rest.RestStatus;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+// A permit kept by mistake blocks the next dispatch
+@Test(timeOut = 10000)
+public class BulkDispatcherServiceTest {
+
+    /**
+     * Keeps the bulk requests instead of sending them.
+     */
+    private static class RecordingDispatcher extends BulkDispatcherService {
+
+        private final List<BulkRequest> sent = new ArrayList<BulkRequest>();
+        private final List<ActionListener<BulkResponse>> listeners = new ArrayList<ActionListener<BulkResponse>>();
+        private RuntimeException failure;
+
+        RecordingDispatcher(int actions, int concurrentRequests) {
+            super(ImmutableSettings.settingsBuilder().put(ACTIONS_SETTING, actions).put(CONCURRENT_REQUESTS_SETTING, concurrentRequests)
+                    .build(), null);
+        }
+
+        @Override
+        void execute(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+            if (failure != null) {
+                throw failure;
+            }
+            sent.add(bulkRequest);
+            listeners.add(listener);
+        }
+    }
+
+    private static class RecordingListener implements BulkProcessor.Listener {
+
+        private final List<BulkRequest> requests = new ArrayList<BulkRequest>();
+        private final List<BulkResponse> responses = new ArrayList<BulkResponse>();
+        private final List<Throwable> failures = new ArrayList<Throwable>();
+        private int beforeBulks;
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            beforeBulks++;
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            requests.add(request);
+            responses.add(response);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            requests.add(request);
+            failures.add(failure);
+        }
+    }
+
+    private static IndexRequest request(String id) {
+        return new IndexRequest("index", "type", id).source("field", id);
+    }
+
+    private static List<String> ids(BulkRequest bulkRequest) {
+        List<String> ids = new ArrayList<String>();
+        for (ActionRequest<?> request : bulkRequest.requests()) {
+            ids.add(((IndexRequest) request).id());
+        }
+        return ids;
+    }
+
+    private static BulkResponse response(BulkRequest bulkRequest, String failedId) {
+        List<String> ids = ids(bulkRequest);
+        BulkItemResponse[] items = new BulkItemResponse[ids.size()];
+        for (int i = 0; i < items.length; i++) {
+            String id = ids.get(i);
+            items[i] = id.equals(failedId) ? new BulkItemResponse(i, "index", new BulkItemResponse.Failure("index", "type", id,
+                    "MapperParsingException", RestStatus.BAD_REQUEST)) : new BulkItemResponse(i, "index", new IndexResponse("index",
+                    "type", id, 1, true));
+        }
+        return new BulkResponse(items, 5);
+    }
+
+    public void testRoundRobin() {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(4, 10);
+        BulkDispatcherService.Channel a = dispatcher.register("a", new RecordingListener(), 100);
+        BulkDispatcherService.Channel b = dispatcher.register("b", new RecordingListener(), 100);
+
+        a.add(request("a1"));
+        a.add(request("a2"));
+        a.add(request("a3"));
+        Assert.assertTrue(dispatcher.sent.isEmpty());
+        b.add(request("b1"));
+        // Queued last, but not behind the other channel
+        Assert.assertEquals(dispatcher.sent.size(), 1);
+        Assert.assertEquals(ids(dispatcher.sent.get(0)), Arrays.asList("a1", "b1", "a2", "a3"));
+
+        b.add(request("b2"));
+        b.add(request("b3"));
+        a.add(request("a4"));
+        a.add(request("a5"));
+        Assert.assertEquals(dispatcher.sent.size(), 2);
+        List<String> ids = ids(dispatcher.sent.get(1));
+        Assert.assertEquals(ids.size(), 4);
+        for (int i = 1; i < ids.size(); i++) {
+            Assert.assertNotEquals(ids.get(i).charAt(0), ids.get(i - 1).charAt(0), "alternate channels " + ids);
+        }
+
+        // A flush sends whatever is queued
+        b.add(request("b4"));
+        b.flush();
+        Assert.assertEquals(ids(dispatcher.sent.get(2)), Arrays.asList("b4"));
+    }
+
+    public void testResponsesByChannel() throws InterruptedException {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(4, 2);
+        RecordingListener aListener = new RecordingListener();
+        RecordingListener bListener = new RecordingListener();
+        BulkDispatcherService.Channel a = dispatcher.register("a", aListener, 100);
+        BulkDispatcherService.Channel b = dispatcher.register("b", bListener, 100);
+        a.add(request("a1"));
+        a.add(request("a2"));
+        a.add(request("a3"));
+        b.add(request("b1"));
+        Assert.assertFalse(a.awaitInFlight(10));
+        Assert.assertFalse(b.awaitInFlight(10));
+
+        dispatcher.listeners.get(0).onResponse(response(dispatcher.sent.get(0), "b1"));
+        Assert.assertTrue(a.awaitInFlight(10));
+        Assert.assertTrue(b.awaitInFlight(10));
+        // Each river only sees its own items and failures
+        Assert.assertEquals(ids(aListener.requests.get(0)), Arrays.asList("a1", "a2", "a3"));
+        Assert.assertEquals(aListener.responses.get(0).getItems().length, 3);
+        Assert.assertFalse(aListener.responses.get(0).hasFailures());
+        Assert.assertEquals(ids(bListener.requests.get(0)), Arrays.asList("b1"));
+        Assert.assertEquals(bListener.responses.get(0).getItems().length, 1);
+        Assert.assertTrue(bListener.responses.get(0).hasFailures());
+
+        // A failed bulk is reported to the channels it holds requests of
+        RecordingListener cListener = new RecordingListener();
+        BulkDispatcherService.Channel c = dispatcher.register("c", cListener, 100);
+        a.add(request("a4"));
+        c.add(request("c1"));
+        a.flush();
+        dispatcher.listeners.get(1).onFailure(new IllegalStateException("node closed"));
+        Assert.assertEquals(aListener.failures.size(), 1);
+        Assert.assertEquals(ids(aListener.requests.get(1)), Arrays.asList("a4"));
+        Assert.assertEquals(cListener.failures.size(), 1);
+        Assert.assertEquals(ids(cListener.requests.get(0)), Arrays.asList("c1"));
+        Assert.assertTrue(bListener.failures.isEmpty());
+
+        // Nothing of the rivers runs while the bulk is sent
+        Assert.assertEquals(aListener.beforeBulks + bListener.beforeBulks + cListener.beforeBulks, 0);
+    }
+
+    public void testPermitReleasedOnFailure() throws InterruptedException {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(1, 1);
+        RecordingListener listener = new RecordingListener();
+        BulkDispatcherService.Channel channel = dispatcher.register("a", listener, 100);
+
+        dispatcher.failure = new IllegalStateException("no node available");
+        channel.add(request("a1"));
+        Assert.assertEquals(listener.failures.size(), 1);
+        Assert.assertTrue(channel.awaitInFlight(10));
+
+        // Would wait for the only permit if the failure kept it
+        dispatcher.failure = null;
+        channel.add(request("a2"));
+        Assert.assertEquals(dispatcher.sent.size(), 1);
+        dispatcher.listeners.get(0).onFailure(new IllegalStateException("node closed"));
+        Assert.assertEquals(listener.failures.size(), 2);
+
+        channel.add(request("a3"));
+        Assert.assertEquals(dispatcher.sent.size(), 2);
+        dispatcher.listeners.get(1).onResponse(response(dispatcher.sent.get(1), null));
+        Assert.assertEquals(listener.responses.size(), 1);
+        channel.close();
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+@Test
+public class DBRefResolverTest {
+
+    /**
+     * Reads the referenced documents from a map instead of MongoDB.
+     */
+    private static class MapResolver extends DBRefResolver {
+
+        private final Map<String, Map<Object, DBObject>> collections = new HashMap<String, Map<Object, DBObject>>();
+        private int queries;
+
+        MapResolver(int depth, RiverMetrics metrics) {
+            super(null, depth, null, 100, TimeValue.timeValueMinutes(1), metrics);
+        }
+
+        void add(String collection, DBObject document) {
+            if (!collections.containsKey(collection)) {
+                collections.put(collection, new HashMap<Object, DBObject>());
+            }
+            collections.get(collection).put(document.get(MongoDBRiver.MONGODB_ID_FIELD), document);
+        }
+
+        @Override
+        Map<Object, DBObject> find(String collection, Collection<Object> ids) {
+            queries++;
+            Map<Object, DBObject> found = new HashMap<Object, DBObject>();
+            for (Object id : ids) {
+                if (collections.containsKey(collection) && collections.get(collection).containsKey(id)) {
+                    found.put(id, collections.get(collection).get(id));
+                }
+            }
+            return found;
+        }
+    }
+
+    private static DBRef ref(String collection, Object id) {
+        return new DBRef(null, collection, id);
+    }
+
+    public void testResolve() {
+        RiverMetrics metrics = new RiverMetrics();
+        MapResolver resolver = new MapResolver(1, metrics);
+        resolver.add("users", new BasicDBObject("_id", 1).append("name", "Richard"));
+        resolver.add("users", new BasicDBObject("_id", 2).append("name", "Bob"));
+
+        BasicDBList readers = new BasicDBList();
+        readers.add(ref("users", 2));
+        readers.add(ref("users", 3));
+        DBObject document = new BasicDBObject("_id", "a").append("author", ref("users", 1)).append("readers", readers);
+        resolver.resolve(document);
+
+        // One query for the references of a collection
+        Assert.assertEquals(resolver.queries, 1);
+        Assert.assertEquals(document.get("author"), new BasicDBObject("name", "Richard").append("id", 1).append("ref", "users"));
+        List<?> resolved = (List<?>) document.get("readers");
+        Assert.assertEquals(((DBObject) resolved.get(0)).get("name"), "Bob");
+        // Missing documents keep their DBRef
+        Assert.assertTrue(resolved.get(1) instanceof DBRef);
+        Assert.assertEquals(metrics.dbRefCacheMisses.count(), 3);
+
+        DBObject other = new BasicDBObject("_id", "b").append("author", ref("users", 1)).append("editor", ref("users", 3));
+        resolver.resolve(other);
+        Assert.assertEquals(resolver.queries, 1);
+        Assert.assertEquals(metrics.dbRefCacheHits.count(), 2);
+        Assert.assertEquals(((DBObject) other.get("author")).get("name"), "Richard");
+    }
+
+    public void testResolveTogether() {
+        MapResolver resolver = new MapResolver(1, new RiverMetrics());
+        resolver.add("users", new BasicDBObject("_id", 1).append("name", "Richard"));
+        resolver.add("users", new BasicDBObject("_id", 2).append("name", "Bob"));
+        resolver.add("companies", new BasicDBObject("_id", 10).append("name", "ACME"));
+
+        DBObject first = new BasicDBObject("_id", "a").append("author", ref("users", 1)).append("company", ref("companies", 10));
+        DBObject second = new BasicDBObject("_id", "b").append("author", ref("users", 2));
+        DBObject third = new BasicDBObject("_id", "c").append("editor", ref("users", 1));
+        resolver.resolve(Arrays.asList(first, second, third));
+
+        // One query per referenced collection for all the documents
+        Assert.assertEquals(resolver.queries, 2);
+        Assert.assertEquals(((DBObject) first.get("author")).get("name"), "Richard");
+        Assert.assertEquals(((DBObject) first.get("company")).get("name"), "ACME");
+        Assert.assertEquals(((DBObject) second.get("author")).get("name"), "Bob");
+        Assert.assertEquals(((DBObject) third.get("editor")).get("name"), "Richard");
+        // Documents resolved together do not share the inlined objects
+        Assert.assertNotSame(first.get("author"), third.get("editor"));
+    }
+
+    public void testDepth() {
+        MapResolver resolver = new MapResolver(2, new RiverMetrics());
+        resolver.add("users", new BasicDBObject("_id", 1).append("name", "Richard").append("company", ref("companies", 10)));
+        resolver.add("companies", new BasicDBObject("_id", 10).append("name", "ACME").append("owner", ref("users", 1)));
+
+        DBObject document = new BasicDBObject("_id", "a").append("author", ref("users", 1));
+        resolver.resolve(document);
+        DBObject company = (DBObject) ((DBObject) document.get("author")).get("company");
+        Assert.assertEquals(company.get("name"), "ACME");
+        // Past the depth, references are left as they are
+        Assert.assertTrue(company.get("owner") instanceof DBRef);
+        Assert.assertEquals(resolver.queries, 2);
+
+        // The cached documents are not changed by the resolution
+        Assert.assertTrue(resolver.find("users", Sets.<Object> newHashSet(1)).get(1).get("company") instanceof DBRef);
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.elasticsearch.river.mongodb;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class ImportThrottleTest {
+
+    private static final TimeValue MAX_BULK_LATENCY = TimeValue.timeValueMillis(100);
+
+    private static void acquire(ImportThrottle throttle, int documents) throws InterruptedException {
+        for (int i = 0; i < documents; i++) {
+            throttle.acquire(100);
+        }
+    }
+
+    public void testStaticLimits() {
+        ImportThrottle throttle = new ImportThrottle();
+        Assert.assertEquals(throttle.getDocumentsRate(), Double.MAX_VALUE);
+        throttle.setLimits(500, 1024);
+        Assert.assertEquals(throttle.getDocumentsRate(), 500.0);
+        Assert.assertTrue(throttle.isBytesLimited());
+        throttle.setLimits(0, 0);
+        Assert.assertEquals(throttle.getDocumentsRate(), Double.MAX_VALUE);
+        Assert.assertFalse(throttle.isBytesLimited());
+    }
+
+    public void testAdaptive() throws InterruptedException {
+        ImportThrottle throttle = new ImportThrottle();
+        long now = System.currentTimeMillis() + 1000;
+        throttle.setAdaptive(MAX_BULK_LATENCY, 0);
+        Assert.assertTrue(throttle.isAdaptive());
+
+        // Fast bulks: no limit
+        acquire(throttle, 100);
+        throttle.onBulkCompleted(20);
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), Double.MAX_VALUE);
+
+        // Slow bulks: half the rate observed over the last second
+        acquire(throttle, 200);
+        throttle.onBulkCompleted(500);
+        now += 1000;
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 100.0, 0.001);
+
+        // Still slow: half the rate again, not less than 10 documents/s
+        acquire(throttle, 30);
+        now += 1000;
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 15.0, 0.001);
+        now += 1000;
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 10.0, 0.001);
+
+        // Latency back under the maximum: 25% more per adjustment
+        for (int i = 0; i < 5; i++) {
+            throttle.onBulkCompleted(10);
+        }
+        acquire(throttle, 10);
+        now += 1000;
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 12.5, 0.001);
+        acquire(throttle, 10);
+        now += 1000;
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 15.625, 0.001);
+
+        // Lifted once it no longer holds the import back
+        acquire(throttle, 5);
+        now += 1000;
+        throttle.adjust(0, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), Double.MAX_VALUE);
+    }
+
+    public void testQueuedOperations() throws InterruptedException {
+        ImportThrottle throttle = new ImportThrottle();
+        long now = System.currentTimeMillis() + 1000;
+        throttle.setLimits(1000, 0);
+        throttle.setAdaptive(MAX_BULK_LATENCY, 50);
+        throttle.onBulkCompleted(10);
+        now += 1000;
+        acquire(throttle, 200);
+        throttle.adjust(20, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 1000.0);
+
+        // MongoDB overloaded, bulks fast
+        acquire(throttle, 200);
+        now += 1000;
+        throttle.adjust(80, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 100.0, 0.001);
+
+        // The static limit still applies, and lifts the adaptive one once reached
+        throttle.setLimits(110, 0);
+        Assert.assertEquals(throttle.getDocumentsRate(), 100.0, 0.001);
+        acquire(throttle, 100);
+        now += 1000;
+        throttle.adjust(20, now);
+        Assert.assertEquals(throttle.getDocumentsRate(), 110.0, 0.001);
+
+        // Disabled
+        throttle.setAdaptive(null, 0);
+        Assert.assertFalse(throttle.isAdaptive());
+        Assert.assertFalse(throttle.isAdjustmentDue());
+    }
+
+}
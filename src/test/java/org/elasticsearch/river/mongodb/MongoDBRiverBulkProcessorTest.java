@@ -0,0 +1,18 @@
+package org.elasticsearch.river.mongodb;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class MongoDBRiverBulkProcessorTest {
+
+    public void testDropLockPerIndexAndType() {
+        Object lock = MongoDBRiverBulkProcessor.getDropLock("myindex", "mytype");
+        // Shared by the rivers writing to the same index / type
+        Assert.assertSame(MongoDBRiverBulkProcessor.getDropLock("myindex", "mytype"), lock);
+        // A drop of another type or index does not wait for it
+        Assert.assertNotSame(MongoDBRiverBulkProcessor.getDropLock("myindex", "othertype"), lock);
+        Assert.assertNotSame(MongoDBRiverBulkProcessor.getDropLock("otherindex", "mytype"), lock);
+    }
+
+}
@@ -2,8 +2,10 @@ package org.elasticsearch.river.mongodb;
 
 import java.io.InputStream;
 
+import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentHelper;
@@ -15,6 +17,7 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.util.JSON;
 
@@ -40,8 +43,23 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_CONCURRENT_REQUESTS, definition.getBulk().getConcurrentRequests());
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_BULK_SIZE, definition.getBulk().getBulkSize());
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_FLUSH_INTERVAL, definition.getBulk().getFlushInterval());
+            Assert.assertFalse(definition.getBulk().isShared());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_MAX_PROCESSORS, definition.getBulk().getMaxProcessors());
             Assert.assertFalse(definition.isSkipInitialImport());
             Assert.assertFalse(definition.isStoreStatistics());
+            Assert.assertNull(definition.getInitialImportReadPreference());
+            Assert.assertEquals(MongoDBRiverDefinition.InitialImportScan.SORT, definition.getInitialImportScan());
+            Assert.assertEquals(0, definition.getInitialImportMaxDocsPerSecond());
+            Assert.assertNull(definition.getInitialImportMaxBytesPerSecond());
+            Assert.assertNull(definition.getInitialImportMaxBulkLatency());
+            Assert.assertFalse(definition.isBulkLoad());
+            Assert.assertEquals(definition.getOplogLagWarning(), MongoDBRiverDefinition.DEFAULT_OPLOG_LAG_WARNING);
+            Assert.assertFalse(definition.isSharedOplog());
+            Assert.assertFalse(definition.isSpill());
+            Assert.assertEquals(definition.getLiveLaneWeight(), MongoDBRiverDefinition.DEFAULT_LIVE_LANE_WEIGHT);
+            Assert.assertFalse(definition.isExternalVersion());
+            Assert.assertFalse(definition.isPartialUpdate());
+            Assert.assertFalse(definition.isResolveDbRefs());
 
         } catch (Throwable t) {
             Assert.fail("testLoadMongoDBRiverSimpleDefinition failed", t);
@@ -181,6 +199,25 @@ public class MongoDBRiverDefinitionTest {
         }
     }
 
+    @Test
+    public void testLoadMongoDBRiverDefinitionDropCollectionStrategy() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream(
+                    "/org/elasticsearch/river/mongodb/test-mongodb-river-definition-drop-collection-strategy.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isDropCollection());
+            Assert.assertEquals(definition.getDropCollectionStrategy(), MongoDBRiverDefinition.DropCollectionStrategy.DELETE_BY_QUERY);
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionDropCollectionStrategy failed", t);
+        }
+    }
+
     @Test
     public void testLoadMongoDBRiverDefinitionIssue307IsMongosTrue() {
         try {
@@ -234,6 +271,264 @@ public class MongoDBRiverDefinitionTest {
         }
     }
 
+    @Test
+    public void testLoadMongoDBRiverDefinitionStoreStatisticsInterval() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-store-statistics-interval.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isStoreStatistics());
+            Assert.assertEquals(definition.getStatisticsInterval().millis(), TimeValue.timeValueSeconds(10).millis());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionStoreStatisticsInterval failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionImportAllCollections() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-import-all-collections.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isImportAllCollections());
+            Assert.assertEquals(definition.getImportAllCollectionsConcurrency(), 8);
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionImportAllCollections failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionInitialImport() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-initial-import.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(definition.getInitialImportReadPreference(),
+                    ReadPreference.secondary(new BasicDBObject("use", "reporting"), new BasicDBObject()));
+            Assert.assertEquals(definition.getInitialImportScan(), MongoDBRiverDefinition.InitialImportScan.SNAPSHOT);
+            // The connection read preference is left alone
+            Assert.assertFalse(definition.isMongoSecondaryReadPreference());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionInitialImport failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionImportThrottle() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-import-throttle.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(definition.getInitialImportMaxDocsPerSecond(), 500);
+            Assert.assertEquals(definition.getInitialImportMaxBytesPerSecond().bytes(), new ByteSizeValue(2, ByteSizeUnit.MB).bytes());
+            Assert.assertEquals(definition.getInitialImportMaxBulkLatency().millis(), TimeValue.timeValueSeconds(2).millis());
+            Assert.assertEquals(definition.getInitialImportMaxQueuedOperations(), 20);
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionImportThrottle failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionBulkLoad() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-bulk-load.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isBulkLoad());
+            Assert.assertTrue(definition.isBulkLoadForceMerge());
+            Assert.assertEquals(definition.getBulkLoadMaxNumSegments(), 5);
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionBulkLoad failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionOplogLagWarning() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-oplog-lag-warning.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(definition.getOplogLagWarning().millis(), TimeValue.timeValueSeconds(30).millis());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionOplogLagWarning failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionSharedOplog() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-shared-oplog.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isSharedOplog());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionSharedOplog failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionSpill() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-spill.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isSpill());
+            Assert.assertEquals(definition.getSpillPath(), "/var/tmp/river-spill");
+            Assert.assertEquals(definition.getSpillMaxSize().bytes(), new ByteSizeValue(2, ByteSizeUnit.GB).bytes());
+            Assert.assertEquals(definition.getSpillSegmentSize().bytes(), new ByteSizeValue(32, ByteSizeUnit.MB).bytes());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionSpill failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionLiveLaneWeight() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-live-lane-weight.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(definition.getLiveLaneWeight(), 8);
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionLiveLaneWeight failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionExternalVersion() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-external-version.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isExternalVersion());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionExternalVersion failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionPartialUpdate() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-partial-update.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isPartialUpdate());
+            Assert.assertTrue(definition.isPartialUpdateScripts());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionPartialUpdate failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionResolveDbRefs() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-resolve-dbrefs.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isResolveDbRefs());
+            Assert.assertEquals(definition.getResolveDbRefsDepth(), 2);
+            Assert.assertEquals(definition.getResolveDbRefsFields(), Sets.newHashSet("name", "email"));
+            Assert.assertEquals(definition.getDbRefCacheSize(), 500);
+            Assert.assertEquals(definition.getDbRefCacheTtl().millis(), TimeValue.timeValueMinutes(1).millis());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionResolveDbRefs failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionSharedBulk() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-shared-bulk.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.getBulk().isShared());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionSharedBulk failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionBulkProcessors() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-bulk-processors.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(definition.getBulk().getMaxProcessors(), 20);
+            Assert.assertEquals(definition.getBulk().getProcessorIdleTimeout().millis(), TimeValue.timeValueMinutes(1).millis());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionBulkProcessors failed", t);
+        }
+    }
+
     @Test
     public void parseFilter() {
         String filter = "{\"o.lang\":\"de\"}";
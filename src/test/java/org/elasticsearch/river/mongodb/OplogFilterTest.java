@@ -0,0 +1,101 @@
+package org.elasticsearch.river.mongodb;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+@Test
+public class OplogFilterTest {
+
+    private static final String DOCUMENT = "{ \"_id\": 1, \"name\": \"Richard\", \"age\": 42, \"score\": 7.5, "
+            + "\"tags\": [\"a\", \"b\"], \"address\": { \"city\": \"Paris\", \"zip\": 75001 }, "
+            + "\"orders\": [ { \"qty\": 2 }, { \"qty\": 10 } ], \"deleted\": null }";
+
+    private static boolean matches(String filter) {
+        return OplogFilter.compile((DBObject) JSON.parse(filter)).matches((DBObject) JSON.parse(DOCUMENT));
+    }
+
+    public void testEmptyFilter() {
+        Assert.assertNull(OplogFilter.compile(null));
+        Assert.assertNull(OplogFilter.compile((DBObject) JSON.parse("{}")));
+    }
+
+    public void testEquals() {
+        Assert.assertTrue(matches("{ \"name\": \"Richard\" }"));
+        Assert.assertTrue(matches("{ \"age\": 42.0 }"));
+        Assert.assertTrue(matches("{ \"tags\": \"b\" }"));
+        Assert.assertTrue(matches("{ \"deleted\": null, \"missing\": null }"));
+        Assert.assertTrue(matches("{ \"age\": { \"$ne\": 41 } }"));
+        Assert.assertFalse(matches("{ \"name\": \"Richard\", \"age\": 41 }"));
+        Assert.assertFalse(matches("{ \"tags\": { \"$ne\": \"a\" } }"));
+    }
+
+    public void testComparisons() {
+        Assert.assertTrue(matches("{ \"age\": { \"$gt\": 41, \"$lte\": 42 } }"));
+        Assert.assertTrue(matches("{ \"score\": { \"$gte\": 7, \"$lt\": 8 } }"));
+        Assert.assertTrue(matches("{ \"name\": { \"$gt\": \"Q\" } }"));
+        Assert.assertFalse(matches("{ \"age\": { \"$gt\": 42 } }"));
+        // Values of different types do not compare
+        Assert.assertFalse(matches("{ \"age\": { \"$lt\": \"100\" } }"));
+        Assert.assertFalse(matches("{ \"missing\": { \"$lt\": 100 } }"));
+    }
+
+    public void testInAndExists() {
+        Assert.assertTrue(matches("{ \"age\": { \"$in\": [ 1, 42 ] } }"));
+        Assert.assertTrue(matches("{ \"tags\": { \"$in\": [ \"b\", \"c\" ] } }"));
+        Assert.assertTrue(matches("{ \"tags\": { \"$nin\": [ \"c\" ] } }"));
+        Assert.assertFalse(matches("{ \"age\": { \"$in\": [ 1, 2 ] } }"));
+        Assert.assertTrue(matches("{ \"address\": { \"$exists\": true }, \"missing\": { \"$exists\": false } }"));
+        Assert.assertTrue(matches("{ \"deleted\": { \"$exists\": true } }"));
+        Assert.assertFalse(matches("{ \"missing\": { \"$exists\": true } }"));
+    }
+
+    public void testDottedPaths() {
+        Assert.assertTrue(matches("{ \"address.city\": \"Paris\" }"));
+        Assert.assertTrue(matches("{ \"address.zip\": { \"$gte\": 75000 } }"));
+        Assert.assertTrue(matches("{ \"orders.qty\": { \"$gt\": 5 } }"));
+        Assert.assertTrue(matches("{ \"orders.1.qty\": 10 }"));
+        Assert.assertTrue(matches("{ \"tags.0\": \"a\" }"));
+        Assert.assertFalse(matches("{ \"orders.qty\": { \"$gt\": 10 } }"));
+        Assert.assertFalse(matches("{ \"address.city.name\": \"Paris\" }"));
+        Assert.assertTrue(matches("{ \"address.country\": { \"$exists\": false } }"));
+    }
+
+    public void testLogicalOperators() {
+        Assert.assertTrue(matches("{ \"$or\": [ { \"age\": 1 }, { \"address.city\": \"Paris\" } ] }"));
+        Assert.assertTrue(matches("{ \"$and\": [ { \"age\": { \"$gt\": 1 } }, { \"$or\": [ { \"tags\": \"z\" }, { \"tags\": \"a\" } ] } ] }"));
+        Assert.assertTrue(matches("{ \"$nor\": [ { \"age\": 1 }, { \"name\": \"Bob\" } ] }"));
+        Assert.assertFalse(matches("{ \"$or\": [ { \"age\": 1 }, { \"name\": \"Bob\" } ] }"));
+        Assert.assertFalse(matches("{ \"name\": \"Richard\", \"$and\": [ { \"age\": 1 } ] }"));
+    }
+
+    public void testUnsupportedOperators() {
+        Assert.assertTrue(OplogFilter.compile((DBObject) JSON.parse("{ \"age\": { \"$gt\": 1 }, \"$or\": [ {}, { \"name\": \"Bob\" } ] }"))
+                .isSupported());
+        String[] filters = { "{ \"tags\": { \"$size\": 3 } }", "{ \"$where\": \"this.age > 100\" }",
+                "{ \"name\": { \"$regex\": \"^R\" } }", "{ \"orders\": { \"$elemMatch\": { \"qty\": 2 } } }",
+                "{ \"$nor\": [ { \"age\": { \"$not\": { \"$gt\": 50 } } } ] }", "{ \"tags\": { \"$in\": [ { \"$regex\": \"^a\" } ] } }" };
+        for (String filter : filters) {
+            OplogFilter compiled = OplogFilter.compile((DBObject) JSON.parse(filter));
+            Assert.assertFalse(compiled.isSupported(), filter);
+            try {
+                compiled.matches((DBObject) JSON.parse(DOCUMENT));
+                Assert.fail("Matched with unsupported filter " + filter);
+            } catch (IllegalStateException e) {
+                // Evaluated by the server instead
+            }
+        }
+    }
+
+    public void testFields() {
+        OplogFilter filter = OplogFilter.compile((DBObject) JSON.parse(
+                "{ \"address.city\": \"Paris\", \"$or\": [ { \"age\": 1 }, { \"orders.qty\": 2 } ] }"));
+        Assert.assertEquals(filter.getFields().size(), 3);
+        Assert.assertTrue(filter.getFields().contains("address"));
+        Assert.assertTrue(filter.getFields().contains("age"));
+        Assert.assertTrue(filter.getFields().contains("orders"));
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+@Test
+public class PartialUpdateTest {
+
+    private static PartialUpdate of(String modifiers, boolean scripts) {
+        return PartialUpdate.of((DBObject) JSON.parse(modifiers), scripts);
+    }
+
+    public void testSet() {
+        PartialUpdate update = of("{ \"$set\": { \"name\": \"Richard\", \"address.city\": \"Paris\", \"address.zip\": 75001 } }", false);
+        Assert.assertFalse(update.isScript());
+        Assert.assertEquals(update.getDoc(), JSON.parse("{ \"name\": \"Richard\", \"address\": { \"city\": \"Paris\", \"zip\": 75001 } }"));
+        Assert.assertEquals(update.getPaths().size(), 3);
+    }
+
+    public void testScript() {
+        // A sub document must replace the indexed one
+        Assert.assertNull(of("{ \"$set\": { \"address\": { \"city\": \"Paris\" } } }", false));
+        Assert.assertNull(of("{ \"$unset\": { \"name\": 1 } }", false));
+
+        PartialUpdate update = of("{ \"$set\": { \"tags\": [ \"a\" ] }, \"$unset\": { \"name\": \"\" } }", true);
+        Assert.assertTrue(update.isScript());
+        Map<String, Object> params = update.getParams();
+        Assert.assertEquals(params.get(PartialUpdate.SET_PARAM), JSON.parse("{ \"tags\": [ \"a\" ] }"));
+        Assert.assertEquals(((List<?>) params.get(PartialUpdate.UNSET_PARAM)).get(0), "name");
+    }
+
+    public void testNotTranslated() {
+        Assert.assertNull(of("{ \"$push\": { \"tags\": \"b\" } }", true));
+        Assert.assertNull(of("{ \"$set\": { \"tags.1\": \"b\" } }", true));
+        Assert.assertNull(of("{ \"$set\": { \"orders.$.qty\": 3 } }", true));
+        // Not idempotent, logged as $set by MongoDB anyway
+        Assert.assertNull(of("{ \"$inc\": { \"age\": 1 } }", true));
+        // Replacement of the whole document
+        Assert.assertNull(of("{ \"_id\": 1, \"name\": \"Richard\" }", true));
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class RiverMetricsTest {
+
+    public void testHistogram() {
+        RiverMetrics.Histogram histogram = new RiverMetrics.Histogram();
+        Assert.assertEquals(histogram.percentile(99), 0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(histogram.count(), 100);
+        Assert.assertEquals(histogram.mean(), 50.5);
+        Assert.assertEquals(histogram.max(), 100);
+        // 50 falls in the [32, 63] bucket
+        Assert.assertEquals(histogram.percentile(50), 63);
+        // Bucket bounds are capped by the max value
+        Assert.assertEquals(histogram.percentile(99), 100);
+    }
+
+    public void testToXContent() throws Exception {
+        RiverMetrics metrics = new RiverMetrics();
+        metrics.oplogEntries.inc(10);
+        metrics.oplogFiltered.inc(4);
+        metrics.bulkSize.record(6);
+        metrics.bulkLatencyMillis.record(12);
+        metrics.dbRefCacheHits.inc(3);
+        metrics.dbRefCacheMisses.inc(1);
+
+        XContentBuilder builder = jsonBuilder().startObject();
+        metrics.toXContent(builder, 3, 2);
+        builder.endObject();
+        Map<String, Object> stats = XContentHelper.convertToMap(builder.bytes(), false).v2();
+
+        Assert.assertEquals(XContentMapValues.extractValue("oplog.read", stats), 10);
+        Assert.assertEquals(XContentMapValues.extractValue("oplog.filtered", stats), 4);
+        Assert.assertEquals(XContentMapValues.extractValue("queue.size", stats), 3);
+        Assert.assertEquals(XContentMapValues.extractValue("queue.import_size", stats), 2);
+        Assert.assertEquals(XContentMapValues.extractValue("bulk.documents", stats), 6);
+        Assert.assertEquals(XContentMapValues.extractValue("bulk.latency_ms.max", stats), 12);
+        Assert.assertEquals(XContentMapValues.extractValue("dbref.cache_hit_ratio", stats), 0.75);
+        Assert.assertNull(XContentMapValues.extractValue("checkpoint.time", stats));
+        Assert.assertEquals(XContentMapValues.extractValue("oplog.lag.seconds", stats), 0);
+        Assert.assertEquals(XContentMapValues.extractValue("oplog.lag.warning", stats), false);
+    }
+
+}
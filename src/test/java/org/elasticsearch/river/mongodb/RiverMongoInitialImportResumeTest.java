@@ -0,0 +1,225 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.annotations.Factory;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+
+/**
+ * Breaks the connection used by the initial import in the middle of a
+ * collection and checks that the import resumes right after the last
+ * document it queued, whatever the type of the _id.
+ */
+@Test
+public class RiverMongoInitialImportResumeTest extends RiverMongoDBTestAbstract {
+
+    private static final int DOCUMENTS = 1000;
+    // Large enough documents to force several getMore round trips
+    private static final String PADDING = Strings.repeat("x", 8 * 1024);
+
+    private DB mongoDB;
+    private DBCollection mongoCollection;
+
+    @Factory(dataProvider = "allMongoExecutableTypes")
+    public RiverMongoInitialImportResumeTest(ExecutableType type) {
+        super(type);
+    }
+
+    @Test
+    public void resumeWithNumericIds() throws Throwable {
+        List<Object> ids = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            ids.add(i);
+        }
+        importWithNetworkFault(ids);
+    }
+
+    @Test
+    public void resumeWithObjectIds() throws Throwable {
+        List<Object> ids = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            ids.add(new ObjectId());
+        }
+        importWithNetworkFault(ids);
+    }
+
+    private void importWithNetworkFault(List<Object> ids) throws Throwable {
+        logger.debug("Start importWithNetworkFault");
+        mongoDB = getMongo().getDB(getDatabase());
+        mongoDB.setWriteConcern(WriteConcern.REPLICAS_SAFE);
+        mongoCollection = mongoDB.createCollection(getCollection(), null);
+        FaultyProxy proxy = null;
+        MongoClient mongoClient = null;
+        try {
+            for (Object id : ids) {
+                mongoCollection.insert(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id).append("padding", PADDING));
+            }
+
+            proxy = new FaultyProxy(getMongo().getAddress());
+            mongoClient = new MongoClient(new ServerAddress("localhost", proxy.getPort()), MongoClientOptions.builder()
+                    .connectTimeout(15000).socketTimeout(60000).build());
+            MongoDBRiverDefinition definition = getMongoDBRiverDefinition(TEST_MONGODB_RIVER_SIMPLE_JSON, getDatabase(),
+                    getCollection(), getIndex());
+            BlockingQueue<QueueEntry> stream = new ArrayBlockingQueue<>(16);
+            SharedContext context = new SharedContext(new ArrayBlockingQueue<QueueEntry>(16), stream, Status.RUNNING);
+            final CollectionSlurper slurper = new CollectionSlurper(mongoClient, definition, context, getNode().client());
+            final DBCollection collection = mongoClient.getDB(getDatabase()).getCollection(getCollection());
+            Thread importer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        slurper.importCollection(collection, null);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "mongodb_river_import_resume_test");
+            importer.setDaemon(true);
+            importer.start();
+
+            List<Object> imported = new ArrayList<>();
+            while (imported.size() < ids.size()) {
+                // Long enough to cover MongoDBRiver.MONGODB_RETRY_ERROR_DELAY_MS
+                QueueEntry entry = stream.poll(60, TimeUnit.SECONDS);
+                if (entry == null) {
+                    break;
+                }
+                imported.add(entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD));
+                if (imported.size() == ids.size() / 3) {
+                    proxy.dropConnections();
+                }
+            }
+            importer.join(TimeUnit.SECONDS.toMillis(60));
+
+            assertThat(proxy.getDroppedConnections() > 0, equalTo(true));
+            assertThat(imported, equalTo(ids));
+        } catch (Throwable t) {
+            logger.error("importWithNetworkFault failed.", t);
+            throw t;
+        } finally {
+            if (mongoClient != null) {
+                mongoClient.close();
+            }
+            if (proxy != null) {
+                proxy.close();
+            }
+            mongoDB.dropDatabase();
+        }
+    }
+
+    /**
+     * Minimal TCP proxy which can sever all the connections it relays.
+     */
+    private static class FaultyProxy implements Runnable {
+
+        private final ServerAddress target;
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private volatile int droppedConnections;
+
+        FaultyProxy(ServerAddress target) throws IOException {
+            this.target = target;
+            this.serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(this, "mongodb_river_faulty_proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        int getDroppedConnections() {
+            return droppedConnections;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket server = new Socket();
+                    server.connect(new InetSocketAddress(target.getHost(), target.getPort()));
+                    sockets.add(client);
+                    sockets.add(server);
+                    pipe(client, server);
+                    pipe(server, client);
+                } catch (IOException e) {
+                    // Server socket closed
+                }
+            }
+        }
+
+        private void pipe(final Socket from, final Socket to) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[16 * 1024];
+                    try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // Connection dropped
+                    } finally {
+                        closeQuietly(from);
+                        closeQuietly(to);
+                    }
+                }
+            }, "mongodb_river_faulty_proxy_pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void dropConnections() {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            droppedConnections += sockets.size() / 2;
+            sockets.clear();
+        }
+
+        void close() {
+            dropConnections();
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+@Test
+public class SpillQueueTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("spill-queue-test").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static QueueEntry entry(int id) {
+        return new QueueEntry("rs0", new Timestamp.BSON(new BSONTimestamp(1420070400, id)), Operation.INSERT, new BasicDBObject(
+                MongoDBRiver.MONGODB_ID_FIELD, id).append("name", "document " + id), "items");
+    }
+
+    private static void assertEntry(QueueEntry entry, int id) {
+        Assert.assertNotNull(entry, "entry " + id);
+        Assert.assertEquals(entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD), id);
+        Assert.assertEquals(entry.getData().get("name"), "document " + id);
+        Assert.assertEquals(entry.getOperation(), Operation.INSERT);
+        Assert.assertEquals(entry.getCollection(), "items");
+        Assert.assertEquals(entry.getShard(), "rs0");
+        Assert.assertEquals(entry.getOplogTimestamp(), new Timestamp.BSON(new BSONTimestamp(1420070400, id)));
+    }
+
+    private int segmentCount() {
+        return directory.list().length;
+    }
+
+    public void testOrderAcrossSpill() throws InterruptedException {
+        SpillQueue queue = new SpillQueue(2, directory, 1024 * SEGMENT_SIZE, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            queue.put(entry(i));
+        }
+        Assert.assertEquals(queue.size(), 100);
+        Assert.assertTrue(segmentCount() > 1);
+
+        for (int i = 0; i < 50; i++) {
+            assertEntry(queue.poll(), i);
+        }
+        // Put while spilling: goes to disk after the spilled entries
+        queue.put(entry(100));
+        for (int i = 50; i <= 100; i++) {
+            assertEntry(queue.take(), i);
+        }
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(queue.size(), 0);
+
+        // Back in memory once drained
+        queue.put(entry(101));
+        assertEntry(queue.poll(), 101);
+        queue.close();
+    }
+
+    public void testSegmentsDeletedOnceRead() throws InterruptedException {
+        SpillQueue queue = new SpillQueue(1, directory, 1024 * SEGMENT_SIZE, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            queue.put(entry(i));
+        }
+        int segments = segmentCount();
+        Assert.assertTrue(segments > 2);
+        int taken = 0;
+        while (segmentCount() == segments) {
+            assertEntry(queue.poll(), taken++);
+        }
+        Assert.assertEquals(segmentCount(), segments - 1);
+        while (taken < 100) {
+            assertEntry(queue.poll(), taken++);
+        }
+        Assert.assertEquals(segmentCount(), 0);
+        queue.close();
+    }
+
+    public void testSegmentsOfPreviousRunDeleted() throws InterruptedException {
+        SpillQueue queue = new SpillQueue(1, directory, 1024 * SEGMENT_SIZE, SEGMENT_SIZE);
+        for (int i = 0; i < 20; i++) {
+            queue.put(entry(i));
+        }
+        Assert.assertTrue(segmentCount() > 0);
+        queue = new SpillQueue(1, directory, 1024 * SEGMENT_SIZE, SEGMENT_SIZE);
+        Assert.assertEquals(segmentCount(), 0);
+        Assert.assertNull(queue.poll());
+    }
+
+    public void testPutBlocksOnceBudgetUsed() throws InterruptedException {
+        // One segment on disk
+        final SpillQueue queue = new SpillQueue(1, directory, SEGMENT_SIZE, SEGMENT_SIZE);
+        int count = 0;
+        while (queue.offer(entry(count))) {
+            count++;
+        }
+        Assert.assertTrue(count > 2);
+        Assert.assertFalse(queue.offer(entry(count), 10, TimeUnit.MILLISECONDS));
+
+        final int last = count;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(entry(last));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        producer.join(200);
+        Assert.assertTrue(producer.isAlive());
+
+        for (int i = 0; i < count; i++) {
+            assertEntry(queue.poll(), i);
+        }
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        assertEntry(queue.poll(1, TimeUnit.SECONDS), last);
+        queue.close();
+    }
+
+    public void testPeekAndIterator() throws InterruptedException {
+        SpillQueue queue = new SpillQueue(3, directory, 1024 * SEGMENT_SIZE, SEGMENT_SIZE);
+        Assert.assertNull(queue.peek());
+        for (int i = 0; i < 30; i++) {
+            queue.put(entry(i));
+        }
+        assertEntry(queue.peek(), 0);
+        assertEntry(queue.peek(), 0);
+
+        int expected = 0;
+        for (QueueEntry entry : queue) {
+            assertEntry(entry, expected++);
+        }
+        Assert.assertEquals(expected, 30);
+
+        for (int i = 0; i < 3; i++) {
+            assertEntry(queue.poll(), i);
+        }
+        // Spilled head
+        assertEntry(queue.peek(), 3);
+        assertEntry(queue.peek(), 3);
+        Assert.assertEquals(queue.size(), 27);
+
+        Iterator<QueueEntry> iterator = queue.iterator();
+        assertEntry(iterator.next(), 3);
+        try {
+            iterator.remove();
+            Assert.fail("read only iterator");
+        } catch (UnsupportedOperationException e) {
+        }
+        // Entries taken meanwhile are skipped
+        for (int i = 3; i < 10; i++) {
+            assertEntry(queue.poll(), i);
+        }
+        assertEntry(iterator.next(), 10);
+
+        // Stops once the segments are released
+        queue.close();
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals(segmentCount(), 0);
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class StatisticsWriterTest {
+
+    @SuppressWarnings("unchecked")
+    public void testRollup() {
+        StatisticsWriter.Rollup rollup = new StatisticsWriter.Rollup("myindex", "mytype");
+        rollup.add(30, 100, 60, 30, 10, 1100);
+        rollup.add(10, 50, 50, 0, 0, 1150);
+        rollup.add(20, 250, 200, 0, 50, 1350);
+
+        Date date = new Date();
+        Map<String, Object> statistics = (Map<String, Object>) rollup.toSource(date, 2000).get("statistics");
+        Assert.assertEquals(statistics.get("date"), date);
+        Assert.assertEquals(statistics.get("index"), "myindex");
+        Assert.assertEquals(statistics.get("type"), "mytype");
+        Assert.assertEquals(statistics.get("interval"), 2000L);
+        Assert.assertEquals(statistics.get("bulks"), 3);
+        // Summed over the bulks of the interval
+        Assert.assertEquals(statistics.get("total_duration"), 60L);
+        Assert.assertFalse(statistics.containsKey("duration"));
+
+        Map<String, Object> latency = (Map<String, Object>) statistics.get("latency");
+        Assert.assertEquals(latency.get("min"), 10L);
+        Assert.assertEquals(latency.get("avg"), 20.0);
+        Assert.assertEquals(latency.get("max"), 30L);
+        Assert.assertEquals(statistics.get("throughput"), 200.0);
+
+        Assert.assertEquals(statistics.get("documents.inserted"), 310L);
+        Assert.assertEquals(statistics.get("documents.updated"), 30L);
+        Assert.assertEquals(statistics.get("documents.deleted"), 60L);
+        // Latest count, not a sum
+        Assert.assertEquals(statistics.get("documents.total"), 1350L);
+    }
+
+}
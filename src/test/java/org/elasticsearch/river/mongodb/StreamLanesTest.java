@@ -0,0 +1,98 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+@Test
+public class StreamLanesTest {
+
+    private static final String COLLECTION = "items";
+
+    private static SharedContext context() {
+        return new SharedContext(new LinkedBlockingQueue<QueueEntry>(), new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING);
+    }
+
+    private static QueueEntry live(int time, Object id) {
+        return new QueueEntry("rs0", new Timestamp.BSON(new BSONTimestamp(time, 0)), Operation.UPDATE, new BasicDBObject(
+                MongoDBRiver.MONGODB_ID_FIELD, id).append("version", "oplog"), COLLECTION);
+    }
+
+    private static QueueEntry imported(Object id) {
+        return new QueueEntry(null, Operation.INSERT, new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id).append("version", "import"),
+                COLLECTION);
+    }
+
+    private static void assertNext(StreamLanes lanes, QueueEntry expected) throws InterruptedException {
+        QueueEntry entry = lanes.poll(0);
+        Assert.assertSame(entry, expected);
+    }
+
+    public void testImportOlderThanOplogSkipped() throws InterruptedException {
+        SharedContext context = context();
+        context.getImportingCollections().add(COLLECTION);
+        StreamLanes lanes = new StreamLanes(context, 2);
+
+        // Read from the collection before the oplog entry changing it
+        QueueEntry imported = imported(1);
+        QueueEntry other = imported(2);
+        context.getImportStream().put(imported);
+        context.getImportStream().put(other);
+        QueueEntry live = live(1420070400, 1);
+        context.getStream().put(live);
+
+        assertNext(lanes, live);
+        Assert.assertFalse(lanes.isSuperseded(live));
+        assertNext(lanes, imported);
+        Assert.assertTrue(lanes.isSuperseded(imported));
+        assertNext(lanes, other);
+        Assert.assertFalse(lanes.isSuperseded(other));
+        Assert.assertNull(lanes.poll(0));
+    }
+
+    public void testLiveLaneWeight() throws InterruptedException {
+        SharedContext context = context();
+        StreamLanes lanes = new StreamLanes(context, 2);
+        QueueEntry[] imported = { imported(10), imported(11) };
+        QueueEntry[] live = { live(1420070400, 1), live(1420070401, 2), live(1420070402, 3), live(1420070403, 4),
+                live(1420070404, 5) };
+        for (QueueEntry entry : imported) {
+            context.getImportStream().put(entry);
+        }
+        for (QueueEntry entry : live) {
+            context.getStream().put(entry);
+        }
+
+        // An imported document after every two oplog entries, the oplog alone once the import is read
+        assertNext(lanes, live[0]);
+        assertNext(lanes, live[1]);
+        assertNext(lanes, imported[0]);
+        assertNext(lanes, live[2]);
+        assertNext(lanes, live[3]);
+        assertNext(lanes, imported[1]);
+        assertNext(lanes, live[4]);
+        Assert.assertNull(lanes.poll(0));
+    }
+
+    public void testNotSkippedOnceImported() throws InterruptedException {
+        SharedContext context = context();
+        context.getImportingCollections().add(COLLECTION);
+        StreamLanes lanes = new StreamLanes(context, 1);
+        Assert.assertFalse(lanes.isSuperseded(live(1420070400, 1)));
+        Assert.assertTrue(lanes.isSuperseded(imported(1)));
+
+        lanes.imported(COLLECTION);
+        Assert.assertFalse(context.getImportingCollections().contains(COLLECTION));
+        Assert.assertFalse(lanes.isSuperseded(imported(1)));
+
+        // Imported again: the ids of the previous import are forgotten
+        context.getImportingCollections().add(COLLECTION);
+        Assert.assertFalse(lanes.isSuperseded(imported(1)));
+    }
+
+}
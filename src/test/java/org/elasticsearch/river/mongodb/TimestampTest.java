@@ -0,0 +1,32 @@
+package org.elasticsearch.river.mongodb;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.bson.types.BSONTimestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TimestampTest {
+
+    private static Timestamp.GTID gtid(long primary, long sequence) {
+        return new Timestamp.GTID(ByteBuffer.allocate(16).putLong(primary).putLong(sequence).array(), new Date());
+    }
+
+    public void testBSONVersion() {
+        Timestamp.BSON first = new Timestamp.BSON(new BSONTimestamp(1420070400, 7));
+        Timestamp.BSON second = new Timestamp.BSON(new BSONTimestamp(1420070400, 8));
+        Timestamp.BSON third = new Timestamp.BSON(new BSONTimestamp(1420070401, 1));
+        Assert.assertTrue(first.getVersion() > 0);
+        Assert.assertEquals(second.getVersion(), first.getVersion() + 1);
+        Assert.assertTrue(third.getVersion() > second.getVersion());
+    }
+
+    public void testGTIDVersion() {
+        Assert.assertTrue(gtid(0, 1).getVersion() > 0);
+        Assert.assertEquals(gtid(1, 8).getVersion(), gtid(1, 7).getVersion() + 1);
+        Assert.assertTrue(gtid(2, 1).getVersion() > gtid(1, 1000000).getVersion());
+    }
+
+}
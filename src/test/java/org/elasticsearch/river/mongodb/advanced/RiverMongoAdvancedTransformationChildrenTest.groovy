@@ -159,4 +159,63 @@ class RiverMongoAdvancedTransformationChildrenTest extends RiverMongoDBTestAbstr
             super.deleteIndex(index)
         }
     }
+
+    @Test
+    public void "Test delete of parents removes all their children"() {
+        def river = "testdeletechildrenscriptgroovyriver-" + System.currentTimeMillis()
+        def index = "testdeletechildrenscriptgroovyindex-" + System.currentTimeMillis()
+        try {
+            logger.debug("Create river {}", river)
+            node.client().admin().indices().prepareCreate(index).execute().actionGet()
+            node.client()
+                    .admin()
+                    .indices()
+                    .preparePutMapping(index)
+                    .setType("tweet")
+                    .setSource(
+                    getJsonSettings("/org/elasticsearch/river/mongodb/advanced/tweets-mapping.json", 0))
+                    .execute().actionGet()
+
+            createRiver(
+                    RiverMongoAdvancedTransformationGroovyScriptTest.TEST_MONGODB_RIVER_WITH_ADVANCED_TRANSFORMATION_JSON, river, 3,
+                    "[\"author\"]",
+                    database, collection, RiverMongoAdvancedTransformationGroovyScriptTest.GROOVY_SCRIPT_TYPE, GROOVY_SCRIPT, index, database
+                    )
+
+            // More children per parent than a search returns by default
+            def parentIds = []
+            for (name in ["Pablo", "Pedro", "Paula"]) {
+                def tweets = (1..25).collect { [_id: new ObjectId().toString(), text: "$name $it".toString()] }
+                def dbObject = new BasicDBObject([name: name, tweets: tweets])
+                dbCollection.insert(dbObject)
+                parentIds << dbObject.get("_id").toString()
+            }
+            waitForRiverReplication(index)
+            for (parentId in parentIds) {
+                def response = node.client().prepareSearch(index).setTypes("tweet").setQuery(QueryBuilders.queryString(parentId).defaultField("_parent")).execute().actionGet()
+                assert response.hits.totalHits == 25
+            }
+
+            // -- DELETE -- two parents in a row
+            dbCollection.remove([_id: new ObjectId(parentIds[0])])
+            dbCollection.remove([_id: new ObjectId(parentIds[1])])
+            waitForRiverReplication(index)
+            for (parentId in parentIds[0..1]) {
+                assert !node.client().prepareGet(index, "author", parentId).get().exists
+                def response = node.client().prepareSearch(index).setTypes("tweet").setQuery(QueryBuilders.queryString(parentId).defaultField("_parent")).execute().actionGet()
+                logger.debug("SearchResponse $response")
+                assert response.hits.totalHits == 0
+            }
+            // The children of the other parent are kept
+            assert node.client().prepareGet(index, "author", parentIds[2]).get().exists
+            def response = node.client().prepareSearch(index).setTypes("tweet").setQuery(QueryBuilders.queryString(parentIds[2]).defaultField("_parent")).execute().actionGet()
+            assert response.hits.totalHits == 25
+        } catch (Throwable t) {
+            logger.error("*** Test delete of parents removes all their children failed ***", t)
+            Assert.fail("Test delete of parents removes all their children failed", t)
+        } finally {
+            super.deleteRiver(river)
+            super.deleteIndex(index)
+        }
+    }
 }
@@ -18,15 +18,20 @@
  */
 package org.elasticsearch.river.mongodb.simple;
 
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 
+import java.io.IOException;
 import java.util.Map;
 
+import org.bson.types.BSONTimestamp;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.river.mongodb.MongoConfig;
 import org.elasticsearch.river.mongodb.MongoDBRiver;
 import org.elasticsearch.river.mongodb.MongoDBRiverDefinition;
 import org.elasticsearch.river.mongodb.RiverMongoDBTestAbstract;
@@ -77,6 +82,57 @@ public class RiverMongoStartFromLastTimestampTest extends RiverMongoDBTestAbstra
         return client.prepareGet(index, typeName, id).get().getSource();
     }
 
+    private void writeCheckpoint(Client client, MongoDBRiverDefinition definition, String id, Timestamp<?> time) throws IOException {
+        XContentBuilder source = jsonBuilder().startObject().startObject(MongoDBRiver.TYPE);
+        time.saveFields(source);
+        client.prepareIndex(definition.getRiverIndexName(), definition.getRiverName(), id).setSource(source.endObject().endObject()).get();
+    }
+
+    @Test
+    public void testShardCheckpoints() throws Throwable {
+        Client client = getNode().client();
+
+        logger.debug("Start testShardCheckpoints");
+        try {
+            MongoDBRiverDefinition definition = getMongoDBRiverDefinition(TEST_MONGODB_RIVER_SIMPLE_JSON, getDatabase(), getCollection(),
+                    getIndex());
+            String namespace = definition.getMongoOplogNamespace();
+            Timestamp<?> namespaceTimestamp = new Timestamp.BSON(new BSONTimestamp(1420070400, 1));
+            Timestamp<?> shard1Timestamp = new Timestamp.BSON(new BSONTimestamp(1420070500, 1));
+            Timestamp<?> shard2Timestamp = new Timestamp.BSON(new BSONTimestamp(1420070600, 1));
+
+            // Single checkpoint of the namespace, written before they were kept per shard
+            writeCheckpoint(client, definition, namespace, namespaceTimestamp);
+            assertThat(MongoDBRiver.getShardTimestamps(client, definition).isEmpty(), is(true));
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, MongoConfig.UNSHARDED), equalTo((Object) namespaceTimestamp));
+            // - Each shard resumes from it
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, "shard1"), equalTo((Object) namespaceTimestamp));
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, "shard2"), equalTo((Object) namespaceTimestamp));
+
+            // Checkpoints per shard, at namespace/shard
+            writeCheckpoint(client, definition, namespace + "/shard1", shard1Timestamp);
+            writeCheckpoint(client, definition, namespace + "/shard2", shard2Timestamp);
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, "shard1"), equalTo((Object) shard1Timestamp));
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, "shard2"), equalTo((Object) shard2Timestamp));
+            // - A shard added since falls back to the namespace
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, "shard3"), equalTo((Object) namespaceTimestamp));
+            // - A replica set keeps the namespace checkpoint
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition, MongoConfig.UNSHARDED), equalTo((Object) namespaceTimestamp));
+            assertThat(MongoDBRiver.getLastTimestamp(client, definition), equalTo((Object) namespaceTimestamp));
+
+            Map<String, Timestamp<?>> shardTimestamps = MongoDBRiver.getShardTimestamps(client, definition);
+            assertThat(shardTimestamps.size(), equalTo(2));
+            assertThat(shardTimestamps.get("shard1"), equalTo((Object) shard1Timestamp));
+            assertThat(shardTimestamps.get("shard2"), equalTo((Object) shard2Timestamp));
+        } catch (Throwable t) {
+            logger.error("testShardCheckpoints failed.", t);
+            t.printStackTrace();
+            throw t;
+        } finally {
+            super.deleteRiver();
+        }
+    }
+
     @Test
     public void testSlurperResumesFromLastTimestamp() throws Throwable {
         Client client = getNode().client();
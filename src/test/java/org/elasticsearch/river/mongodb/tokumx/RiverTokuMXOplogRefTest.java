@@ -30,6 +30,8 @@ public class RiverTokuMXOplogRefTest extends RiverTokuMXTestAbstract {
     static final String LONG_STRING =
             "abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxyz";
 
+    static final int TRANSACTION_DOCUMENTS = 20;
+
     private DB mongoDB;
     private DBCollection mongoCollection;
     
@@ -72,6 +74,52 @@ public class RiverTokuMXOplogRefTest extends RiverTokuMXTestAbstract {
         }
     }
 
+    @Test(dependsOnMethods = "testOplogRefs")
+    public void testLargeMultiRefTransaction() throws InterruptedException {
+        // A single batch insert is one transaction, spilled into many oplog.refs entries
+        List<DBObject> documents = new ArrayList<DBObject>(TRANSACTION_DOCUMENTS);
+        for (int i = 1; i <= TRANSACTION_DOCUMENTS; i++) {
+            documents.add(buildMediumObject(i));
+        }
+        long start = System.currentTimeMillis();
+        mongoCollection.insert(documents, WriteConcern.REPLICAS_SAFE);
+
+        long expected = TRANSACTION_DOCUMENTS + 1;
+        long count = 0;
+        for (int i = 0; i < 60 && count < expected; i++) {
+            Thread.sleep(500);
+            refreshIndex();
+            count = getNode().client().count(countRequest(getIndex())).actionGet().getCount();
+        }
+        logger.info("Indexed transaction of {} documents in {} ms", TRANSACTION_DOCUMENTS, System.currentTimeMillis() - start);
+        assertThat(count, Matchers.equalTo(expected));
+        try (DBCursor cursor = mongoDB.getSisterDB(LOCAL_DATABASE_NAME).getCollection(OPLOG_COLLECTION)
+                .find().sort(new BasicDBObject("$natural", -1)).limit(1)) {
+            DBObject lastOplog = cursor.toArray().get(0);
+            assertThat(lastOplog.containsField("ref"), Matchers.is(Boolean.TRUE));
+            long refs = mongoDB.getSisterDB(LOCAL_DATABASE_NAME).getCollection("oplog.refs")
+                    .count(new BasicDBObject("_id.oid", lastOplog.get("ref")));
+            logger.info("Transaction spilled into {} oplog.refs entries", refs);
+            assertThat(refs, Matchers.greaterThan(1L));
+        }
+    }
+
+    private static BasicDBObject buildMediumObject(int id) {
+        BasicDBObject core = new BasicDBObject();
+        for (char c = 'a'; c <= 'z'; ++c) {
+            core.append("" + c, LONG_STRING);
+        }
+        List<DBObject> list1 = new ArrayList<DBObject>(10);
+        for (int k = 1; k <= 10; ++k) {
+            list1.add(new BasicDBObject("k", k).append("v", core));
+        }
+        List<DBObject> list2 = new ArrayList<DBObject>(10);
+        for (int j = 1; j <= 10; ++j) {
+            list2.add(new BasicDBObject("j", j).append("v", list1));
+        }
+        return new BasicDBObject("_id", id).append("o", list2);
+    }
+
     private static BasicDBObject buildLargeObject() {
         BasicDBObject core = new BasicDBObject();
         for (char c = 'a'; c <= 'z'; ++c) {